@@ -0,0 +1,304 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ozsoft.secs4j.util.RingBuffer;
+
+/**
+ * SECS equipment listener delivering the events to another listener
+ * asynchronously. <br />
+ * <br />
+ * 
+ * Events are queued in a bounded, lock-free ring buffer and delivered in order
+ * on an executor, so a slow listener (e.g. a database logger) never delays the
+ * protocol (message handling, replies or LINKTEST). If the listener falls
+ * behind and the buffer is full, events are dropped according to the overflow
+ * policy. The number of pending, delivered and dropped events and the maximum
+ * delivery lag are available as metrics.
+ * 
+ * @author Oscar Stigter
+ */
+public class AsyncListener implements SecsEquipmentListener {
+
+    /**
+     * Policy for events that do not fit in the buffer.
+     */
+    public enum OverflowPolicy {
+
+        /** Drop the new event. */
+        DROP_NEWEST,
+
+        /** Drop the oldest pending event to make room for the new event. */
+        DROP_OLDEST,
+
+    }
+
+    /** Maximum number of events to deliver before yielding the thread. */
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    private static final Logger LOG = Logger.getLogger(AsyncListener.class);
+
+    /** The listener to deliver the events to. */
+    private final SecsEquipmentListener listener;
+
+    /** The executor to deliver the events on. */
+    private final Executor executor;
+
+    /** The overflow policy. */
+    private final OverflowPolicy overflowPolicy;
+
+    /** The pending events. */
+    private final RingBuffer<Event> events;
+
+    /** Whether a delivery task is scheduled or running. */
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+    /** The delivery task. */
+    private final Runnable deliveryTask;
+
+    /** The number of delivered events. */
+    private final AtomicLong deliveredEvents = new AtomicLong();
+
+    /** The number of dropped events. */
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /** The maximum time between queueing and delivering an event, in nanoseconds. */
+    private volatile long maxLag;
+
+    /**
+     * Constructor.
+     * 
+     * @param listener
+     *            The listener to deliver the events to.
+     * @param executor
+     *            The executor to deliver the events on.
+     * @param capacity
+     *            The maximum number of pending events (rounded up to a power
+     *            of 2).
+     * @param overflowPolicy
+     *            The policy for events that do not fit in the buffer.
+     */
+    public AsyncListener(SecsEquipmentListener listener, Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+        if (listener == null || executor == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("Null argument");
+        }
+        this.listener = listener;
+        this.executor = executor;
+        this.overflowPolicy = overflowPolicy;
+        events = new RingBuffer<Event>(capacity);
+        deliveryTask = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+    }
+
+    public SecsEquipmentListener getListener() {
+        return listener;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getCapacity() {
+        return events.capacity();
+    }
+
+    /**
+     * Returns the number of events not delivered yet (the lag in events).
+     * 
+     * @return The number of pending events.
+     */
+    public int getPendingEvents() {
+        return events.size();
+    }
+
+    public long getDeliveredEvents() {
+        return deliveredEvents.get();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Returns the maximum time between an event being queued and delivered.
+     * 
+     * @return The maximum lag in milliseconds.
+     */
+    public long getMaxLag() {
+        return maxLag / 1000000L;
+    }
+
+    @Override
+    public void connectionStateChanged(ConnectionState connectionState) {
+        queue(new Event(EventType.CONNECTION_STATE, connectionState));
+    }
+
+    @Override
+    public void communicationStateChanged(CommunicationState communicationState) {
+        queue(new Event(EventType.COMMUNICATION_STATE, communicationState));
+    }
+
+    @Override
+    public void controlStateChanged(ControlState controlState) {
+        queue(new Event(EventType.CONTROL_STATE, controlState));
+    }
+
+    @Override
+    public void messageReceived(Message message) {
+        queue(new Event(EventType.MESSAGE_RECEIVED, message));
+    }
+
+    @Override
+    public void messageSent(Message message) {
+        queue(new Event(EventType.MESSAGE_SENT, message));
+    }
+
+    /**
+     * Queues an event and schedules its delivery. Never blocks.
+     * 
+     * @param event
+     *            The event.
+     */
+    private void queue(Event event) {
+        while (!events.offer(event)) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                droppedEvents.incrementAndGet();
+                break;
+            } else if (events.poll() != null) {
+                droppedEvents.incrementAndGet();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Schedules the delivery task, unless already scheduled.
+     */
+    private void schedule() {
+        if (!events.isEmpty() && isScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(deliveryTask);
+            } catch (RuntimeException e) {
+                isScheduled.set(false);
+                LOG.error("Could not schedule delivery of listener events", e);
+            }
+        }
+    }
+
+    /**
+     * Delivers pending events in order, yielding the thread after a maximum
+     * number of events.
+     */
+    private void deliver() {
+        try {
+            for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+                Event event = events.poll();
+                if (event == null) {
+                    break;
+                }
+                long lag = System.nanoTime() - event.time;
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+                try {
+                    event.deliver(listener);
+                } catch (RuntimeException e) {
+                    LOG.error("Error in listener", e);
+                }
+                deliveredEvents.incrementAndGet();
+            }
+        } finally {
+            isScheduled.set(false);
+            // Re-schedule for events added meanwhile or not delivered yet.
+            schedule();
+        }
+    }
+
+    /**
+     * Listener event type.
+     */
+    private enum EventType {
+
+        CONNECTION_STATE,
+
+        COMMUNICATION_STATE,
+
+        CONTROL_STATE,
+
+        MESSAGE_RECEIVED,
+
+        MESSAGE_SENT,
+
+    }
+
+    /**
+     * Queued listener event.
+     */
+    private static final class Event {
+
+        /** The event type. */
+        private final EventType type;
+
+        /** The new state or the message. */
+        private final Object value;
+
+        /** The time the event was queued, in nanoseconds. */
+        private final long time;
+
+        public Event(EventType type, Object value) {
+            this.type = type;
+            this.value = value;
+            time = System.nanoTime();
+        }
+
+        /**
+         * Delivers the event to a listener.
+         * 
+         * @param listener
+         *            The listener.
+         */
+        public void deliver(SecsEquipmentListener listener) {
+            switch (type) {
+                case CONNECTION_STATE:
+                    listener.connectionStateChanged((ConnectionState) value);
+                    break;
+                case COMMUNICATION_STATE:
+                    listener.communicationStateChanged((CommunicationState) value);
+                    break;
+                case CONTROL_STATE:
+                    listener.controlStateChanged((ControlState) value);
+                    break;
+                case MESSAGE_RECEIVED:
+                    listener.messageReceived((Message) value);
+                    break;
+                default:
+                    listener.messageSent((Message) value);
+            }
+        }
+
+    }
+
+}
@@ -30,6 +30,12 @@ public enum CommunicationState {
     /** _Enabled, but communication not yet established. */
     NOT_COMMUNICATING,
     
+    /** Waiting for the reply on a sent S1F13 (Establish Communication Request). */
+    WAIT_CRA,
+    
+    /** Waiting to retry a denied or failed S1F13 (Establish Communication Request). */
+    WAIT_DELAY,
+    
     /** Enabled and communicating established. */
     COMMUNICATING,
 
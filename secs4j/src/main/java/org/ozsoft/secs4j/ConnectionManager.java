@@ -0,0 +1,520 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Orchestrates the connection attempts of many ACTIVE SECS equipment (e.g.
+ * all equipment hosted by a {@link SecsServer}). <br />
+ * <br />
+ * 
+ * At most a maximum number of (non-blocking) connection attempts are pending
+ * at the same time, each abandoned after a connect timeout. Waiting equipment
+ * are served in order of their last healthy connection, so equipment that
+ * were connected recently are reconnected first. These times are kept in
+ * memory only; to keep this order across a restart of the host, an
+ * application may persist them ({@link #getLastHealthyTime(SecsEquipment)})
+ * and restore them before enabling the equipment
+ * ({@link #setLastHealthyTime(SecsEquipment, long)}). <br />
+ * <br />
+ * 
+ * After a failed attempt, an equipment retries with an exponential backoff
+ * with random jitter, capped by its T5 (Connect Separation) timeout, so
+ * equipment do not retry in lockstep. A connection only counts as healthy
+ * once it has been SELECTED for a minimum time; a connection lost before that
+ * counts as a failed attempt as well, so a peer that accepts and drops
+ * connections is not redialled in a tight loop. <br />
+ * <br />
+ * 
+ * The time from the first connection request until all equipment requesting
+ * a connection have been connected for the first time is reported as the
+ * fleet startup time.
+ * 
+ * @author Oscar Stigter
+ */
+public class ConnectionManager {
+
+    /** Default maximum number of concurrent connection attempts. */
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 16;
+
+    /** Default connect timeout in milliseconds. */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000L;
+
+    /** Default minimum time a connection must be SELECTED to be healthy. */
+    public static final long DEFAULT_MIN_HEALTHY_TIME = 10000L;
+
+    /** Backoff after the first failed connection attempt, in milliseconds. */
+    private static final long INITIAL_BACKOFF = 100L;
+
+    /** Maximum exponent of the backoff (prevents overflow). */
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private static final Logger LOG = Logger.getLogger(ConnectionManager.class);
+
+    /** The state of the managed equipment. */
+    private final Map<SecsEquipment, Entry> entries;
+
+    /** The equipment waiting for a connection attempt. */
+    private final PriorityQueue<Entry> queue;
+
+    /** The maximum number of concurrent connection attempts. */
+    private int maxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECTS;
+
+    /** The connect timeout in milliseconds. */
+    private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    /** The minimum time in milliseconds a connection must be SELECTED. */
+    private volatile long minHealthyTime = DEFAULT_MIN_HEALTHY_TIME;
+
+    /** The number of pending connection attempts. */
+    private int activeConnects;
+
+    /** Sequence number for first-come, first-served ordering. */
+    private long sequence;
+
+    /** The number of equipment that requested a connection. */
+    private int requestedCount;
+
+    /** The number of equipment connected at least once. */
+    private int connectedCount;
+
+    /** The time of the first connection request. */
+    private long startTime;
+
+    /** The fleet startup time in milliseconds, or -1 if not completed. */
+    private long startupTime = -1L;
+
+    /**
+     * Constructor.
+     */
+    public ConnectionManager() {
+        entries = new IdentityHashMap<SecsEquipment, Entry>();
+        queue = new PriorityQueue<Entry>(64, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                // Most recently healthy first, then first-come, first-served.
+                if (e1.lastHealthyTime != e2.lastHealthyTime) {
+                    return (e1.lastHealthyTime > e2.lastHealthyTime) ? -1 : 1;
+                }
+                return Long.compare(e1.sequence, e2.sequence);
+            }
+        });
+    }
+
+    public synchronized int getMaxConcurrentConnects() {
+        return maxConcurrentConnects;
+    }
+
+    public synchronized void setMaxConcurrentConnects(int maxConcurrentConnects) throws SecsConfigurationException {
+        if (maxConcurrentConnects < 1) {
+            throw new SecsConfigurationException("Invalid maximum number of concurrent connects: " + maxConcurrentConnects);
+        }
+        this.maxConcurrentConnects = maxConcurrentConnects;
+        dispatch();
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(long connectTimeout) throws SecsConfigurationException {
+        if (connectTimeout < 1L) {
+            throw new SecsConfigurationException("Invalid connect timeout: " + connectTimeout);
+        }
+        this.connectTimeout = connectTimeout;
+    }
+
+    public long getMinHealthyTime() {
+        return minHealthyTime;
+    }
+
+    public void setMinHealthyTime(long minHealthyTime) throws SecsConfigurationException {
+        if (minHealthyTime < 0L) {
+            throw new SecsConfigurationException("Invalid minimum healthy time: " + minHealthyTime);
+        }
+        this.minHealthyTime = minHealthyTime;
+    }
+
+    /**
+     * Returns the number of pending connection attempts.
+     * 
+     * @return The number of pending connection attempts.
+     */
+    public synchronized int getActiveConnects() {
+        return activeConnects;
+    }
+
+    /**
+     * Returns the number of equipment waiting for a connection attempt.
+     * 
+     * @return The number of waiting equipment.
+     */
+    public synchronized int getQueuedConnects() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of consecutive failed connection attempts of an
+     * equipment.
+     * 
+     * @param equipment
+     *            The equipment.
+     * 
+     * @return The number of failed connection attempts.
+     */
+    public synchronized int getFailures(SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        return (entry != null) ? entry.failures : 0;
+    }
+
+    /**
+     * Returns the time when an equipment was last known to be connected.
+     * 
+     * @param equipment
+     *            The equipment.
+     * 
+     * @return The time in milliseconds since the epoch, or 0 if unknown.
+     */
+    public synchronized long getLastHealthyTime(SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        return (entry != null) ? entry.lastHealthyTime : 0L;
+    }
+
+    /**
+     * Sets the time when an equipment was last known to be connected (e.g.
+     * restored after a restart), which determines its priority for a
+     * connection attempt.
+     * 
+     * @param equipment
+     *            The equipment.
+     * @param lastHealthyTime
+     *            The time in milliseconds since the epoch, or 0 if unknown.
+     * 
+     * @throws SecsConfigurationException
+     *             If the equipment is not managed.
+     */
+    public synchronized void setLastHealthyTime(SecsEquipment equipment, long lastHealthyTime) throws SecsConfigurationException {
+        Entry entry = entries.get(equipment);
+        if (entry == null) {
+            throw new SecsConfigurationException("Equipment not managed");
+        }
+        if (entry.isQueued) {
+            // Re-order the waiting entry.
+            queue.remove(entry);
+            entry.lastHealthyTime = lastHealthyTime;
+            queue.add(entry);
+        } else {
+            entry.lastHealthyTime = lastHealthyTime;
+        }
+    }
+
+    /**
+     * Returns the time from the first connection request until all equipment
+     * requesting a connection have been connected at least once.
+     * 
+     * @return The fleet startup time in milliseconds, or -1 if not all
+     *         equipment have been connected yet.
+     */
+    public synchronized long getStartupTime() {
+        return startupTime;
+    }
+
+    /**
+     * Adds an equipment to be managed.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void add(SecsEquipment equipment) {
+        if (!entries.containsKey(equipment)) {
+            entries.put(equipment, new Entry(equipment));
+        }
+    }
+
+    /**
+     * Removes a managed equipment.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void remove(SecsEquipment equipment) {
+        Entry entry = entries.remove(equipment);
+        if (entry != null) {
+            if (entry.isQueued) {
+                queue.remove(entry);
+            }
+            if (entry.isConnecting) {
+                activeConnects--;
+            }
+            if (entry.hasRequested) {
+                requestedCount--;
+            }
+            if (entry.hasConnected) {
+                connectedCount--;
+            }
+            dispatch();
+            checkStartup();
+        }
+    }
+
+    /**
+     * Requests a connection attempt for an equipment.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void request(SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        if (entry == null || entry.isQueued || entry.isConnecting) {
+            return;
+        }
+        if (!entry.hasRequested) {
+            entry.hasRequested = true;
+            requestedCount++;
+            if (startTime == 0L || startupTime >= 0L) {
+                // Start of a (new) fleet startup.
+                startTime = System.currentTimeMillis();
+                startupTime = -1L;
+            }
+        }
+        entry.sequence = sequence++;
+        entry.isQueued = true;
+        queue.add(entry);
+        dispatch();
+    }
+
+    /**
+     * Requests a connection attempt for an equipment that lost its connection;
+     * immediately if the connection was healthy, otherwise after the backoff
+     * of a failed attempt.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void connectionLost(SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            boolean isHealthy = entry.selectedTime != 0L && now - entry.selectedTime >= minHealthyTime;
+            if (entry.selectedTime != 0L) {
+                entry.lastHealthyTime = now;
+                entry.selectedTime = 0L;
+            }
+            if (isHealthy) {
+                entry.failures = 0;
+                request(equipment);
+            } else {
+                retry(entry);
+            }
+        }
+    }
+
+    /**
+     * Handles the connection of an equipment being selected, after which its
+     * failed attempts are reset once it stayed selected for the minimum
+     * healthy time.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void connectionSelected(final SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        if (entry != null) {
+            final long selectedTime = System.currentTimeMillis();
+            entry.selectedTime = selectedTime;
+            entry.lastHealthyTime = selectedTime;
+            equipment.startTimer(new Runnable() {
+                @Override
+                public void run() {
+                    connectionHealthy(equipment, selectedTime);
+                }
+            }, minHealthyTime);
+        }
+    }
+
+    /**
+     * Resets the failed attempts of an equipment still selected after the
+     * minimum healthy time.
+     * 
+     * @param equipment
+     *            The equipment.
+     * @param selectedTime
+     *            The time the connection was selected.
+     */
+    private synchronized void connectionHealthy(SecsEquipment equipment, long selectedTime) {
+        Entry entry = entries.get(equipment);
+        if (entry != null && entry.selectedTime == selectedTime) {
+            entry.failures = 0;
+            entry.lastHealthyTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Handles a successful connection attempt.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void connectSucceeded(SecsEquipment equipment) {
+        Entry entry = release(equipment);
+        if (entry != null) {
+            entry.lastHealthyTime = System.currentTimeMillis();
+            if (!entry.hasConnected) {
+                entry.hasConnected = true;
+                connectedCount++;
+                checkStartup();
+            }
+        }
+    }
+
+    /**
+     * Completes the fleet startup once all equipment requesting a connection
+     * have been connected at least once.
+     */
+    private void checkStartup() {
+        if (startupTime < 0L && requestedCount > 0 && connectedCount == requestedCount) {
+            startupTime = System.currentTimeMillis() - startTime;
+            LOG.info(String.format("All %d equipment connected in %d ms", connectedCount, startupTime));
+        }
+    }
+
+    /**
+     * Handles a failed connection attempt by requesting a new attempt after a
+     * jittered, exponential backoff.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void connectFailed(SecsEquipment equipment) {
+        Entry entry = release(equipment);
+        if (entry != null) {
+            retry(entry);
+        }
+    }
+
+    /**
+     * Counts a failed connection attempt and requests a new attempt after a
+     * jittered, exponential backoff.
+     * 
+     * @param entry
+     *            The state of the equipment.
+     */
+    private void retry(Entry entry) {
+        final SecsEquipment equipment = entry.equipment;
+        entry.failures++;
+        long maxDelay = equipment.getT5Timeout() * 1000L;
+        long delay = Math.min(maxDelay, INITIAL_BACKOFF << Math.min(entry.failures - 1, MAX_BACKOFF_SHIFT));
+        delay = delay / 2L + ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+        LOG.debug(String.format("Connection attempt %d failed; retry in %d ms", entry.failures, delay));
+        equipment.startTimer(new Runnable() {
+            @Override
+            public void run() {
+                request(equipment);
+            }
+        }, delay);
+    }
+
+    /**
+     * Handles a cancelled connection attempt (e.g. a disabled equipment).
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    /* package */synchronized void connectAborted(SecsEquipment equipment) {
+        release(equipment);
+    }
+
+    /**
+     * Releases the connection attempt of an equipment, starting any waiting
+     * attempts.
+     * 
+     * @param equipment
+     *            The equipment.
+     * 
+     * @return The state of the equipment, or <code>null</code> if no connection
+     *         attempt was pending.
+     */
+    private Entry release(SecsEquipment equipment) {
+        Entry entry = entries.get(equipment);
+        if (entry == null || !entry.isConnecting) {
+            return null;
+        }
+        entry.isConnecting = false;
+        activeConnects--;
+        dispatch();
+        return entry;
+    }
+
+    /**
+     * Starts waiting connection attempts, up to the maximum.
+     */
+    private void dispatch() {
+        while (activeConnects < maxConcurrentConnects && !queue.isEmpty()) {
+            Entry entry = queue.poll();
+            entry.isQueued = false;
+            entry.isConnecting = true;
+            activeConnects++;
+            entry.equipment.startConnect();
+        }
+    }
+
+    /**
+     * Connection state of a managed equipment.
+     */
+    private static final class Entry {
+
+        /** The equipment. */
+        private final SecsEquipment equipment;
+
+        /** The number of consecutive failed connection attempts. */
+        private int failures;
+
+        /** The last time the equipment was known to be connected. */
+        private long lastHealthyTime;
+
+        /** The time the connection was selected, or 0 if not selected. */
+        private long selectedTime;
+
+        /** The sequence number of the last request. */
+        private long sequence;
+
+        /** Whether waiting for a connection attempt. */
+        private boolean isQueued;
+
+        /** Whether a connection attempt is pending. */
+        private boolean isConnecting;
+
+        /** Whether a connection has been requested at least once. */
+        private boolean hasRequested;
+
+        /** Whether connected at least once. */
+        private boolean hasConnected;
+
+        public Entry(SecsEquipment equipment) {
+            this.equipment = equipment;
+        }
+
+    }
+
+}
@@ -17,13 +17,9 @@
 
 package org.ozsoft.secs4j;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import org.apache.commons.io.IOUtils;
-import org.ozsoft.secs4j.format.U2;
-import org.ozsoft.secs4j.format.U4;
-import org.ozsoft.secs4j.util.ConversionUtils;
+import org.ozsoft.secs4j.util.BufferPool;
 
 /**
  * HSMS control message (PType other than DATA). <br />
@@ -35,8 +31,8 @@ import org.ozsoft.secs4j.util.ConversionUtils;
  */
 public class ControlMessage extends Message {
     
-    /** Header length bytes for a header-only message. */
-    private static final byte[] HEADER_LENGTH_BYTES = new byte[] {0x00, 0x00, 0x00, 0x0a};
+    /** The length of a header-only message, including the Length field. */
+    private static final int LENGTH = 4 + SecsConstants.HEADER_LENGTH;
     
     /** Header Byte 2 field. */
     private int headerByte2;
@@ -98,22 +94,14 @@ public class ControlMessage extends Message {
 
     @Override
     public byte[] toByteArray() throws SecsParseException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            baos.write(HEADER_LENGTH_BYTES);
-            baos.write(ConversionUtils.integerToBytes(getSessionId(), U2.SIZE));
-            baos.write(headerByte2);
-            baos.write(headerByte3);
-            baos.write(PType.SECS_II.getValue());
-            baos.write(sType.getValue());
-            baos.write(ConversionUtils.integerToBytes(getTransactionId(), U4.SIZE));
-            return baos.toByteArray();
-        } catch (IOException e) {
-            // Internal error (should never happen).
-            throw new SecsParseException("Could not serialize message: " + e.getMessage());
-        } finally {
-            IOUtils.closeQuietly(baos);
-        }
+        return encode(null).toByteArray();
+    }
+
+    @Override
+    /* package */OutboundFrame encode(BufferPool pool) {
+        ByteBuffer buffer = allocate(pool, LENGTH);
+        writeHeader(buffer, 0, headerByte2, headerByte3, sType);
+        return new OutboundFrame(pool, buffer).finish();
     }
 
     @Override
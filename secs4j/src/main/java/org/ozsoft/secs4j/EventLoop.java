@@ -0,0 +1,295 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+import org.ozsoft.secs4j.util.BufferPool;
+
+/**
+ * Selector-based event loop performing the non-blocking HSMS I/O. <br />
+ * <br />
+ * 
+ * A single event loop thread can serve the connections of many SECS equipment
+ * instances; it only wakes up when a channel is ready or when a task is
+ * submitted. Timers are run by the shared
+ * {@link org.ozsoft.secs4j.util.HashedTimingWheel}, which submits their tasks
+ * to the event loop when due.
+ * 
+ * @author Oscar Stigter
+ */
+public class EventLoop {
+
+    private static final Logger LOG = Logger.getLogger(EventLoop.class);
+
+    /** Shared default event loop. */
+    private static EventLoop defaultEventLoop;
+
+    /** Thread name. */
+    private final String name;
+
+    /** Pending tasks, submitted from any thread. */
+    private final Queue<Runnable> tasks;
+
+    /** The pool of I/O buffers used by the connections. */
+    private final BufferPool bufferPool;
+
+    /** The selector. */
+    private Selector selector;
+
+    /** The event loop thread. */
+    private Thread thread;
+
+    /** Whether the event loop is running. */
+    private volatile boolean isRunning;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            The name of the event loop thread.
+     */
+    public EventLoop(String name) {
+        this(name, new BufferPool());
+    }
+
+    /**
+     * Constructor with a specific buffer pool (e.g. with direct buffers).
+     * 
+     * @param name
+     *            The name of the event loop thread.
+     * @param bufferPool
+     *            The pool of I/O buffers used by the connections.
+     */
+    public EventLoop(String name, BufferPool bufferPool) {
+        this.name = name;
+        this.bufferPool = bufferPool;
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * Returns the shared default event loop, starting it if necessary.
+     * 
+     * @return The default event loop.
+     * 
+     * @throws SecsException
+     *             If the event loop could not be started.
+     */
+    public static synchronized EventLoop getDefault() throws SecsException {
+        if (defaultEventLoop == null) {
+            defaultEventLoop = new EventLoop("secs4j-io");
+            defaultEventLoop.start();
+        }
+        return defaultEventLoop;
+    }
+
+    /**
+     * Starts the event loop thread.
+     * 
+     * @throws SecsException
+     *             If the selector could not be opened.
+     */
+    public synchronized void start() throws SecsException {
+        if (isRunning) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new SecsException("Could not open selector", e);
+        }
+        isRunning = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EventLoop.this.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        LOG.debug(String.format("Event loop '%s' started", name));
+    }
+
+    /**
+     * Stops the event loop thread. <br />
+     * <br />
+     * 
+     * Any channels still registered are closed.
+     */
+    public synchronized void shutdown() {
+        if (isRunning) {
+            isRunning = false;
+            selector.wakeup();
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Returns the pool of I/O buffers used by the connections.
+     * 
+     * @return The buffer pool.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Indicates whether the current thread is the event loop thread.
+     * 
+     * @return True if called from the event loop thread, otherwise false.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Executes a task on the event loop thread.
+     * 
+     * @param task
+     *            The task.
+     * 
+     * @throws RejectedExecutionException
+     *             If the event loop is not running.
+     */
+    public void execute(Runnable task) {
+        if (!isRunning) {
+            throw new RejectedExecutionException(String.format("Event loop '%s' not running", name));
+        }
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with the selector. Must be called from the event loop
+     * thread.
+     * 
+     * @param channel
+     *            The (non-blocking) channel.
+     * @param ops
+     *            The interest set.
+     * @param handler
+     *            The handler to notify when the channel is ready.
+     * 
+     * @return The selection key.
+     * 
+     * @throws ClosedChannelException
+     *             If the channel is closed.
+     */
+    /* package */SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Main loop of the event loop thread.
+     */
+    private void run() {
+        while (isRunning) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handleEvent(key);
+                        }
+                    } catch (Exception e) {
+                        // Internal error (should never happen).
+                        LOG.error("Internal error while handling I/O event", e);
+                    }
+                }
+                runTasks();
+            } catch (Exception e) {
+                // Internal error (should never happen).
+                LOG.error("Internal error in event loop", e);
+            }
+        }
+
+        // Run the tasks submitted before the shutdown.
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Safe to ignore.
+        }
+        LOG.debug(String.format("Event loop '%s' stopped (%s)", name, bufferPool));
+    }
+
+    /**
+     * Runs all pending tasks.
+     */
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.error("Internal error while executing task", e);
+            }
+            task = tasks.poll();
+        }
+    }
+
+    /**
+     * Handler of I/O events on a registered channel.
+     * 
+     * @author Oscar Stigter
+     */
+    /* package */interface Handler {
+
+        /**
+         * Handles an I/O event.
+         * 
+         * @param key
+         *            The selection key of the channel that is ready.
+         * 
+         * @throws IOException
+         *             If an I/O error occurs.
+         */
+        void handleEvent(SelectionKey key) throws IOException;
+
+    }
+
+}
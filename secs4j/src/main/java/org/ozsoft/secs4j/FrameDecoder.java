@@ -0,0 +1,396 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+import org.ozsoft.secs4j.util.BufferPool;
+import org.ozsoft.secs4j.util.ByteSink;
+import org.ozsoft.secs4j.util.ByteSource;
+import org.ozsoft.secs4j.util.ChunkedByteSource;
+import org.ozsoft.secs4j.util.FileByteSource;
+import org.ozsoft.secs4j.util.HeapByteSource;
+
+/**
+ * Stateful, incremental HSMS frame decoder. <br />
+ * <br />
+ * 
+ * Splits a stream of received bytes into complete HSMS frames (4-byte length
+ * field plus header and data), regardless of how TCP/IP coalesced or split
+ * them. Frames that are completely contained in a received buffer are passed
+ * on as a slice of that buffer, without copying; only frames spanning
+ * multiple reads are reassembled in a separate buffer. <br />
+ * <br />
+ * 
+ * Reassembled message data is stored in a single heap buffer if small, in
+ * heap chunks up to the maximum in-memory length, and in a temporary file
+ * beyond that, so messages up to the HSMS limit of 4 GB can be received.
+ * Messages exceeding the maximum message length are skipped. <br />
+ * <br />
+ * 
+ * In hand-off mode, every frame is reassembled in separate storage, which is
+ * passed to the handler together with its ownership, so the frame can be
+ * handled on another thread after the received buffer has been reused.
+ * 
+ * @author Oscar Stigter
+ */
+/* package */class FrameDecoder {
+
+    /** The length of the Length field in bytes. */
+    private static final int LENGTH_LENGTH = 4;
+
+    /** The length of the Length field and header in bytes. */
+    private static final int MIN_LENGTH = LENGTH_LENGTH + SecsConstants.HEADER_LENGTH;
+
+    private static final Logger LOG = Logger.getLogger(FrameDecoder.class);
+
+    /** Handler of decoded frames. */
+    private final FrameHandler handler;
+
+    /** The maximum message length in bytes. */
+    private final long maxMessageLength;
+
+    /** The maximum length of message data kept in memory. */
+    private final long maxInMemoryLength;
+
+    /** The pool to lease buffers for small message data from, if any. */
+    private final BufferPool bufferPool;
+
+    /** Buffer for a Length field and header spanning multiple reads. */
+    private final ByteBuffer headerBuffer;
+
+    /** The message data of a frame spanning multiple reads. */
+    private ByteSource body;
+
+    /** Whether the handler takes ownership of the frames (hand-off mode). */
+    private boolean isHandOff;
+
+    /** The number of bytes to skip of a discarded frame. */
+    private long discardLength;
+
+    /** The time the last bytes of a partial frame were received. */
+    private long lastReceiveTime;
+
+    /**
+     * Constructor with the default size limits.
+     * 
+     * @param handler
+     *            The handler of decoded frames.
+     */
+    public FrameDecoder(FrameHandler handler) {
+        this(handler, SecsConstants.DEFAULT_MAX_MESSAGE_LENGTH, SecsConstants.DEFAULT_MAX_IN_MEMORY_LENGTH);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param handler
+     *            The handler of decoded frames.
+     * @param maxMessageLength
+     *            The maximum message length in bytes.
+     * @param maxInMemoryLength
+     *            The maximum length of message data kept in memory, in bytes.
+     */
+    public FrameDecoder(FrameHandler handler, long maxMessageLength, long maxInMemoryLength) {
+        this(handler, maxMessageLength, maxInMemoryLength, null);
+    }
+
+    /**
+     * Constructor with a buffer pool.
+     * 
+     * @param handler
+     *            The handler of decoded frames.
+     * @param maxMessageLength
+     *            The maximum message length in bytes.
+     * @param maxInMemoryLength
+     *            The maximum length of message data kept in memory, in bytes.
+     * @param bufferPool
+     *            The pool to lease buffers for small message data from, or
+     *            <code>null</code> to allocate them.
+     */
+    public FrameDecoder(FrameHandler handler, long maxMessageLength, long maxInMemoryLength, BufferPool bufferPool) {
+        this.handler = handler;
+        this.maxMessageLength = maxMessageLength;
+        this.maxInMemoryLength = maxInMemoryLength;
+        this.bufferPool = bufferPool;
+        headerBuffer = ByteBuffer.allocate(MIN_LENGTH);
+    }
+
+    /**
+     * Sets whether the handler takes ownership of the frames. If set, the
+     * header and data passed to the handler remain valid after the call, and
+     * the handler must close the data once handled.
+     * 
+     * @param isHandOff
+     *            Whether the handler takes ownership of the frames.
+     */
+    public void setHandOff(boolean isHandOff) {
+        this.isHandOff = isHandOff;
+    }
+
+    /**
+     * Decodes received bytes, passing any completed frames to the handler. <br />
+     * <br />
+     * 
+     * All remaining bytes in the buffer are consumed. Frames passed to the
+     * handler may share the buffer's content, so they must be handled before
+     * the buffer is reused.
+     * 
+     * @param in
+     *            The buffer with the received bytes.
+     * 
+     * @throws SecsParseException
+     *             If an invalid Length field was received.
+     */
+    public void decode(ByteBuffer in) throws SecsParseException {
+        while (in.hasRemaining()) {
+            if (discardLength > 0) {
+                // Skip (remainder of) discarded frame.
+                int length = (int) Math.min(in.remaining(), discardLength);
+                in.position(in.position() + length);
+                discardLength -= length;
+                continue;
+            }
+
+            if (body == null) {
+                if (!isHandOff && headerBuffer.position() == 0 && in.remaining() >= LENGTH_LENGTH) {
+                    long messageLength = getMessageLength(in.getInt(in.position()));
+                    if (messageLength > maxMessageLength) {
+                        in.position(in.position() + LENGTH_LENGTH);
+                        discard(messageLength);
+                        continue;
+                    }
+                    if (in.remaining() >= messageLength + LENGTH_LENGTH) {
+                        // Complete frame received; pass on slices without copying.
+                        int frameLength = (int) messageLength + LENGTH_LENGTH;
+                        ByteBuffer header = in.slice();
+                        header.limit(MIN_LENGTH);
+                        ByteSource data = null;
+                        if (frameLength > MIN_LENGTH) {
+                            ByteBuffer buf = in.slice();
+                            buf.position(MIN_LENGTH);
+                            buf.limit(frameLength);
+                            data = new HeapByteSource(buf);
+                        }
+                        in.position(in.position() + frameLength);
+                        handler.frameReceived(header, data);
+                        continue;
+                    }
+                }
+
+                // Length field and header spanning multiple reads.
+                if (headerBuffer.position() < LENGTH_LENGTH) {
+                    fill(in, LENGTH_LENGTH);
+                    if (headerBuffer.position() < LENGTH_LENGTH) {
+                        break;
+                    }
+                    long messageLength = getMessageLength(headerBuffer.getInt(0));
+                    if (messageLength > maxMessageLength) {
+                        headerBuffer.clear();
+                        discard(messageLength);
+                        continue;
+                    }
+                }
+                fill(in, MIN_LENGTH);
+                if (headerBuffer.hasRemaining()) {
+                    break;
+                }
+                long dataLength = getMessageLength(headerBuffer.getInt(0)) - SecsConstants.HEADER_LENGTH;
+                if (dataLength == 0) {
+                    frameCompleted();
+                    continue;
+                }
+                try {
+                    body = allocate(dataLength);
+                } catch (IOException e) {
+                    LOG.error(String.format("Could not buffer message data (%d bytes) -- message discarded", dataLength), e);
+                    headerBuffer.clear();
+                    discardLength = dataLength;
+                    continue;
+                }
+            }
+
+            // Append to partial frame.
+            ByteSink sink = (ByteSink) body;
+            try {
+                sink.write(in);
+            } catch (IOException e) {
+                LOG.error("Could not buffer message data -- message discarded", e);
+                discardLength = sink.remaining();
+                headerBuffer.clear();
+                body.close();
+                body = null;
+                continue;
+            }
+            if (sink.remaining() == 0) {
+                frameCompleted();
+            }
+        }
+        lastReceiveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Indicates whether a partial frame has been received.
+     * 
+     * @return True if a partial frame has been received, otherwise false.
+     */
+    public boolean isPartial() {
+        return body != null || headerBuffer.position() > 0 || discardLength > 0;
+    }
+
+    /**
+     * Returns the time the last bytes were received.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /**
+     * Discards any partial frame.
+     */
+    public void reset() {
+        if (body != null) {
+            body.close();
+            body = null;
+        }
+        headerBuffer.clear();
+        discardLength = 0L;
+    }
+
+    /**
+     * Copies bytes into the header buffer up to the specified position.
+     * 
+     * @param in
+     *            The buffer with the received bytes.
+     * @param position
+     *            The position up to which to fill the header buffer.
+     */
+    private void fill(ByteBuffer in, int position) {
+        while (headerBuffer.position() < position && in.hasRemaining()) {
+            headerBuffer.put(in.get());
+        }
+    }
+
+    /**
+     * Allocates the storage for the message data of a frame spanning multiple
+     * reads.
+     * 
+     * @param length
+     *            The length of the message data in bytes.
+     * 
+     * @return The storage.
+     * 
+     * @throws IOException
+     *             If a temporary file could not be created.
+     */
+    private ByteSource allocate(long length) throws IOException {
+        if (length <= ChunkedByteSource.CHUNK_SIZE) {
+            return (bufferPool != null) ? HeapByteSource.allocate((int) length, bufferPool) : HeapByteSource.allocate((int) length);
+        } else if (length <= maxInMemoryLength) {
+            return new ChunkedByteSource(length);
+        } else {
+            LOG.debug(String.format("Buffering large message (%d bytes) in temporary file", length));
+            return new FileByteSource(length, null);
+        }
+    }
+
+    /**
+     * Passes the reassembled frame to the handler and releases its storage,
+     * unless handed off.
+     */
+    private void frameCompleted() {
+        ByteSource data = body;
+        body = null;
+        headerBuffer.flip();
+        if (isHandOff) {
+            ByteBuffer header = ByteBuffer.allocate(MIN_LENGTH);
+            header.put(headerBuffer).flip();
+            headerBuffer.clear();
+            handler.frameReceived(header, data);
+            return;
+        }
+        try {
+            handler.frameReceived(headerBuffer, data);
+        } finally {
+            headerBuffer.clear();
+            if (data != null) {
+                // Returns any leased buffer.
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * Starts skipping a frame exceeding the maximum message length.
+     * 
+     * @param messageLength
+     *            The message length (excluding the Length field).
+     */
+    private void discard(long messageLength) {
+        LOG.warn(String.format("Message too large (%d bytes; maximum: %d bytes) -- message discarded", messageLength, maxMessageLength));
+        discardLength = messageLength;
+    }
+
+    /**
+     * Validates a Length field and returns the message length.
+     * 
+     * @param lengthField
+     *            The value of the Length field.
+     * 
+     * @return The message length in bytes, excluding the Length field.
+     * 
+     * @throws SecsParseException
+     *             If the Length field is invalid.
+     */
+    private static long getMessageLength(int lengthField) throws SecsParseException {
+        long messageLength = lengthField & 0xffffffffL;
+        if (messageLength < SecsConstants.HEADER_LENGTH) {
+            throw new SecsParseException(String.format("Invalid message length: %d", messageLength));
+        }
+        return messageLength;
+    }
+
+    /**
+     * Handler of decoded frames.
+     * 
+     * @author Oscar Stigter
+     */
+    /* package */interface FrameHandler {
+
+        /**
+         * Handles a complete frame. <br />
+         * <br />
+         * 
+         * The header and data are only valid during this call, unless in
+         * hand-off mode.
+         * 
+         * @param header
+         *            The Length field and message header (14 bytes).
+         * @param data
+         *            The message data, or <code>null</code> for a header-only
+         *            message.
+         */
+        void frameReceived(ByteBuffer header, ByteSource data);
+
+    }
+
+}
@@ -0,0 +1,502 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.ozsoft.secs4j.util.BufferPool;
+import org.ozsoft.secs4j.util.ByteSource;
+import org.ozsoft.secs4j.util.HashedTimingWheel;
+
+/**
+ * Non-blocking HSMS connection (TCP/IP socket channel) served by an event loop.
+ * <br />
+ * <br />
+ * 
+ * Outgoing messages are queued by any number of sending threads and written by
+ * the event loop thread only, so frames never interleave. Frames queued while
+ * the socket is busy are coalesced into a single gathering write.
+ * 
+ * @author Oscar Stigter
+ */
+/* package */class HsmsConnection implements EventLoop.Handler, FrameDecoder.FrameHandler {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The maximum number of frames written with a single write. */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final Logger LOG = Logger.getLogger(HsmsConnection.class);
+
+    /** The SECS equipment. */
+    private final SecsEquipment equipment;
+
+    /** The event loop. */
+    private final EventLoop eventLoop;
+
+    /** The socket channel. */
+    private final SocketChannel channel;
+
+    /** Outgoing frames not taken by the writer yet (multiple producers). */
+    private final Queue<OutboundFrame> writeQueue;
+
+    /** The number of frames queued or being written. */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /** Whether a flush of the write queue has been scheduled. */
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean();
+
+    /** The task flushing the write queue. */
+    private final Runnable flushTask;
+
+    /** The frames being written, in order (event loop thread only). */
+    private final LinkedList<OutboundFrame> batch;
+
+    /** The buffers of the frames being written (event loop thread only). */
+    private final List<ByteBuffer> batchBuffers;
+
+    /** Whether the writer waits for the socket to become writable. */
+    private boolean isWriteInterest;
+
+    /** The number of writes. */
+    private volatile long writeCount;
+
+    /** The number of frames written. */
+    private volatile long frameCount;
+
+    /** The largest number of frames written with a single write. */
+    private volatile int maxBatchSize;
+
+    /** The pool of I/O buffers. */
+    private final BufferPool bufferPool;
+
+    /** The receive buffer, leased from the pool until the connection is closed. */
+    private ByteBuffer readBuffer;
+
+    /** The frame decoder. */
+    private final FrameDecoder frameDecoder;
+
+    /** The selection key. */
+    private SelectionKey key;
+
+    /** The T8 (Network Intercharacter) timer, if armed. */
+    private HashedTimingWheel.Timeout t8Timer;
+
+    /** Whether the connection has been closed. */
+    private volatile boolean isClosed;
+
+    /** Whether received data is being decoded. */
+    private boolean isReading;
+
+    /** The time data was last received (system nanoseconds). */
+    private volatile long lastReceiveTime;
+
+    /**
+     * Constructor.
+     * 
+     * @param equipment
+     *            The SECS equipment.
+     * @param eventLoop
+     *            The event loop.
+     * @param channel
+     *            The connected socket channel.
+     */
+    public HsmsConnection(SecsEquipment equipment, EventLoop eventLoop, SocketChannel channel) {
+        this.equipment = equipment;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        bufferPool = eventLoop.getBufferPool();
+        writeQueue = new ConcurrentLinkedQueue<OutboundFrame>();
+        batch = new LinkedList<OutboundFrame>();
+        batchBuffers = new ArrayList<ByteBuffer>();
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        readBuffer = bufferPool.acquire(BUFFER_SIZE);
+        frameDecoder = new FrameDecoder(this, equipment.getMaxMessageLength(), equipment.getMaxInMemoryLength(), bufferPool);
+        frameDecoder.setHandOff(equipment.getExecutor() != null);
+    }
+
+    /**
+     * Returns the name of the remote host.
+     * 
+     * @return The name of the remote host.
+     */
+    public String getRemoteHost() {
+        return channel.socket().getInetAddress().getHostName();
+    }
+
+    /**
+     * Returns the number of outgoing frames waiting to be written.
+     * 
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the number of (gathering) writes to the socket.
+     * 
+     * @return The number of writes.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the number of frames written.
+     * 
+     * @return The number of frames.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the largest number of frames written with a single write.
+     * 
+     * @return The maximum batch size.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the time data was last received, or the connection was started.
+     * 
+     * @return The time in system nanoseconds (see {@link System#nanoTime()}).
+     */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /**
+     * Registers the connection with the event loop. Must be called from the
+     * event loop thread.
+     * 
+     * @throws IOException
+     *             If the channel could not be registered.
+     */
+    public void start() throws IOException {
+        channel.configureBlocking(false);
+        lastReceiveTime = System.nanoTime();
+        key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Sends a message. May be called from any thread. <br />
+     * <br />
+     * 
+     * The message is encoded into a frame on the calling thread and added to
+     * the (lock-free) write queue, which is flushed by the event loop thread.
+     * Any error while writing closes the connection.
+     * 
+     * @param message
+     *            The message.
+     * 
+     * @throws SecsException
+     *             If the message could not be serialized, or the connection
+     *             has been closed.
+     */
+    public void send(Message message) throws SecsException {
+        OutboundFrame frame = message.encode(bufferPool);
+        if (isClosed) {
+            frame.release();
+            throw new SecsException("Connection closed");
+        }
+        writeQueue.add(frame);
+        queueDepth.incrementAndGet();
+        if (isClosed) {
+            // Closed concurrently; make sure the frame is not left behind.
+            releaseQueue();
+            throw new SecsException("Connection closed");
+        }
+        if (isFlushScheduled.compareAndSet(false, true)) {
+            try {
+                eventLoop.execute(flushTask);
+            } catch (RejectedExecutionException e) {
+                // Event loop stopped, closing all connections.
+                throw new SecsException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, discarding any partially received message and
+     * any frames not written yet. Must be called from the event loop thread.
+     */
+    public void close() {
+        isClosed = true;
+        for (OutboundFrame frame : batch) {
+            queueDepth.decrementAndGet();
+            frame.release();
+        }
+        batch.clear();
+        batchBuffers.clear();
+        releaseQueue();
+        if (t8Timer != null) {
+            t8Timer.cancel();
+            t8Timer = null;
+        }
+        frameDecoder.reset();
+        if (!isReading) {
+            releaseReadBuffer();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Safe to ignore.
+        }
+        LOG.debug(String.format("Connection closed (writes: %d, frames: %d, max. batch size: %d)", writeCount, frameCount, maxBatchSize));
+    }
+
+    @Override
+    public void handleEvent(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    @Override
+    public void frameReceived(ByteBuffer header, ByteSource data) {
+        if (equipment.getConnection() != this) {
+            // Replaced or dropped by the equipment; not ours to handle.
+            LOG.debug("Received message on stale connection -- ignored");
+            if (equipment.getExecutor() != null && data != null) {
+                data.close();
+            }
+            return;
+        }
+        equipment.frameReceived(header, data);
+    }
+
+    /**
+     * Reads any available data and passes the completed frames to the
+     * equipment.
+     */
+    private void read() {
+        if (readBuffer == null) {
+            // Closed.
+            return;
+        }
+        int length = -1;
+        try {
+            length = channel.read(readBuffer);
+        } catch (IOException e) {
+            LOG.debug("Error reading from socket: " + e.getMessage());
+        }
+        if (length < 0) {
+            // Connection closed by remote host.
+            close();
+            equipment.connectionClosed(this);
+        } else if (length > 0) {
+            lastReceiveTime = System.nanoTime();
+            readBuffer.flip();
+            isReading = true;
+            try {
+                frameDecoder.decode(readBuffer);
+            } catch (SecsParseException e) {
+                // Framing lost; the connection cannot be recovered.
+                LOG.warn("Received invalid HSMS frame: " + e.getMessage());
+                close();
+                equipment.connectionClosed(this);
+            } catch (RuntimeException e) {
+                // Remaining received data discarded; framing lost.
+                LOG.error("Internal error while decoding received data", e);
+                close();
+                equipment.connectionClosed(this);
+            } finally {
+                isReading = false;
+                readBuffer.clear();
+                if (isClosed) {
+                    // Closed while decoding; frames referred to the buffer until now.
+                    releaseReadBuffer();
+                }
+            }
+            if (!isClosed && frameDecoder.isPartial() && t8Timer == null) {
+                startT8Timer(equipment.getT8Timeout() * 1000L);
+            }
+        }
+    }
+
+    /**
+     * Arms the T8 (Network Intercharacter) timer for a partially received
+     * frame.
+     * 
+     * @param delay
+     *            The delay in milliseconds.
+     */
+    private void startT8Timer(long delay) {
+        t8Timer = equipment.startTimer(new Runnable() {
+            @Override
+            public void run() {
+                t8Timer = null;
+                if (isClosed || !frameDecoder.isPartial()) {
+                    return;
+                }
+                long t8 = equipment.getT8Timeout() * 1000L;
+                long idle = System.currentTimeMillis() - frameDecoder.getLastReceiveTime();
+                if (idle >= t8) {
+                    LOG.warn("T8 timeout while receiving message -- disconnecting");
+                    close();
+                    equipment.connectionClosed(HsmsConnection.this);
+                } else {
+                    startT8Timer(t8 - idle);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Writes the queued frames, coalescing as many as possible into a single
+     * gathering write. Must be called from the event loop thread.
+     */
+    private void flush() {
+        // Reset first, so frames queued from now on schedule another flush.
+        isFlushScheduled.set(false);
+        if (isClosed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (batch.isEmpty() && !fillBatch()) {
+                    // All written.
+                    setWriteInterest(false);
+                    return;
+                }
+                channel.write(batchBuffers.toArray(new ByteBuffer[batchBuffers.size()]));
+                writeCount++;
+                while (!batch.isEmpty() && !batch.getFirst().hasRemaining()) {
+                    batch.removeFirst().release();
+                    queueDepth.decrementAndGet();
+                }
+                if (!batch.isEmpty()) {
+                    // Socket busy; continue when writable again.
+                    batchBuffers.clear();
+                    for (OutboundFrame frame : batch) {
+                        addBuffers(frame);
+                    }
+                    setWriteInterest(true);
+                    return;
+                }
+                batchBuffers.clear();
+            }
+        } catch (IOException e) {
+            LOG.debug("Error writing to socket: " + e.getMessage());
+            close();
+            equipment.connectionClosed(this);
+        }
+    }
+
+    /**
+     * Takes the next batch of frames from the write queue.
+     * 
+     * @return True if any frames were taken, otherwise false.
+     */
+    private boolean fillBatch() {
+        OutboundFrame frame = writeQueue.poll();
+        while (frame != null) {
+            batch.add(frame);
+            addBuffers(frame);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                break;
+            }
+            frame = writeQueue.poll();
+        }
+        int batchSize = batch.size();
+        if (batchSize > 0) {
+            frameCount += batchSize;
+            if (batchSize > maxBatchSize) {
+                maxBatchSize = batchSize;
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Adds the remaining buffers of a frame to the current gathering write.
+     * 
+     * @param frame
+     *            The frame.
+     */
+    private void addBuffers(OutboundFrame frame) {
+        for (ByteBuffer buffer : frame.getBuffers()) {
+            if (buffer.hasRemaining()) {
+                batchBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns all frames in the write queue to the pool.
+     */
+    private void releaseQueue() {
+        OutboundFrame frame = writeQueue.poll();
+        while (frame != null) {
+            queueDepth.decrementAndGet();
+            frame.release();
+            frame = writeQueue.poll();
+        }
+    }
+
+    /**
+     * Returns the receive buffer to the pool.
+     */
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Sets whether to wait for the socket to become writable.
+     * 
+     * @param isWriteInterest
+     *            True to wait for the socket to become writable, otherwise
+     *            false.
+     */
+    private void setWriteInterest(boolean isWriteInterest) {
+        if (isWriteInterest != this.isWriteInterest && key != null && key.isValid()) {
+            key.interestOps((isWriteInterest) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            this.isWriteInterest = isWriteInterest;
+        }
+    }
+
+}
@@ -17,6 +17,10 @@
 
 package org.ozsoft.secs4j;
 
+import java.nio.ByteBuffer;
+
+import org.ozsoft.secs4j.util.BufferPool;
+
 /**
  * Root class of all SECS messages.
  * 
@@ -98,4 +102,58 @@ public abstract class Message {
      */
     /* package */abstract byte[] toByteArray() throws SecsParseException;
 
+    /**
+     * Serializes the message into a frame, using a buffer leased from a pool
+     * if specified.
+     * 
+     * @param pool
+     *            The buffer pool, or <code>null</code> to allocate an exactly
+     *            sized heap buffer.
+     * 
+     * @return The frame.
+     * 
+     * @throws SecsParseException
+     *             If the messag could not be serialized.
+     */
+    /* package */abstract OutboundFrame encode(BufferPool pool) throws SecsParseException;
+
+    /**
+     * Returns a buffer for serializing a message.
+     * 
+     * @param pool
+     *            The buffer pool, or <code>null</code> to allocate a heap
+     *            buffer.
+     * @param length
+     *            The length in bytes.
+     * 
+     * @return The buffer, with a limit of the specified length.
+     */
+    /* package */static ByteBuffer allocate(BufferPool pool, int length) {
+        return (pool != null) ? pool.acquire(length) : ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Writes the Length field and message header.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param dataLength
+     *            The length of the message data in bytes.
+     * @param headerByte2
+     *            The value of the Header Byte 2 field.
+     * @param headerByte3
+     *            The value of the Header Byte 3 field.
+     * @param sType
+     *            The value of the SType field.
+     */
+    /* package */final void writeHeader(ByteBuffer buffer, int dataLength, int headerByte2, int headerByte3, SType sType) {
+        buffer.putInt(SecsConstants.HEADER_LENGTH + dataLength);
+        buffer.putShort((short) sessionId);
+        buffer.put((byte) headerByte2);
+        buffer.put((byte) headerByte3);
+        buffer.put((byte) PType.SECS_II.getValue());
+        buffer.put((byte) sType.getValue());
+        buffer.putInt((int) transactionId);
+    }
+
 }
@@ -17,7 +17,10 @@
 
 package org.ozsoft.secs4j;
 
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import org.ozsoft.secs4j.format.A;
 import org.ozsoft.secs4j.format.B;
@@ -34,7 +37,8 @@ import org.ozsoft.secs4j.format.U1;
 import org.ozsoft.secs4j.format.U2;
 import org.ozsoft.secs4j.format.U4;
 import org.ozsoft.secs4j.format.U8;
-import org.ozsoft.secs4j.util.ConversionUtils;
+import org.ozsoft.secs4j.util.ByteSource;
+import org.ozsoft.secs4j.util.HeapByteSource;
 
 /**
  * SECS message parser, responsible for the low-level parsing of incoming messages and SML text.
@@ -49,16 +53,6 @@ public class MessageParser {
     /** The minimum length of a (header-only) message. */
     private static final int MIN_LENGTH = LENGTH_LENGTH + SecsConstants.HEADER_LENGTH;
     
-    /** The maximum supported length of a message in bytes. */
-    //TODO: Support large messages (up to 4 GB).
-    private static final long MAX_LENGTH = 256 * 1024; // 256 kB
-    
-    /** The length of the Session ID field in bytes. */
-    private static final int SESSION_ID_LENGTH = U2.SIZE;
-    
-    /** The length of the System Bytes (Transaction ID) field in bytes. */
-    private static final int SYSTEM_BYTES_LENGTH = U4.SIZE;
-    
     /** Bit mask for a data message's Stream field. */
     private static final int STREAM_MASK = 0x7f;
 
@@ -98,157 +92,372 @@ public class MessageParser {
      * @throws SecsException
      *             If the message could not be parsed because it is invalid.
      */
-    public static Message parseMessage(byte[] data, int length, Map<Integer, Class<? extends SecsMessage>> messageTypes) throws SecsException {
+    public static Message parseMessage(byte[] data, int length, MessageRegistry messageTypes) throws SecsException {
+        return parseMessage(data, 0, length, messageTypes);
+    }
+    
+    /**
+     * Parses a SECS message from a buffer with a single, complete frame.
+     * 
+     * @param frame
+     *            The buffer with the message, starting at its position.
+     * @param messageTypes
+     *            The supported data message types (e.g. S1F13).
+     * 
+     * @return The SECS message.
+     * 
+     * @throws SecsException
+     *             If the message could not be parsed because it is invalid.
+     */
+    public static Message parseMessage(ByteBuffer frame, MessageRegistry messageTypes) throws SecsException {
+        if (frame.hasArray()) {
+            return parseMessage(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), messageTypes);
+        } else {
+            byte[] data = new byte[frame.remaining()];
+            frame.duplicate().get(data);
+            return parseMessage(data, 0, data.length, messageTypes);
+        }
+    }
+    
+    /**
+     * Parses a SECS message from its header and separately stored message data
+     * (e.g. a large message buffered in a temporary file).
+     * 
+     * @param header
+     *            The buffer with the Length field and message header (14
+     *            bytes), starting at its position.
+     * @param text
+     *            The message data, or <code>null</code> for a header-only
+     *            message.
+     * @param messageTypes
+     *            The supported data message types (e.g. S1F13).
+     * 
+     * @return The SECS message.
+     * 
+     * @throws SecsException
+     *             If the message could not be parsed because it is invalid.
+     */
+    public static Message parseMessage(ByteBuffer header, ByteSource text, MessageRegistry messageTypes) throws SecsException {
+        return parseMessage(header, text, messageTypes, false);
+    }
+    
+    /**
+     * Parses a SECS message from its header and separately stored message
+     * data, optionally decoding the message data lazily. <br />
+     * <br />
+     * 
+     * With lazy decoding, the items of an L are only decoded when accessed,
+     * directly from the message data; unvisited items only cost an entry in an
+     * offset index. The data item passed to
+     * {@link SecsMessage#parseData(Data)} is then only valid during that call;
+     * afterwards, accessing items that were not decoded yet throws an
+     * <code>IllegalStateException</code>.
+     * 
+     * @param header
+     *            The buffer with the Length field and message header (14
+     *            bytes), starting at its position.
+     * @param text
+     *            The message data, or <code>null</code> for a header-only
+     *            message.
+     * @param messageTypes
+     *            The supported data message types (e.g. S1F13).
+     * @param lazy
+     *            Whether to decode the message data lazily.
+     * 
+     * @return The SECS message.
+     * 
+     * @throws SecsException
+     *             If the message could not be parsed because it is invalid.
+     */
+    public static Message parseMessage(ByteBuffer header, ByteSource text, MessageRegistry messageTypes, boolean lazy) throws SecsException {
+        if (header.remaining() < MIN_LENGTH) {
+            throw new SecsParseException(String.format("Incomplete message (message length: %d)", header.remaining()));
+        }
+        return parseMessage(header, header.position(), text, messageTypes, lazy);
+    }
+    
+    private static Message parseMessage(byte[] data, int offset, int length, MessageRegistry messageTypes) throws SecsException {
         // Determine message length.
         if (length < SecsConstants.HEADER_LENGTH) {
             throw new SecsParseException(String.format("Incomplete message (message length: %d)", length));
         }
-        byte[] lengthField = new byte[LENGTH_LENGTH];
-        System.arraycopy(data, 0, lengthField, 0, LENGTH_LENGTH);
-        long messageLength = new U4(lengthField).getValue(0);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long messageLength = buf.getInt(offset) & 0xffffffffL;
         if (length < (messageLength + LENGTH_LENGTH)) {
             throw new SecsParseException(String.format("Incomplete message (declared length: %d; actual length: %d)",
                     messageLength + LENGTH_LENGTH, length));
         }
-        if (messageLength > MAX_LENGTH) {
-            throw new SecsParseException(String.format("Message too large (%d bytes)", messageLength));
+        if (messageLength < SecsConstants.HEADER_LENGTH) {
+            throw new SecsParseException(String.format("Invalid message length: %d", messageLength));
+        }
+        ByteSource text = null;
+        if (messageLength > SecsConstants.HEADER_LENGTH) {
+            text = new HeapByteSource(ByteBuffer.wrap(data, offset + MIN_LENGTH, (int) messageLength - SecsConstants.HEADER_LENGTH));
+        }
+        return parseMessage(buf, offset, text, messageTypes, false);
+    }
+    
+    private static Message parseMessage(ByteBuffer header, int offset, ByteSource text, MessageRegistry messageTypes, boolean lazy) throws SecsException {
+        // Check message length.
+        long messageLength = header.getInt(offset) & 0xffffffffL;
+        long dataLength = (text != null) ? text.length() : 0L;
+        if (messageLength != SecsConstants.HEADER_LENGTH + dataLength) {
+            throw new SecsParseException(String.format("Incomplete message (declared length: %d; actual length: %d)",
+                    messageLength + LENGTH_LENGTH, MIN_LENGTH + dataLength));
         }
         
-        // Parse message header.
+        // Parse message header (read in place; no copies).
+        offset += LENGTH_LENGTH;
         
         // Parse Session ID.
-        byte[] sessionIdBuf = new byte[SESSION_ID_LENGTH];
-        System.arraycopy(data, LENGTH_LENGTH + POS_SESSIONID, sessionIdBuf, 0, SESSION_ID_LENGTH);
-        int sessionId = (int) ConversionUtils.bytesToUnsignedInteger(sessionIdBuf);
+        int sessionId = header.getShort(offset + POS_SESSIONID) & 0xffff;
         
         // Get Header Bytes.
-        byte headerByte2 = data[LENGTH_LENGTH + POS_HEADERBYTE2];
-        byte headerByte3 = data[LENGTH_LENGTH + POS_HEADERBYTE3];
+        byte headerByte2 = header.get(offset + POS_HEADERBYTE2);
+        byte headerByte3 = header.get(offset + POS_HEADERBYTE3);
         
         // Parse PType.
-        byte pTypeByte = data[LENGTH_LENGTH + POS_PTYPE];
+        byte pTypeByte = header.get(offset + POS_PTYPE);
         PType pType = PType.parse(pTypeByte);
         if (pType != PType.SECS_II) {
             throw new SecsParseException(String.format("Unsupported protocol; not SECS-II (PType: %d)", pTypeByte));
         }
         
         // Parse SType.
-        byte sTypeByte = data[LENGTH_LENGTH + POS_STYPE];
+        byte sTypeByte = header.get(offset + POS_STYPE);
         SType sType = SType.parse(sTypeByte);
         if (sType == SType.UNKNOWN) {
             throw new SecsParseException(String.format("Unsupported message type (SType: %02x)", sTypeByte));
         }
         
         // Parse Transaction ID.
-        byte[] transactionIdBuf = new byte[SYSTEM_BYTES_LENGTH];
-        System.arraycopy(data, LENGTH_LENGTH + POS_SYSTEMBYTES, transactionIdBuf, 0, SYSTEM_BYTES_LENGTH);
-        long transactionId = ConversionUtils.bytesToUnsignedInteger(transactionIdBuf);
+        long transactionId = header.getInt(offset + POS_SYSTEMBYTES) & 0xffffffffL;
         
         if (sType == SType.DATA) {
-            int dataLength = (int) (messageLength - SecsConstants.HEADER_LENGTH);
-            Data<?> text = null;
-            if (dataLength > 0) {
-                byte[] textBytes = new byte[dataLength];
-                System.arraycopy(data, MIN_LENGTH, textBytes, 0, dataLength);
-                text = parseData(textBytes, 0);
-            }
+            // Reject unsupported message types before decoding any data.
             int stream = headerByte2 & STREAM_MASK;
-            int function = headerByte3;
-            Class<? extends SecsMessage> messageType = messageTypes.get(stream * 256 + function);
-            if (messageType != null) {
+            int function = headerByte3 & 0xff;
+            SecsMessage dataMessage;
+            try {
+                dataMessage = messageTypes.newMessage(stream, function);
+            } catch (Exception e) {
+                // Internal error (faulty message factory).
+                throw new SecsParseException(String.format("Could not instantiate message type S%dF%d", stream, function), e);
+            }
+            if (dataMessage == null) {
+                throw new UnsupportedMessageException(stream, function, transactionId);
+            }
+            if (dataMessage.hasCodec()) {
+                // Decode directly into the message, without data items.
+                if (dataLength > Integer.MAX_VALUE) {
+                    throw new SecsParseException("Message data too large: " + dataLength);
+                }
+                dataMessage.setSessionId(sessionId);
+                dataMessage.setTransactionId(transactionId);
                 try {
-                    SecsMessage dataMessage = messageType.newInstance();
-                    dataMessage.setSessionId(sessionId);
-                    dataMessage.setTransactionId(transactionId);
-                    dataMessage.parseData(text);
-                    return dataMessage;
-                } catch (SecsParseException e) {
-                    // Invalid data; just re-throw parse exception.
-                    throw e;
-                } catch (Exception e) {
-                    // Internal error (should never happen).
-                    throw new SecsParseException("Could not instantiate message type: " + messageType, e);
+                    dataMessage.decodeData((dataLength > 0) ? text.slice(0L, (int) dataLength) : ByteBuffer.allocate(0));
+                } catch (UncheckedIOException e) {
+                    throw new SecsParseException("Could not read message data", e.getCause());
+                } catch (RuntimeException e) {
+                    // Data not as expected by the codec (e.g. truncated).
+                    throw new SecsParseException("Invalid message data for " + dataMessage.getType(), e);
+                }
+                return dataMessage;
+            }
+            Data<?> dataItem = null;
+            try {
+                if (dataLength > 0) {
+                    dataItem = (lazy) ? parseDataLazy(text) : parseData(text, 0L);
+                }
+                dataMessage.setSessionId(sessionId);
+                dataMessage.setTransactionId(transactionId);
+                dataMessage.parseData(dataItem);
+                return dataMessage;
+            } catch (UncheckedIOException e) {
+                throw new SecsParseException("Could not read message data", e.getCause());
+            } catch (SecsParseException e) {
+                // Invalid data; just re-throw parse exception.
+                throw e;
+            } catch (RuntimeException e) {
+                // Data not as expected by the message type.
+                throw new SecsParseException("Invalid message data for " + dataMessage.getType(), e);
+            } finally {
+                if (dataItem instanceof LazyL) {
+                    // Message data is about to be released.
+                    ((LazyL) dataItem).index.release();
                 }
-            } else {
-                throw new UnsupportedMessageException(stream, function, transactionId);
             }
         } else {
             return new ControlMessage(sessionId, headerByte2, headerByte3, sType, transactionId);
         }
     }
     
-    private static Data<?> parseData(byte[] data, int offset) throws SecsParseException {
-        if (data.length < 2) {
-            throw new SecsParseException("Invalid data length: " + data.length);
+    /**
+     * Decodes a data item from a buffer.
+     * 
+     * @param data
+     *            The buffer with the data item, from its position to its limit.
+     * 
+     * @return The data item, or <code>null</code> if the buffer is empty.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    /* package */static Data<?> decodeData(ByteBuffer data) throws SecsParseException {
+        return (data.hasRemaining()) ? parseData(new HeapByteSource(data), 0L) : null;
+    }
+    
+    /**
+     * Decodes a data item in a single pass.
+     * 
+     * @param data
+     *            The message data.
+     * @param offset
+     *            The offset of the data item.
+     * 
+     * @return The data item.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    private static Data<?> parseData(ByteSource data, long offset) throws SecsParseException {
+        Cursor cursor = new Cursor(data, offset);
+        return parseItem(cursor);
+    }
+    
+    /**
+     * Decodes the message data lazily. <br />
+     * <br />
+     * 
+     * The item headers of the complete message data are validated and indexed
+     * up front, but the items of an L are only decoded when accessed.
+     * 
+     * @param data
+     *            The message data.
+     * 
+     * @return The (root) data item.
+     * 
+     * @throws SecsParseException
+     *             If the message data is invalid.
+     */
+    private static Data<?> parseDataLazy(ByteSource data) throws SecsParseException {
+        if (data.length() > 0 && (data.get(0L) & 0xfc) != L.FORMAT_CODE) {
+            // Single item; nothing to defer.
+            return parseData(data, 0L);
+        }
+        ItemIndex index = new ItemIndex(data);
+        indexItem(new Cursor(data, 0L), index);
+        return decodeItem(index, 0);
+    }
+    
+    /**
+     * Reads the item header at the cursor's position, advancing the cursor to
+     * the item's value.
+     * 
+     * @param cursor
+     *            The cursor.
+     * 
+     * @throws SecsParseException
+     *             If the item header is invalid.
+     */
+    private static void readHeader(Cursor cursor) throws SecsParseException {
+        ByteSource data = cursor.data;
+        long offset = cursor.position;
+        if (data.length() < offset + 2) {
+            throw new SecsParseException("Invalid data length: " + (data.length() - offset));
         }
         
-        int formatByte = data[offset];
+        int formatByte = data.get(offset);
         int formatCode = formatByte & 0xfc;
         int noOfLengthBytes = formatByte & 0x03;
         if (noOfLengthBytes < 1 || noOfLengthBytes > LENGTH_LENGTH) {
             throw new SecsParseException("Invalid number of length bytes: " + noOfLengthBytes);
         }
-        if (data.length < noOfLengthBytes + 1) {
+        if (data.length() < offset + 1 + noOfLengthBytes) {
             throw new SecsParseException("Incomplete message data");
         }
-        int length = data[offset + 1];
-        if (noOfLengthBytes > 1) {
-            length |= (data[offset + 2] << 8);
-        }
-        if (noOfLengthBytes > 2) {
-            length |= (data[offset + 3] << 16);
+        long itemLength = 0L;
+        for (int i = 0; i < noOfLengthBytes; i++) {
+            itemLength |= (data.get(offset + 1 + i) & 0xffL) << (i * 8);
         }
-        if (noOfLengthBytes > 3) {
-            length |= (data[offset + 4] << 24);
+        if (itemLength > Integer.MAX_VALUE) {
+            throw new SecsParseException("Data item too large: " + itemLength);
         }
-        if (data.length < offset + 2 + length) {
+        offset += (1 + noOfLengthBytes);
+        if (formatCode != L.FORMAT_CODE && data.length() < offset + itemLength) {
             throw new SecsParseException("Incomplete message data");
         }
+        cursor.position = offset;
+        cursor.formatCode = formatCode;
+        cursor.length = (int) itemLength;
+    }
+    
+    /**
+     * Decodes the data item at the cursor's position, advancing the cursor past
+     * the data item.
+     * 
+     * @param cursor
+     *            The cursor.
+     * 
+     * @return The data item.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    private static Data<?> parseItem(Cursor cursor) throws SecsParseException {
+        readHeader(cursor);
+        int formatCode = cursor.formatCode;
+        int length = cursor.length;
+        long offset = cursor.position;
+        
+        if (formatCode == L.FORMAT_CODE) {
+            // Length is the number of child items; these advance the cursor.
+            return parseL(cursor, length);
+        }
+        
+        ByteBuffer value = cursor.data.slice(offset, length);
+        cursor.position = offset + length;
         
         Data<?> dataItem = null;
-        offset += (1 + noOfLengthBytes);
         switch (formatCode) {
-            case L.FORMAT_CODE:
-                dataItem = parseL(data, offset, length);
-                break;
             case BOOLEAN.FORMAT_CODE:
-                dataItem = parseBoolean(data, offset, length);
+                dataItem = parseBoolean(value, length);
                 break;
             case B.FORMAT_CODE:
-                dataItem = parseB(data, offset, length);
+                dataItem = parseB(value, length);
                 break;
             case A.FORMAT_CODE:
-                dataItem = parseA(data, offset, length);
+                dataItem = parseA(value, length);
                 break;
             case I1.FORMAT_CODE:
-                dataItem = parseI1(data, offset, length);
+                dataItem = parseI1(value);
                 break;
             case I2.FORMAT_CODE:
-                dataItem = parseI2(data, offset, length);
+                dataItem = parseI2(value);
                 break;
             case I4.FORMAT_CODE:
-                dataItem = parseI4(data, offset, length);
+                dataItem = parseI4(value);
                 break;
             case I8.FORMAT_CODE:
-                dataItem = parseI8(data, offset, length);
+                dataItem = parseI8(value);
                 break;
             case U1.FORMAT_CODE:
-                dataItem = parseU1(data, offset, length);
+                dataItem = parseU1(value);
                 break;
             case U2.FORMAT_CODE:
-                dataItem = parseU2(data, offset, length);
+                dataItem = parseU2(value);
                 break;
             case U4.FORMAT_CODE:
-                dataItem = parseU4(data, offset, length);
+                dataItem = parseU4(value);
                 break;
             case U8.FORMAT_CODE:
-                dataItem = parseU8(data, offset, length);
+                dataItem = parseU8(value);
                 break;
             case F4.FORMAT_CODE:
-                dataItem = parseF4(data, offset, length);
+                dataItem = parseF4(value);
                 break;
             case F8.FORMAT_CODE:
-                dataItem = parseF8(data, offset, length);
+                dataItem = parseF8(value);
                 break;
             default:
                 throw new IllegalArgumentException(String.format("Invalid format code in message data: %02x", formatCode));
@@ -256,145 +465,169 @@ public class MessageParser {
         return dataItem;
     }
     
-    private static L parseL(byte[] data, int offset, int length) throws SecsParseException {
+    /**
+     * Validates and indexes the item headers of the data item at the cursor's
+     * position, advancing the cursor past the data item.
+     * 
+     * @param cursor
+     *            The cursor.
+     * @param index
+     *            The item index.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    private static void indexItem(Cursor cursor, ItemIndex index) throws SecsParseException {
+        int node = index.add(cursor.position);
+        readHeader(cursor);
+        int formatCode = cursor.formatCode;
+        int length = cursor.length;
+        if (formatCode == L.FORMAT_CODE) {
+            for (int i = 0; i < length; i++) {
+                indexItem(cursor, index);
+            }
+        } else {
+            if (formatCode == BOOLEAN.FORMAT_CODE && length != BOOLEAN.LENGTH) {
+                throw new SecsParseException("Invalid BOOLEAN length: " + length);
+            }
+            switch (formatCode) {
+                case B.FORMAT_CODE:
+                case BOOLEAN.FORMAT_CODE:
+                case A.FORMAT_CODE:
+                case I1.FORMAT_CODE:
+                case I2.FORMAT_CODE:
+                case I4.FORMAT_CODE:
+                case I8.FORMAT_CODE:
+                case U1.FORMAT_CODE:
+                case U2.FORMAT_CODE:
+                case U4.FORMAT_CODE:
+                case U8.FORMAT_CODE:
+                case F4.FORMAT_CODE:
+                case F8.FORMAT_CODE:
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Invalid format code in message data: %02x", formatCode));
+            }
+            cursor.position += length;
+        }
+        index.ends[node] = index.size;
+    }
+    
+    /**
+     * Decodes an indexed data item; an L is returned as a lazy view.
+     * 
+     * @param index
+     *            The item index.
+     * @param node
+     *            The index node of the data item.
+     * 
+     * @return The data item.
+     */
+    private static Data<?> decodeItem(ItemIndex index, int node) {
+        if (index.isReleased) {
+            throw new IllegalStateException("Message data no longer available");
+        }
+        Cursor cursor = new Cursor(index.data, index.offsets[node]);
+        try {
+            if ((index.data.get(cursor.position) & 0xfc) == L.FORMAT_CODE) {
+                readHeader(cursor);
+                return new LazyL(index, node, cursor.length);
+            } else {
+                return parseItem(cursor);
+            }
+        } catch (SecsParseException e) {
+            // Already validated (should never happen).
+            throw new IllegalStateException("Invalid message data", e);
+        }
+    }
+    
+    private static L parseL(Cursor cursor, int length) throws SecsParseException {
         L l = new L();
         for (int i = 0; i < length; i++) {
-            Data<?> item = parseData(data, offset);
-            l.addItem(item);
-            offset += item.toByteArray().length;
+            l.addItem(parseItem(cursor));
         }
         return l;
     }
     
-    private static B parseB(byte[] data, int offset, int length) {
-        B b = new B();
-        for (int i = 0; i < length; i++) {
-            b.add(data[offset + i]);
-        }
-        return b;
+    private static B parseB(ByteBuffer value, int length) {
+        // Copy in bulk; the message data is only valid while being parsed.
+        byte[] bytes = new byte[length];
+        value.get(bytes);
+        return B.wrap(bytes);
     }
 
-    private static BOOLEAN parseBoolean(byte[] data, int offset, int length) throws SecsParseException {
+    private static BOOLEAN parseBoolean(ByteBuffer value, int length) throws SecsParseException {
         if (length != BOOLEAN.LENGTH) {
             throw new SecsParseException("Invalid BOOLEAN length: " + length);
         }
-        return new BOOLEAN(data[offset]);
+        return new BOOLEAN(value.get(0));
     }
 
-    private static A parseA(byte[] data, int offset, int length) {
-        StringBuilder sb = new StringBuilder();
+    private static A parseA(ByteBuffer value, int length) {
+        StringBuilder sb = new StringBuilder(length);
         for (int i = 0; i < length; i++) {
-            sb.append((char) data[offset + i]);
+            sb.append((char) value.get(i));
         }
         return new A(sb.toString());
     }
 
-    private static I1 parseI1(byte[] data, int offset, int length) {
-        int noOfValues = length / I1.SIZE;
+    private static I1 parseI1(ByteBuffer value) {
         I1 i1 = new I1();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[I1.SIZE];
-            System.arraycopy(data, offset + i * I1.SIZE, valueData, 0, I1.SIZE);
-            i1.addValue(valueData);
-        }
+        i1.addAll(value);
         return i1;
     }
     
-    private static I2 parseI2(byte[] data, int offset, int length) {
-        int noOfValues = length / I2.SIZE;
+    private static I2 parseI2(ByteBuffer value) {
         I2 i2 = new I2();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[I2.SIZE];
-            System.arraycopy(data, offset + i * I2.SIZE, valueData, 0, I2.SIZE);
-            i2.addValue(valueData);
-        }
+        i2.addAll(value);
         return i2;
     }
     
-    private static I4 parseI4(byte[] data, int offset, int length) {
-        int noOfValues = length / I4.SIZE;
+    private static I4 parseI4(ByteBuffer value) {
         I4 i4 = new I4();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[I4.SIZE];
-            System.arraycopy(data, offset + i * I4.SIZE, valueData, 0, I4.SIZE);
-            i4.addValue(valueData);
-        }
+        i4.addAll(value);
         return i4;
     }
     
-    private static I8 parseI8(byte[] data, int offset, int length) {
-        int noOfValues = length / I8.SIZE;
+    private static I8 parseI8(ByteBuffer value) {
         I8 i8 = new I8();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[I8.SIZE];
-            System.arraycopy(data, offset + i * I8.SIZE, valueData, 0, I8.SIZE);
-            i8.addValue(valueData);
-        }
+        i8.addAll(value);
         return i8;
     }
     
-    private static U1 parseU1(byte[] data, int offset, int length) {
+    private static U1 parseU1(ByteBuffer value) {
         U1 u1 = new U1();
-        for (int i = 0; i < length; i++) {
-            byte[] valueData = new byte[U1.SIZE];
-            System.arraycopy(data, offset + i * U1.SIZE, valueData, 0, U1.SIZE);
-            u1.addValue(valueData);
-        }
+        u1.addAll(value);
         return u1;
     }
     
-    private static U2 parseU2(byte[] data, int offset, int length) {
-        int noOfValues = length / U2.SIZE;
+    private static U2 parseU2(ByteBuffer value) {
         U2 u2 = new U2();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[U2.SIZE];
-            System.arraycopy(data, offset + i * U2.SIZE, valueData, 0, U2.SIZE);
-            u2.addValue(valueData);
-        }
+        u2.addAll(value);
         return u2;
     }
     
-    private static U4 parseU4(byte[] data, int offset, int length) {
-        int noOfValues = length / U4.SIZE;
+    private static U4 parseU4(ByteBuffer value) {
         U4 u4 = new U4();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[U4.SIZE];
-            System.arraycopy(data, offset + i * U4.SIZE, valueData, 0, U4.SIZE);
-            u4.addValue(valueData);
-        }
+        u4.addAll(value);
         return u4;
     }
     
-    private static U8 parseU8(byte[] data, int offset, int length) {
-        int noOfValues = length / U8.SIZE;
+    private static U8 parseU8(ByteBuffer value) {
         U8 u8 = new U8();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[U8.SIZE];
-            System.arraycopy(data, offset + i * U8.SIZE, valueData, 0, U8.SIZE);
-            u8.addValue(valueData);
-        }
+        u8.addAll(value);
         return u8;
     }
     
-    private static F4 parseF4(byte[] data, int offset, int length) {
-        int noOfValues = length / F4.SIZE;
+    private static F4 parseF4(ByteBuffer value) {
         F4 f4 = new F4();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[F4.SIZE];
-            System.arraycopy(data, offset + i * F4.SIZE, valueData, 0, F4.SIZE);
-            f4.addValue(valueData);
-        }
+        f4.addAll(value);
         return f4;
     }
     
-    private static F8 parseF8(byte[] data, int offset, int length) {
-        int noOfValues = length / F8.SIZE;
+    private static F8 parseF8(ByteBuffer value) {
         F8 f8 = new F8();
-        for (int i = 0; i < noOfValues; i++) {
-            byte[] valueData = new byte[F8.SIZE];
-            System.arraycopy(data, offset + i * F8.SIZE, valueData, 0, F8.SIZE);
-            f8.addValue(valueData);
-        }
+        f8.addAll(value);
         return f8;
     }
     
@@ -675,4 +908,225 @@ public class MessageParser {
         return l;
     }
 
+    /**
+     * Read position in the message data, shared by nested data items.
+     * 
+     * @author Oscar Stigter
+     */
+    private static class Cursor {
+        
+        /** The message data. */
+        private final ByteSource data;
+        
+        /** The position of the next data item. */
+        private long position;
+        
+        /** The format code of the last read item header. */
+        private int formatCode;
+        
+        /** The length of the last read item header. */
+        private int length;
+        
+        /**
+         * Constructor.
+         * 
+         * @param data
+         *            The message data.
+         * @param position
+         *            The initial position.
+         */
+        public Cursor(ByteSource data, long position) {
+            this.data = data;
+            this.position = position;
+        }
+        
+    }
+    
+    /**
+     * Offset index of the (pre-order) data items in the message data.
+     * 
+     * @author Oscar Stigter
+     */
+    private static class ItemIndex {
+        
+        /** The initial capacity. */
+        private static final int INITIAL_CAPACITY = 16;
+        
+        /** The message data. */
+        private final ByteSource data;
+        
+        /** The offsets of the item headers. */
+        private long[] offsets = new long[INITIAL_CAPACITY];
+        
+        /** The node following the subtree of each item. */
+        private int[] ends = new int[INITIAL_CAPACITY];
+        
+        /** The number of items. */
+        private int size;
+        
+        /** Whether the message data has been released. */
+        private volatile boolean isReleased;
+        
+        /**
+         * Constructor.
+         * 
+         * @param data
+         *            The message data.
+         */
+        public ItemIndex(ByteSource data) {
+            this.data = data;
+        }
+        
+        /**
+         * Adds an item.
+         * 
+         * @param offset
+         *            The offset of the item header.
+         * 
+         * @return The node of the item.
+         */
+        public int add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            offsets[size] = offset;
+            return size++;
+        }
+        
+        /**
+         * Marks the message data as released.
+         */
+        public void release() {
+            isReleased = true;
+        }
+        
+    }
+    
+    /**
+     * L data item whose items are decoded on first access. <br />
+     * <br />
+     * 
+     * Any modification first decodes all items.
+     * 
+     * @author Oscar Stigter
+     */
+    private static class LazyL extends L {
+        
+        /** The item index. */
+        private final ItemIndex index;
+        
+        /** The index node of this L. */
+        private final int node;
+        
+        /** The number of items. */
+        private final int count;
+        
+        /** The index nodes of the items, determined on first access. */
+        private int[] children;
+        
+        /** The items decoded so far. */
+        private Data<?>[] items;
+        
+        /** Whether all items have been decoded into the list. */
+        private boolean isMaterialized;
+        
+        /**
+         * Constructor.
+         * 
+         * @param index
+         *            The item index.
+         * @param node
+         *            The index node of this L.
+         * @param count
+         *            The number of items.
+         */
+        public LazyL(ItemIndex index, int node, int count) {
+            this.index = index;
+            this.node = node;
+            this.count = count;
+        }
+        
+        @Override
+        public Data<?> getItem(int i) {
+            if (isMaterialized) {
+                return super.getItem(i);
+            }
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+            }
+            if (children == null) {
+                children = new int[count];
+                items = new Data<?>[count];
+                int child = node + 1;
+                for (int j = 0; j < count; j++) {
+                    children[j] = child;
+                    child = index.ends[child];
+                }
+            }
+            if (items[i] == null) {
+                items[i] = decodeItem(index, children[i]);
+            }
+            return items[i];
+        }
+        
+        @Override
+        public void addItem(Data<?> item) {
+            materialize();
+            super.addItem(item);
+        }
+        
+        @Override
+        public List<Data<?>> getValue() {
+            materialize();
+            return super.getValue();
+        }
+        
+        @Override
+        public void setValue(List<Data<?>> value) {
+            isMaterialized = true;
+            children = null;
+            items = null;
+            super.setValue(value);
+        }
+        
+        @Override
+        public int length() {
+            return (isMaterialized) ? super.length() : count;
+        }
+        
+        @Override
+        public int encodedLength() {
+            materialize();
+            return super.encodedLength();
+        }
+        
+        @Override
+        public void writeTo(ByteBuffer buffer) {
+            materialize();
+            super.writeTo(buffer);
+        }
+        
+        @Override
+        public String toSml() {
+            materialize();
+            return super.toSml();
+        }
+        
+        /**
+         * Decodes all items into the list.
+         */
+        private void materialize() {
+            if (!isMaterialized) {
+                for (int i = 0; i < count; i++) {
+                    super.addItem(getItem(i));
+                }
+                isMaterialized = true;
+                children = null;
+                items = null;
+            }
+        }
+        
+    }
+    
 }
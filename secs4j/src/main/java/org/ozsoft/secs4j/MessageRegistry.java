@@ -0,0 +1,228 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.lang.reflect.Constructor;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the supported data message types, by stream and function. <br />
+ * <br />
+ * 
+ * Each message type is registered with a factory creating new instances, so
+ * messages are instantiated without reflection. Factories are stored in a flat
+ * table per stream, indexed by function, for constant time lookups. <br />
+ * <br />
+ * 
+ * Lookups are lock-free; registrations (typically during initialization)
+ * replace the affected table, so they never disturb concurrent lookups.
+ * 
+ * @author Oscar Stigter
+ */
+public class MessageRegistry {
+
+    /** The number of streams (0 to 127). */
+    private static final int NO_OF_STREAMS = 128;
+
+    /** The number of functions per stream (0 to 255). */
+    private static final int NO_OF_FUNCTIONS = 256;
+
+    /** The message factories, by stream and function. */
+    private volatile Supplier<?>[][] factories = new Supplier<?>[NO_OF_STREAMS][];
+
+    /**
+     * Registers a message type.
+     * 
+     * @param factory
+     *            The factory creating new messages of the type.
+     * 
+     * @return The registered message type (an instance created by the factory).
+     */
+    public SecsMessage register(Supplier<? extends SecsMessage> factory) {
+        SecsMessage message = factory.get();
+        register(message.getStream(), message.getFunction(), factory);
+        return message;
+    }
+
+    /**
+     * Registers a message type by its class, which must have a public no-arg
+     * constructor. <br />
+     * <br />
+     * 
+     * Prefer {@link #register(Supplier)}, which avoids reflection when
+     * instantiating messages.
+     * 
+     * @param messageType
+     *            The message type.
+     * 
+     * @return The registered message type (a new instance).
+     * 
+     * @throws IllegalArgumentException
+     *             If the message type has no public no-arg constructor.
+     * @throws IllegalStateException
+     *             If the message type could not be instantiated.
+     */
+    public SecsMessage register(Class<? extends SecsMessage> messageType) {
+        return register(newFactory(messageType));
+    }
+
+    /**
+     * Registers a message type by its stream and function.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * @param factory
+     *            The factory creating new messages of the type.
+     */
+    public synchronized void register(int stream, int function, Supplier<? extends SecsMessage> factory) {
+        checkMessageId(stream, function);
+        if (factory == null) {
+            throw new IllegalArgumentException("Null factory");
+        }
+        Supplier<?>[][] factories = this.factories.clone();
+        Supplier<?>[] functions = factories[stream];
+        factories[stream] = (functions != null) ? functions.clone() : new Supplier<?>[NO_OF_FUNCTIONS];
+        factories[stream][function] = factory;
+        this.factories = factories;
+    }
+
+    /**
+     * Unregisters a message type.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * 
+     * @return True if the message type was registered, otherwise false.
+     */
+    public synchronized boolean unregister(int stream, int function) {
+        checkMessageId(stream, function);
+        Supplier<?>[] functions = factories[stream];
+        if (functions == null || functions[function] == null) {
+            return false;
+        }
+        Supplier<?>[][] factories = this.factories.clone();
+        factories[stream] = functions.clone();
+        factories[stream][function] = null;
+        this.factories = factories;
+        return true;
+    }
+
+    /**
+     * Indicates whether a message type is supported.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * 
+     * @return True if supported, otherwise false.
+     */
+    public boolean isSupported(int stream, int function) {
+        return getFactory(stream, function) != null;
+    }
+
+    /**
+     * Creates a new message of a specific type.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * 
+     * @return The message, or <code>null</code> if the message type is not
+     *         supported.
+     */
+    public SecsMessage newMessage(int stream, int function) {
+        Supplier<?> factory = getFactory(stream, function);
+        return (factory != null) ? (SecsMessage) factory.get() : null;
+    }
+
+    /**
+     * Returns the factory for a specific message type.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * 
+     * @return The factory, or <code>null</code> if the message type is not
+     *         supported.
+     */
+    private Supplier<?> getFactory(int stream, int function) {
+        if (stream < 0 || stream >= NO_OF_STREAMS || function < 0 || function >= NO_OF_FUNCTIONS) {
+            return null;
+        }
+        Supplier<?>[] functions = factories[stream];
+        return (functions != null) ? functions[function] : null;
+    }
+
+    /**
+     * Validates a stream and function.
+     * 
+     * @param stream
+     *            The stream.
+     * @param function
+     *            The function.
+     * 
+     * @throws IllegalArgumentException
+     *             If the stream or function is out of range.
+     */
+    private static void checkMessageId(int stream, int function) {
+        if (stream < 0 || stream >= NO_OF_STREAMS) {
+            throw new IllegalArgumentException("Invalid stream: " + stream);
+        }
+        if (function < 0 || function >= NO_OF_FUNCTIONS) {
+            throw new IllegalArgumentException("Invalid function: " + function);
+        }
+    }
+
+    /**
+     * Returns a factory instantiating a message class by its no-arg
+     * constructor.
+     * 
+     * @param messageType
+     *            The message class.
+     * 
+     * @return The factory.
+     * 
+     * @throws IllegalArgumentException
+     *             If the message class has no accessible no-arg constructor.
+     */
+    private static Supplier<SecsMessage> newFactory(Class<? extends SecsMessage> messageType) {
+        final Constructor<? extends SecsMessage> constructor;
+        try {
+            constructor = messageType.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No public no-arg constructor: " + messageType, e);
+        }
+        return new Supplier<SecsMessage>() {
+            @Override
+            public SecsMessage get() {
+                try {
+                    return constructor.newInstance();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not instantiate message type: " + constructor.getDeclaringClass(), e);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,218 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ozsoft.secs4j.util.BufferPool;
+
+/**
+ * Encoded HSMS frame, ready to be sent with a gathering write. <br />
+ * <br />
+ * 
+ * A frame consists of one or more buffers: the Length field, message header
+ * and any small data items are encoded into a single (pooled) buffer, while
+ * large binary data items are referred to directly, without copying them.
+ * 
+ * @author Oscar Stigter
+ */
+/* package */class OutboundFrame {
+
+    /** The buffer pool, if any. */
+    private final BufferPool pool;
+
+    /** The (leased) buffer the frame is encoded into, until released. */
+    private ByteBuffer buffer;
+
+    /** The buffers to write. */
+    private ByteBuffer[] buffers;
+
+    /** The buffers collected during encoding. */
+    private List<ByteBuffer> segments;
+
+    /** The start position of the current segment in the encoding buffer. */
+    private int segmentStart;
+
+    /** The index of the first buffer with remaining bytes. */
+    private int index;
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *            The buffer pool the encoding buffer was leased from, or
+     *            <code>null</code> if not pooled.
+     * @param buffer
+     *            The buffer to encode into, starting at position 0.
+     */
+    public OutboundFrame(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the buffer to encode into.
+     * 
+     * @return The encoding buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Appends an external buffer after the bytes encoded so far. The buffer's
+     * remaining bytes are written as-is; they must not change until the frame
+     * has been written.
+     * 
+     * @param external
+     *            The external buffer.
+     */
+    public void append(ByteBuffer external) {
+        if (segments == null) {
+            segments = new ArrayList<ByteBuffer>();
+        }
+        addSegment();
+        segments.add(external.slice());
+    }
+
+    /**
+     * Completes the encoding.
+     * 
+     * @return This frame.
+     */
+    public OutboundFrame finish() {
+        if (segments == null) {
+            // Single buffer.
+            buffer.flip();
+            buffers = new ByteBuffer[] { buffer };
+        } else {
+            addSegment();
+            buffers = segments.toArray(new ByteBuffer[segments.size()]);
+            segments = null;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the buffers to write.
+     * 
+     * @return The buffers.
+     */
+    public ByteBuffer[] getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Returns the number of bytes not written yet.
+     * 
+     * @return The number of remaining bytes.
+     */
+    public long remaining() {
+        long remaining = 0L;
+        for (int i = index; i < buffers.length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Indicates whether there are bytes not written yet.
+     * 
+     * @return True if there are remaining bytes, otherwise false.
+     */
+    public boolean hasRemaining() {
+        skipWritten();
+        return index < buffers.length;
+    }
+
+    /**
+     * Writes as many remaining bytes as possible with a single gathering
+     * write.
+     * 
+     * @param channel
+     *            The channel.
+     * 
+     * @return The number of bytes written.
+     * 
+     * @throws IOException
+     *             If the bytes could not be written.
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        skipWritten();
+        long length = channel.write(buffers, index, buffers.length - index);
+        skipWritten();
+        return length;
+    }
+
+    /**
+     * Returns the complete frame as a new byte array.
+     * 
+     * @return The byte array.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[(int) remaining()];
+        int offset = 0;
+        for (int i = index; i < buffers.length; i++) {
+            ByteBuffer buf = buffers[i].duplicate();
+            int length = buf.remaining();
+            buf.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the encoding buffer to the pool. The frame must not be used
+     * anymore afterwards.
+     */
+    public void release() {
+        if (buffer != null) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    /**
+     * Adds the bytes encoded since the previous segment as a segment.
+     */
+    private void addSegment() {
+        int position = buffer.position();
+        if (position > segmentStart) {
+            ByteBuffer segment = buffer.duplicate();
+            segment.position(segmentStart);
+            segment.limit(position);
+            segments.add(segment.slice());
+            segmentStart = position;
+        }
+    }
+
+    /**
+     * Skips the buffers that have been written completely.
+     */
+    private void skipWritten() {
+        while (index < buffers.length && !buffers[index].hasRemaining()) {
+            index++;
+        }
+    }
+
+}
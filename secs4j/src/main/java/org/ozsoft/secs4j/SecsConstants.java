@@ -54,6 +54,21 @@ public interface SecsConstants {
     /** T7 (Connect Idle) timeout in seconds. */
     int DEFAULT_T7 = 10;
     
+    /** T8 (Network Intercharacter) timeout in seconds. */
+    int DEFAULT_T8 = 5;
+    
+    /** Linktest interval in seconds (0 = disabled). */
+    int DEFAULT_LINKTEST_INTERVAL = 0;
+    
+    /** Maximum message length in bytes (HSMS limit of 4 GB). */
+    long DEFAULT_MAX_MESSAGE_LENGTH = 0xffffffffL;
+    
+    /** Maximum length of received message data kept in memory (1 MB). */
+    long DEFAULT_MAX_IN_MEMORY_LENGTH = 1024 * 1024;
+    
+    /** Maximum number of open transactions. */
+    int DEFAULT_MAX_OPEN_TRANSACTIONS = 1024;
+    
     /** SECS header length in bytes. */
     int HEADER_LENGTH = 10;
     
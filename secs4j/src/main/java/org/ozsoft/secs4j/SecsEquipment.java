@@ -18,17 +18,26 @@
 package org.ozsoft.secs4j;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.ozsoft.secs4j.message.S1F1;
 import org.ozsoft.secs4j.message.S1F13;
@@ -41,6 +50,10 @@ import org.ozsoft.secs4j.message.S1F2;
 import org.ozsoft.secs4j.message.S2F25;
 import org.ozsoft.secs4j.message.S2F26;
 import org.ozsoft.secs4j.message.SxF0;
+import org.ozsoft.secs4j.util.ByteSource;
+import org.ozsoft.secs4j.util.HashedTimingWheel;
+import org.ozsoft.secs4j.util.LatencyHistogram;
+import org.ozsoft.secs4j.util.SerialExecutor;
 
 /**
  * SECS equipment implementing the following SEMI standards:
@@ -50,7 +63,37 @@ import org.ozsoft.secs4j.message.SxF0;
  *   <li>E37 HSMS</li>
  * </ul>
  * 
- * This is the core class of the SECS/GEM library.
+ * This is the core class of the SECS/GEM library. <br />
+ * <br />
+ * 
+ * The HSMS connection is served by a non-blocking {@link EventLoop}, which may
+ * be shared by many SECS equipment instances. Many equipment may also be hosted
+ * by a {@link SecsServer}, sharing a pool of event loops and a single listening
+ * port. <br />
+ * <br />
+ * 
+ * A single HSMS connection may carry multiple sessions (HSMS-GS). Each session
+ * is a separate SECS equipment with its own device ID (session ID), SELECT
+ * state, message types, listeners and transactions, added to the equipment
+ * owning the connection with {@link #addSession(SecsEquipment)}. Incoming
+ * messages are routed to the session matching their session ID. <br />
+ * <br />
+ * 
+ * By default, received messages are decoded and handled on the event loop
+ * thread. With an executor set, the event loop thread only splits the received
+ * bytes into frames and handles HSMS control messages, while data messages are
+ * decoded and handled (including the message listeners) on the executor. The
+ * primary messages of each session are still handled in order of arrival,
+ * while those of different sessions are handled in parallel. Reply messages
+ * are handled as soon as they arrive, so a message handler may send a message
+ * and wait for its reply. <br />
+ * <br />
+ * 
+ * With a linktest interval set, a LINKTEST_REQ is sent whenever nothing has
+ * been received on the connection for that interval. The round-trip times are
+ * recorded in a histogram, while a linktest not answered within T6 closes the
+ * connection, so a dead link is detected within seconds instead of on the next
+ * T3 timeout.
  * 
  * @author Oscar Stigter
  */
@@ -82,17 +125,41 @@ public class SecsEquipment {
 
     private static final int MAX_T7 = 240;
 
-    private static final long POLL_INTERVAL = 10L;
+    private static final int MIN_T8 = 1;
+
+    private static final int MAX_T8 = 120;
+
+    private static final long MIN_MESSAGE_LENGTH = 1024L;
+
+    private static final int MIN_OPEN_TRANSACTIONS = 1;
+
+    private static final int MAX_OPEN_TRANSACTIONS = 1 << 20;
 
-    private static final int BUFFER_SIZE = 8192;
+    private static final int MIN_LINKTEST_INTERVAL = 0;
+
+    private static final int MAX_LINKTEST_INTERVAL = 3600;
+
+    /** Poll interval while waiting for the disconnect, in milliseconds. */
+    private static final long DISABLE_POLL_INTERVAL = 100L;
+
+    /** Offset of the session ID in a frame (after the Length field). */
+    private static final int SESSION_ID_OFFSET = 4;
+
+    /** Offset of the function in a frame (after the Length field). */
+    private static final int FUNCTION_OFFSET = 7;
+
+    /** Offset of the SType in a frame (after the Length field). */
+    private static final int STYPE_OFFSET = 9;
 
     private static final Logger LOG = Logger.getLogger(SecsEquipment.class);
 
-    private final Map<Integer, Class<? extends SecsMessage>> messageTypes;
+    private final MessageRegistry messageTypes;
 
     private final Set<SecsEquipmentListener> listeners;
+
+    private final Map<Integer, SecsEquipment> sessions;
     
-    private final Map<Long, Transaction> transactions;
+    private volatile TransactionTable transactions;
     
     private int deviceId = SecsConstants.DEFAULT_DEVICE_ID;
 
@@ -114,24 +181,68 @@ public class SecsEquipment {
 
     private int t7 = SecsConstants.DEFAULT_T7;
 
-    private boolean isEnabled;
+    private int t8 = SecsConstants.DEFAULT_T8;
 
-    private ConnectionState connectionState;
+    private volatile int linktestInterval = SecsConstants.DEFAULT_LINKTEST_INTERVAL;
 
-    private CommunicationState communicationState;
+    private final LatencyHistogram linktestTimes = new LatencyHistogram();
 
-    private ControlState controlState;
+    private long maxMessageLength = SecsConstants.DEFAULT_MAX_MESSAGE_LENGTH;
 
-    private Thread connectionThread;
-    
-    private Socket socket;
+    private long maxInMemoryLength = SecsConstants.DEFAULT_MAX_IN_MEMORY_LENGTH;
+
+    private volatile boolean isLazyDecoding;
+
+    private volatile boolean isEnabled;
+
+    private volatile ConnectionState connectionState;
+
+    private volatile CommunicationState communicationState;
+
+    private volatile ControlState controlState;
+
+    private EventLoop eventLoop;
+
+    private HashedTimingWheel timer;
+
+    private SecsServer server;
+
+    private volatile ConnectionManager connectionManager;
+
+    private volatile Executor executor;
+
+    private SerialExecutor receiveExecutor;
+
+    private volatile SecsEquipment parent;
+
+    private volatile HsmsConnection connection;
+
+    private ServerSocketChannel serverChannel;
+
+    private HashedTimingWheel.Timeout retryTimer;
+
+    private HashedTimingWheel.Timeout connectTimer;
+
+    private HashedTimingWheel.Timeout connectRetryTimer;
+
+    private SocketChannel pendingChannel;
+
+    private HashedTimingWheel.Timeout t7Timer;
+
+    private long selectTransactionId;
+
+    private HashedTimingWheel.Timeout linktestTimer;
+
+    private long linktestTransactionId;
+
+    private long linktestSendTime;
     
-    private long nextTransactionId = 1L;
     
     public SecsEquipment() {
-        listeners  = new HashSet<SecsEquipmentListener>();
-        messageTypes = new HashMap<Integer, Class<? extends SecsMessage>>();
-        transactions = new HashMap<Long, Transaction>();
+        listeners = new CopyOnWriteArraySet<SecsEquipmentListener>();
+        messageTypes = new MessageRegistry();
+        sessions = new ConcurrentHashMap<Integer, SecsEquipment>();
+        transactions = new TransactionTable(SecsConstants.DEFAULT_MAX_OPEN_TRANSACTIONS);
         
         addDefaultMessageTypes();
         
@@ -143,17 +254,17 @@ public class SecsEquipment {
     
     private void addDefaultMessageTypes() {
         LOG.debug("Add default message types");
-        addMessageType(S1F1.class); // Are You There (R)
-        addMessageType(S1F2.class); // On Line Data (D)
-        addMessageType(S1F13.class); // Establish Communication Request (CR)
-        addMessageType(S1F14.class); // Establish Communication Request Acknowledge (CRA)
-        addMessageType(S1F15.class); // Request OFF-LINE (ROFL)
-        addMessageType(S1F16.class); // OFF-LINE Acknowledge (OFLA)
-        addMessageType(S1F17.class); // Request ON-LINE (RONL)
-        addMessageType(S1F18.class); // ON-LINE Acknowledge (ONLA)
-        addMessageType(S2F25.class); // Request Loopback Diagnostic Request
+        addMessageType(S1F1::new); // Are You There (R)
+        addMessageType(S1F2::new); // On Line Data (D)
+        addMessageType(S1F13::new); // Establish Communication Request (CR)
+        addMessageType(S1F14::new); // Establish Communication Request Acknowledge (CRA)
+        addMessageType(S1F15::new); // Request OFF-LINE (ROFL)
+        addMessageType(S1F16::new); // OFF-LINE Acknowledge (OFLA)
+        addMessageType(S1F17::new); // Request ON-LINE (RONL)
+        addMessageType(S1F18::new); // ON-LINE Acknowledge (ONLA)
+        addMessageType(S2F25::new); // Request Loopback Diagnostic Request
                                      // (LDR)
-        addMessageType(S2F26.class); // Loopback Diagnostic Acknowledge (LDA)
+        addMessageType(S2F26::new); // Loopback Diagnostic Acknowledge (LDA)
     }
 
     public int getDeviceId() {
@@ -265,6 +376,274 @@ public class SecsEquipment {
         LOG.info(String.format("T5 set to %d seconds", t7));
     }
     
+    public int getT8Timeout() {
+        return t8;
+    }
+    
+    public void setT8Timeout(int t8) throws SecsConfigurationException {
+        if (t8 < MIN_T8 || t8 > MAX_T8) {
+            throw new SecsConfigurationException("Invalid value for T8: " + t8);
+        }
+        this.t8 = t8;
+        LOG.info(String.format("T8 set to %d seconds", t8));
+    }
+    
+    public int getLinktestInterval() {
+        return linktestInterval;
+    }
+    
+    /**
+     * Sets the linktest interval, being the time without any data received on
+     * the connection before a LINKTEST_REQ is sent. Applies to connections
+     * established afterwards; ignored for sessions (HSMS-GS), which share the
+     * connection of their parent.
+     * 
+     * @param linktestInterval
+     *            The linktest interval in seconds, or 0 to disable linktests.
+     * 
+     * @throws SecsConfigurationException
+     *             If the value is invalid.
+     */
+    public void setLinktestInterval(int linktestInterval) throws SecsConfigurationException {
+        if (linktestInterval < MIN_LINKTEST_INTERVAL || linktestInterval > MAX_LINKTEST_INTERVAL) {
+            throw new SecsConfigurationException("Invalid linktest interval: " + linktestInterval);
+        }
+        this.linktestInterval = linktestInterval;
+        LOG.info(String.format("Linktest interval set to %d seconds", linktestInterval));
+    }
+    
+    /**
+     * Returns the histogram of the linktest round-trip times.
+     * 
+     * @return The linktest round-trip times in microseconds.
+     */
+    public LatencyHistogram getLinktestRoundTripTimes() {
+        return linktestTimes;
+    }
+    
+    public int getMaxOpenTransactions() {
+        return transactions.getCapacity();
+    }
+    
+    /**
+     * Sets the maximum number of open transactions (primary messages waiting
+     * for their reply). Can only be changed while disabled.
+     * 
+     * @param maxOpenTransactions
+     *            The maximum number of open transactions (rounded up to a
+     *            power of 2).
+     * 
+     * @throws SecsConfigurationException
+     *             If the value is invalid, or if the equipment is enabled.
+     */
+    public void setMaxOpenTransactions(int maxOpenTransactions) throws SecsConfigurationException {
+        if (maxOpenTransactions < MIN_OPEN_TRANSACTIONS || maxOpenTransactions > MAX_OPEN_TRANSACTIONS) {
+            throw new SecsConfigurationException("Invalid maximum number of open transactions: " + maxOpenTransactions);
+        }
+        if (isEnabled) {
+            throw new SecsConfigurationException("Cannot change maximum number of open transactions while enabled");
+        }
+        transactions = new TransactionTable(maxOpenTransactions);
+        LOG.info(String.format("Maximum number of open transactions set to %d", transactions.getCapacity()));
+    }
+    
+    public long getMaxMessageLength() {
+        return maxMessageLength;
+    }
+    
+    /**
+     * Sets the maximum length of received messages. Larger messages are
+     * discarded. Applies to new connections.
+     * 
+     * @param maxMessageLength
+     *            The maximum message length in bytes (up to 4 GB).
+     * 
+     * @throws SecsConfigurationException
+     *             If the value is invalid.
+     */
+    public void setMaxMessageLength(long maxMessageLength) throws SecsConfigurationException {
+        if (maxMessageLength < MIN_MESSAGE_LENGTH || maxMessageLength > SecsConstants.DEFAULT_MAX_MESSAGE_LENGTH) {
+            throw new SecsConfigurationException("Invalid maximum message length: " + maxMessageLength);
+        }
+        this.maxMessageLength = maxMessageLength;
+        LOG.info(String.format("Maximum message length set to %d bytes", maxMessageLength));
+    }
+    
+    public long getMaxInMemoryLength() {
+        return maxInMemoryLength;
+    }
+    
+    /**
+     * Sets the maximum length of received message data kept in memory. Larger
+     * messages are buffered in a temporary file. Applies to new connections.
+     * 
+     * @param maxInMemoryLength
+     *            The maximum length in bytes.
+     * 
+     * @throws SecsConfigurationException
+     *             If the value is invalid.
+     */
+    public void setMaxInMemoryLength(long maxInMemoryLength) throws SecsConfigurationException {
+        if (maxInMemoryLength < 0L) {
+            throw new SecsConfigurationException("Invalid maximum in-memory length: " + maxInMemoryLength);
+        }
+        this.maxInMemoryLength = maxInMemoryLength;
+        LOG.info(String.format("Maximum in-memory message length set to %d bytes", maxInMemoryLength));
+    }
+    
+    public boolean isLazyDecoding() {
+        return isLazyDecoding;
+    }
+    
+    /**
+     * Sets whether received message data is decoded lazily. <br />
+     * <br />
+     * 
+     * With lazy decoding, the items of an L are decoded on first access,
+     * directly from the receive buffer. Message types must then extract any
+     * values during <code>SecsMessage.parseData()</code> and not retain the data
+     * item itself. Disabled by default.
+     * 
+     * @param isLazyDecoding
+     *            Whether to decode message data lazily.
+     */
+    public void setLazyDecoding(boolean isLazyDecoding) {
+        this.isLazyDecoding = isLazyDecoding;
+        LOG.info(String.format("Lazy decoding %s", (isLazyDecoding) ? "enabled" : "disabled"));
+    }
+    
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor to decode and handle received data messages on,
+     * instead of the event loop thread, so slow message handlers do not delay
+     * the connection (e.g. LINKTEST). Sessions (HSMS-GS) use the executor of
+     * the equipment owning the connection. <br />
+     * <br />
+     * 
+     * Any message handlers and listeners must be thread-safe when using a
+     * multi-threaded executor. Reply messages are not queued behind the
+     * primary messages being handled, so a message handler may wait for the
+     * reply of a message it sent, provided the executor has a thread left to
+     * handle that reply (i.e. not a single-threaded executor). Message handlers
+     * doing such blocking calls are best run on virtual threads with an
+     * executor from
+     * {@link org.ozsoft.secs4j.util.VirtualThreads#newExecutor(String)}.
+     * 
+     * @param executor
+     *            The executor, or <code>null</code> to handle received
+     *            messages on the event loop thread.
+     * 
+     * @throws SecsConfigurationException
+     *             If the equipment is enabled.
+     */
+    public void setExecutor(Executor executor) throws SecsConfigurationException {
+        if (isEnabled) {
+            throw new SecsConfigurationException("Equipment already enabled");
+        }
+        this.executor = executor;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public void setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+    
+    public HashedTimingWheel getTimer() {
+        return timer;
+    }
+
+    public void setTimer(HashedTimingWheel timer) {
+        this.timer = timer;
+    }
+    
+    public SecsServer getServer() {
+        return server;
+    }
+
+    /* package */void setServer(SecsServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Sets the connection manager orchestrating the connection attempts of
+     * this equipment (ACTIVE connection mode only).
+     * 
+     * @param connectionManager
+     *            The connection manager, or <code>null</code> to connect
+     *            independently.
+     */
+    /* package */void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * Adds a session (HSMS-GS) sharing the connection of this equipment. <br />
+     * <br />
+     * 
+     * The session is configured and enabled like any other equipment, except
+     * that it uses the connection (and event loop) of this equipment instead of
+     * its own. Its device ID is used as session ID and must not be changed
+     * while added.
+     * 
+     * @param session
+     *            The session.
+     * 
+     * @throws SecsConfigurationException
+     *             If the session is already enabled, already added to an
+     *             equipment, or its device ID is already in use.
+     */
+    public void addSession(SecsEquipment session) throws SecsConfigurationException {
+        if (session == this || session.parent != null || parent != null || !session.sessions.isEmpty()) {
+            throw new SecsConfigurationException("Invalid session");
+        }
+        if (session.isEnabled()) {
+            throw new SecsConfigurationException("Session already enabled");
+        }
+        int sessionId = session.getDeviceId();
+        if (sessionId == deviceId || sessions.putIfAbsent(sessionId, session) != null) {
+            throw new SecsConfigurationException("Duplicate session ID: " + sessionId);
+        }
+        session.parent = this;
+        LOG.info("Added session " + sessionId);
+    }
+
+    /**
+     * Removes a session, disabling it if necessary.
+     * 
+     * @param session
+     *            The session.
+     * 
+     * @throws SecsException
+     *             If the session could not be disabled.
+     */
+    public void removeSession(SecsEquipment session) throws SecsException {
+        if (sessions.remove(session.getDeviceId(), session)) {
+            if (session.isEnabled()) {
+                session.disable();
+            }
+            session.parent = null;
+            LOG.info("Removed session " + session.getDeviceId());
+        }
+    }
+
+    public SecsEquipment getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public Collection<SecsEquipment> getSessions() {
+        return new ArrayList<SecsEquipment>(sessions.values());
+    }
+
+    public SecsEquipment getParent() {
+        return parent;
+    }
+
     public ConnectionState getConnectionState() {
         return connectionState;
     }
@@ -293,6 +672,33 @@ public class SecsEquipment {
         }
     }
 
+    /**
+     * Returns the number of outgoing messages queued or being written on the
+     * current connection.
+     * 
+     * @return The queue depth, or 0 if not connected.
+     */
+    public int getOutboundQueueDepth() {
+        HsmsConnection connection = this.connection;
+        return (connection != null) ? connection.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the average number of messages written with a single write on
+     * the current connection.
+     * 
+     * @return The average batch size, or 0 if nothing has been written.
+     */
+    public double getAverageBatchSize() {
+        HsmsConnection connection = this.connection;
+        if (connection != null) {
+            long writeCount = connection.getWriteCount();
+            return (writeCount > 0L) ? (double) connection.getFrameCount() / writeCount : 0.0;
+        } else {
+            return 0.0;
+        }
+    }
+
     public ControlState getControlState() {
         return controlState;
     }
@@ -329,38 +735,88 @@ public class SecsEquipment {
         }
     }
 
+    /**
+     * Adds a supported message type, created by a factory (typically a
+     * constructor reference, e.g. <code>S1F13::new</code>).
+     * 
+     * @param factory
+     *            The factory creating new messages of the type.
+     */
+    public void addMessageType(Supplier<? extends SecsMessage> factory) {
+        SecsMessage message = messageTypes.register(factory);
+        LOG.debug("Added message type " + message.getDescripton());
+    }
+
     public void addMessageType(Class<? extends SecsMessage> messageType) {
-        SecsMessage message = null;
         try {
-            message = messageType.newInstance();
-            int messageId = message.getStream() * 256 + message.getFunction();
-            messageTypes.put(messageId, messageType);
+            SecsMessage message = messageTypes.register(messageType);
             LOG.debug("Added message type " + message.getDescripton());
         } catch (Exception e) {
             LOG.error("Could not instantiate message type: " + messageType, e);
         }
     }
 
+    public void removeMessageType(int stream, int function) {
+        if (messageTypes.unregister(stream, function)) {
+            LOG.info(String.format("Removed message type S%dF%d", stream, function));
+        }
+    }
+
     public void removeMessageType(Class<? extends SecsMessage> messageType) {
-        SecsMessage message = null;
         try {
-            message = messageType.newInstance();
-            int messageId = message.getStream() * 256 + message.getFunction();
-            if (messageTypes.containsKey(messageId)) {
-                messageTypes.remove(messageId);
+            SecsMessage message = messageType.newInstance();
+            if (messageTypes.unregister(message.getStream(), message.getFunction())) {
+                LOG.info("Removed message type " + message.getDescripton());
             }
-            LOG.info("Removed message type " + message.getDescripton());
         } catch (Exception e) {
             LOG.error("Could not instantiate message type: " + messageType, e);
         }
     }
     
+    /**
+     * Adds a listener, notified synchronously on the thread causing the event
+     * (e.g. the event loop thread). The listener must return quickly.
+     * 
+     * @param listener
+     *            The listener.
+     */
     public void addListener(SecsEquipmentListener listener) {
         listeners.add(listener);
     }
+
+    /**
+     * Adds a listener notified asynchronously on an executor, through a
+     * bounded buffer, so it never delays the communication.
+     * 
+     * @param listener
+     *            The listener.
+     * @param executor
+     *            The executor to notify the listener on.
+     * @param capacity
+     *            The maximum number of pending events.
+     * @param overflowPolicy
+     *            The policy for events that do not fit in the buffer.
+     * 
+     * @return The asynchronous listener, providing the delivery metrics.
+     */
+    public AsyncListener addListener(SecsEquipmentListener listener, Executor executor, int capacity, AsyncListener.OverflowPolicy overflowPolicy) {
+        AsyncListener asyncListener = new AsyncListener(listener, executor, capacity, overflowPolicy);
+        listeners.add(asyncListener);
+        return asyncListener;
+    }
     
+    /**
+     * Removes a listener, whether notified synchronously or asynchronously.
+     * 
+     * @param listener
+     *            The listener.
+     */
     public void removeListener(SecsEquipmentListener listener) {
-        listeners.remove(listener);
+        for (SecsEquipmentListener l : listeners) {
+            if (l == listener || (l instanceof AsyncListener && ((AsyncListener) l).getListener() == listener)) {
+                listeners.remove(l);
+            }
+        }
     }
     
     public void sendMessage(SecsPrimaryMessage primaryMessage) throws SecsException {
@@ -379,87 +835,179 @@ public class SecsEquipment {
             message.setTransactionId(getNextTransactionId());
         }
         
-        LOG.trace(String.format("Send message %s", message));
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(String.format("Send message %s", message));
+        }
+        
+        HsmsConnection connection = this.connection;
+        if (connection == null) {
+            throw new SecsException("Not connected");
+        }
         
         try {
-            OutputStream os = socket.getOutputStream();
-            os.write(message.toByteArray());
-            os.flush();
-            
-            for (SecsEquipmentListener listener : listeners) {
-                listener.messageSent(message);
-            }
-            
-        } catch (IOException e) {
+            connection.send(message);
+        } catch (SecsException e) {
             String msg = "Internal error while sending message"; 
             LOG.error(msg, e);
             throw new SecsException(msg, e);
         }
+        
+        for (SecsEquipmentListener listener : listeners) {
+            listener.messageSent(message);
+        }
     }
     
-    public SecsReplyMessage sendMessageAndWait(SecsPrimaryMessage primaryMessage) throws SecsException {
-        if (communicationState != CommunicationState.COMMUNICATING) {
+    /**
+     * Sends a primary message without waiting for the reply. <br />
+     * <br />
+     * 
+     * The returned future is completed with the reply message as soon as it is
+     * received, or completed exceptionally with a <code>SecsTimeoutException</code>
+     * on a T3 timeout, or with a <code>SecsException</code> if the transaction
+     * was aborted or the connection was lost. The future is completed from the
+     * event loop thread, so any dependent actions must not block.
+     * 
+     * @param primaryMessage
+     *            The primary message.
+     * 
+     * @return The future of the reply message.
+     * 
+     * @throws SecsException
+     *             If the message could not be sent.
+     */
+    public CompletableFuture<SecsReplyMessage> sendMessageAsync(SecsPrimaryMessage primaryMessage) throws SecsException {
+        return sendRequest(primaryMessage, true);
+    }
+    
+    private CompletableFuture<SecsReplyMessage> sendRequest(SecsPrimaryMessage primaryMessage, boolean checkCommunicationState) throws SecsException {
+        if (checkCommunicationState && communicationState != CommunicationState.COMMUNICATING) {
             throw new SecsException("Communication State not COMMUNICATING");
         }
         
         primaryMessage.setEquipment(this);
         primaryMessage.setSessionId(deviceId);
-        long transactionId = getNextTransactionId();
-        primaryMessage.setTransactionId(transactionId);
-        startTransaction(primaryMessage);
+        final Transaction transaction = startTransaction(primaryMessage);
+        final long transactionId = transaction.getTransactionId();
         
-        sendMessage(primaryMessage, true);
+        try {
+            sendMessage(primaryMessage, checkCommunicationState);
+        } catch (SecsException e) {
+            removeTransaction(transactionId);
+            throw e;
+        }
         
-        long startTime = System.currentTimeMillis();
-        SecsReplyMessage replyMessage = null;
-        while (replyMessage == null) {
-            sleep(POLL_INTERVAL);
-            synchronized (transactions) {
-                Transaction transaction = transactions.get(transactionId);
-                if (transaction != null) {
-                    Message message = transaction.getReplyMessage();
-                    if (message != null) {
-                        if (message instanceof SecsReplyMessage) {
-                            replyMessage = (SecsReplyMessage) message;
-                        } else {
-                            String msg = "Unexpected reply message type: " + message;
-                            LOG.warn(msg);
-                            throw new SecsException(msg);
-                        }
-                    }
+        final String messageType = primaryMessage.getType();
+        transaction.setTimer(startTimer(new Runnable() {
+            @Override
+            public void run() {
+                if (removeTransaction(transactionId) != null) {
+                    // T3 transaction timeout.
+                    String msg = String.format("T3 timeout for request message %s with transaction ID %d", messageType, transactionId); 
+                    LOG.warn(msg);
+                    transaction.fail(new SecsTimeoutException(msg));
                 }
             }
-            if (replyMessage == null && (System.currentTimeMillis() - startTime) > (t3 * 1000L)) {
-                // T3 transaction timeout.
-                String msg = String.format("T3 timeout for request message %s with transaction ID %d", primaryMessage.getType(), transactionId); 
-                LOG.warn(msg);
-                throw new SecsTimeoutException(msg);
+        }, t3 * 1000L));
+        
+        return transaction.getFuture();
+    }
+    
+    /**
+     * Sends a primary message and waits for the reply message. <br />
+     * <br />
+     * 
+     * The wait does not hold any lock, so when called from a virtual thread
+     * (see {@link org.ozsoft.secs4j.util.VirtualThreads}), the virtual thread is
+     * parked without occupying a carrier thread.
+     * 
+     * @param primaryMessage
+     *            The primary message.
+     * 
+     * @return The reply message.
+     * 
+     * @throws SecsException
+     *             If the message could not be sent, on a T3 timeout, or if the
+     *             transaction was aborted or the connection was lost.
+     */
+    public SecsReplyMessage sendMessageAndWait(SecsPrimaryMessage primaryMessage) throws SecsException {
+        CompletableFuture<SecsReplyMessage> future = sendMessageAsync(primaryMessage);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SecsException) {
+                throw (SecsException) cause;
+            } else {
+                // Internal error (should never happen).
+                throw new SecsException("Internal error while waiting for reply message", cause);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecsException("Interrupted while waiting for reply message", e);
         }
-        return replyMessage;
     }
     
-    private void enable() {
+    private void enable() throws SecsException {
+        final SecsEquipment parent = this.parent;
+        if (parent != null) {
+            // Session; share the event loop and timer of the parent.
+            parent.initEventLoop();
+            eventLoop = parent.eventLoop;
+            timer = parent.timer;
+        } else {
+            initEventLoop();
+        }
+        SecsServer server = (parent != null) ? parent.server : this.server;
+        if (server != null && !server.isRunning()) {
+            throw new SecsConfigurationException("Server not running");
+        }
+        if (!eventLoop.isRunning()) {
+            throw new SecsConfigurationException("Event loop not running");
+        }
         isEnabled = true;
         LOG.info("Enabled State set to ENABLED");
         setCommunicationState(CommunicationState.NOT_COMMUNICATING);
-        if (connectMode == ConnectMode.ACTIVE) {
-            // Active mode; establish HSMS connection (client).
-            connectionThread = new ActiveConnectionThread();
-        } else {
-            // Passive mode; accept incoming HSMS connection (server).
-            connectionThread = new PassiveConnectionThread();
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (parent != null) {
+                    // Session; join the connection of the parent, if any.
+                    if (parent.connection != null) {
+                        attach(parent.connection);
+                    }
+                } else if (connectMode == ConnectMode.ACTIVE) {
+                    // Active mode; establish HSMS connection (client).
+                    requestConnect();
+                } else if (server == null) {
+                    // Passive mode; accept incoming HSMS connection (server).
+                    listen();
+                }
+                // Otherwise, incoming connections are routed by the server.
+            }
+        });
+    }
+
+    /**
+     * Assigns the default event loop and timer, unless set explicitly.
+     * 
+     * @throws SecsException
+     *             If the default event loop could not be started.
+     */
+    private void initEventLoop() throws SecsException {
+        if (eventLoop == null) {
+            eventLoop = EventLoop.getDefault();
+        }
+        if (timer == null) {
+            timer = HashedTimingWheel.getDefault();
         }
-        connectionThread.start();
     }
 
     private void disable() {
-        if (connectionState != ConnectionState.NOT_CONNECTED) {
+        HsmsConnection connection = this.connection;
+        if (connectionState != ConnectionState.NOT_CONNECTED && connection != null) {
             ControlMessage message = new ControlMessage(deviceId, 0x00, 0x00, SType.SEPARATE, getNextTransactionId());
             try {
-                OutputStream os = socket.getOutputStream();
-                os.write(message.toByteArray());
-                os.flush();
+                connection.send(message);
             } catch (Exception e) {
                 LOG.error("Internal error while sending SEPARATE message", e);
             }
@@ -467,85 +1015,634 @@ public class SecsEquipment {
 
         isEnabled = false;
         LOG.info("Enabled State set to DISABLED");
-        while (communicationState != CommunicationState.NOT_COMMUNICATING) {
-            sleep(POLL_INTERVAL);
+        final CompletableFuture<Void> disconnected = new CompletableFuture<Void>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeServerChannel();
+                    abortConnect();
+                    if (SecsEquipment.this.connection != null) {
+                        disconnect();
+                    }
+                } finally {
+                    disconnected.complete(null);
+                }
+            }
+        };
+        if (eventLoop.inEventLoop()) {
+            task.run();
+        } else {
+            try {
+                eventLoop.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Event loop stopped, having closed its channels already.
+                task.run();
+            }
+            // Wait for disconnect (parks without blocking a carrier thread).
+            while (!disconnected.isDone()) {
+                try {
+                    disconnected.get(DISABLE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!eventLoop.isRunning()) {
+                        // Event loop stopped before running the task.
+                        task.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
         }
         
         setCommunicationState(CommunicationState.NOT_ENABLED);
     }
 
-    private void handleConnection() {
-        String clientHost = socket.getInetAddress().getHostName();
-        LOG.info(String.format("Connected with host '%s'", clientHost));
-        setConnectionState(ConnectionState.NOT_SELECTED);
-        InputStream is = null;
-        OutputStream os = null;
+    /**
+     * Establishes a non-blocking TCP/IP connection to another equipment (ACTIVE
+     * connection mode). Must be called from the event loop thread.
+     */
+    private void connect() {
+        connectRetryTimer = null;
+        if (!isEnabled || connection != null || pendingChannel != null) {
+            return;
+        }
+        LOG.debug(String.format("Connecting to equipment '%s' on port %d", host, port));
+        SocketChannel channel = null;
         try {
-            is = socket.getInputStream();
-            os = socket.getOutputStream();
-            byte[] buf = new byte[BUFFER_SIZE];
-            while (isEnabled && getConnectionState() != ConnectionState.NOT_CONNECTED) {
-                if (connectMode == ConnectMode.ACTIVE && connectionState == ConnectionState.NOT_SELECTED) {
-                    // Not selected yet; send SELECT_REQ.
-                    Message message = new ControlMessage(deviceId, 0x00, 0x00, SType.SELECT_REQ, getNextTransactionId());
-                    sendMessage(message, false);
-                    startTransaction(message);
-                    //FIXME: Get rid of sleep() statements.
-                    sleep(100L);
-                } else if (connectMode == ConnectMode.ACTIVE && connectionState == ConnectionState.SELECTED && communicationState == CommunicationState.NOT_COMMUNICATING) {
-                    // Not communicating yet; send S1F13 (Communication Request).
-                    S1F13 s1f13 = new S1F13();
-                    s1f13.setModelName(modelName);
-                    s1f13.setSoftRev(softRev);
-                    sendMessage(s1f13, false);
-                    //FIXME: Get rid of sleep() statements.
-                    sleep(100L);
-                }
-                
-                if (is.available() > 0) {
-                    int length = is.read(buf);
-                    try {
-                        Message requestMessage = MessageParser.parseMessage(buf, length, messageTypes);
-                        LOG.trace(String.format("Received message: %s", requestMessage));
-                        Message replyMessage = handleMessage(requestMessage);
-                        if (replyMessage != null) {
-                            sendMessage(replyMessage, false);
-                        }
-                        
-                    } catch (UnsupportedMessageException e) {
-                        // Unsupported message type -- ABORT.
-                        LOG.warn(e.getMessage());
-                        SecsMessage sxf0 = new SxF0(e.getStream());
-                        sxf0.setTransactionId(e.getTransactionId());
-                        sendMessage(sxf0, false);
-                        
-                    } catch (SecsParseException e) {
-                        // Protocol fault by remote equipment.
-                        LOG.warn("Received invalid SECS message: " + e.getMessage());
-                        
-                    } catch (SecsException e) {
-                        LOG.error("Internal SECS error while handling message", e);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                connected(channel);
+            } else {
+                final SocketChannel pendingChannel = channel;
+                this.pendingChannel = pendingChannel;
+                eventLoop.register(channel, SelectionKey.OP_CONNECT, new EventLoop.Handler() {
+                    @Override
+                    public void handleEvent(SelectionKey key) {
+                        try {
+                            if (pendingChannel.finishConnect()) {
+                                key.interestOps(0);
+                                connected(pendingChannel);
+                            }
+                        } catch (IOException e) {
+                            connectFailed(pendingChannel);
+                        }
+                    }
+                });
+                ConnectionManager connectionManager = this.connectionManager;
+                if (connectionManager != null) {
+                    // Abandon the connection attempt after the connect timeout.
+                    connectTimer = startTimer(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (pendingChannel.isOpen() && !pendingChannel.isConnected()) {
+                                LOG.debug(String.format("Timeout connecting to equipment '%s' on port %d", host, port));
+                                connectFailed(pendingChannel);
+                            }
+                        }
+                    }, connectionManager.getConnectTimeout());
+                }
+            }
+        } catch (IOException e) {
+            connectFailed(channel);
+        }
+    }
+
+    /**
+     * Requests a connection attempt, either directly or through the connection
+     * manager. Must be called from the event loop thread.
+     */
+    private void requestConnect() {
+        ConnectionManager connectionManager = this.connectionManager;
+        if (connectionManager != null) {
+            connectionManager.request(this);
+        } else {
+            connect();
+        }
+    }
+
+    /**
+     * Starts a connection attempt granted by the connection manager.
+     */
+    /* package */void startConnect() {
+        try {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isEnabled && connection == null && pendingChannel == null && connectMode == ConnectMode.ACTIVE) {
+                        connect();
+                    } else {
+                        ConnectionManager connectionManager = SecsEquipment.this.connectionManager;
+                        if (connectionManager != null) {
+                            connectionManager.connectAborted(SecsEquipment.this);
+                        }
                     }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Event loop stopped (e.g. server stopped); nothing to connect.
+        }
+    }
+
+    /**
+     * Handles a successful connection attempt. Must be called from the event
+     * loop thread.
+     * 
+     * @param channel
+     *            The connected socket channel.
+     */
+    private void connected(SocketChannel channel) {
+        pendingChannel = null;
+        if (connectTimer != null) {
+            connectTimer.cancel();
+            connectTimer = null;
+        }
+        ConnectionManager connectionManager = this.connectionManager;
+        if (!isEnabled) {
+            // Disabled while connecting.
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+            if (connectionManager != null) {
+                connectionManager.connectAborted(this);
+            }
+            return;
+        }
+        connectionEstablished(channel);
+        if (connection == null) {
+            connectFailed(null);
+        } else if (connectionManager != null) {
+            connectionManager.connectSucceeded(this);
+        }
+    }
+
+    /**
+     * Handles a failed connection attempt by retrying after T5, or after the
+     * backoff of the connection manager.
+     * 
+     * @param channel
+     *            The socket channel.
+     */
+    private void connectFailed(SocketChannel channel) {
+        LOG.debug(String.format("Failed to connect to equipment '%s' on port %d", host, port));
+        pendingChannel = null;
+        if (connectTimer != null) {
+            connectTimer.cancel();
+            connectTimer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+        }
+        ConnectionManager connectionManager = this.connectionManager;
+        if (connectionManager != null) {
+            connectionManager.connectFailed(this);
+            return;
+        }
+        connectRetryTimer = startTimer(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, t5 * 1000L);
+    }
+
+    /**
+     * Aborts any pending connection attempt or scheduled retry. Must be called
+     * from the event loop thread.
+     */
+    private void abortConnect() {
+        if (connectRetryTimer != null) {
+            connectRetryTimer.cancel();
+            connectRetryTimer = null;
+        }
+        if (pendingChannel != null) {
+            if (connectTimer != null) {
+                connectTimer.cancel();
+                connectTimer = null;
+            }
+            try {
+                pendingChannel.close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+            pendingChannel = null;
+            ConnectionManager connectionManager = this.connectionManager;
+            if (connectionManager != null) {
+                connectionManager.connectAborted(this);
+            }
+        }
+    }
+
+    /**
+     * Listens for incoming TCP/IP connections from another equipment (PASSIVE
+     * connection mode). Must be called from the event loop thread.
+     */
+    private void listen() {
+        if (!isEnabled) {
+            return;
+        }
+        LOG.info(String.format("Listening for incoming connections on port %d", port));
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+                @Override
+                public void handleEvent(SelectionKey key) throws IOException {
+                    accept();
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Could not start server: " + e.getMessage());
+            closeServerChannel();
+        }
+    }
+
+    /**
+     * Accepts an incoming TCP/IP connection.
+     * 
+     * @throws IOException
+     *             If the connection could not be accepted.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            accepted(channel);
+        }
+    }
+
+    /**
+     * Hands over an incoming TCP/IP connection accepted by the server. Called
+     * from the accepting event loop thread.
+     * 
+     * @param channel
+     *            The accepted socket channel.
+     */
+    /* package */void connectionAccepted(final SocketChannel channel) {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    accepted(channel);
+                } catch (IOException e) {
+                    // Safe to ignore.
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts serving an accepted TCP/IP connection, or rejects it if not
+     * enabled or already connected. Must be called from the event loop thread.
+     * 
+     * @param channel
+     *            The accepted socket channel.
+     * 
+     * @throws IOException
+     *             If the rejected connection could not be closed.
+     */
+    private void accepted(SocketChannel channel) throws IOException {
+        if (isEnabled && connection == null) {
+            connectionEstablished(channel);
+        } else {
+            LOG.warn("Already connected; incoming connection rejected");
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the server channel (PASSIVE connection mode).
+     */
+    private void closeServerChannel() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+            serverChannel = null;
+        }
+    }
+
+    /**
+     * Starts serving a newly established TCP/IP connection. Must be called from
+     * the event loop thread.
+     * 
+     * @param channel
+     *            The connected socket channel.
+     */
+    private void connectionEstablished(SocketChannel channel) {
+        HsmsConnection connection = new HsmsConnection(this, eventLoop, channel);
+        try {
+            connection.start();
+        } catch (IOException e) {
+            LOG.error("Socket connection error: " + e.getMessage());
+            connection.close();
+            return;
+        }
+        this.connection = connection;
+        LOG.info(String.format("Connected with host '%s'", connection.getRemoteHost()));
+        setConnectionState(ConnectionState.NOT_SELECTED);
+        startT7Timer(connection);
+        if (linktestInterval > 0) {
+            startLinktestTimer(connection, linktestInterval * 1000L);
+        }
+        if (connectMode == ConnectMode.ACTIVE) {
+            select();
+        }
+        for (SecsEquipment session : sessions.values()) {
+            if (session.isEnabled) {
+                session.attach(connection);
+            }
+        }
+    }
+
+    /**
+     * Joins a session to the newly established connection of its parent. Must
+     * be called from the event loop thread.
+     * 
+     * @param connection
+     *            The connection.
+     */
+    private void attach(HsmsConnection connection) {
+        this.connection = connection;
+        setConnectionState(ConnectionState.NOT_SELECTED);
+        if (parent.connectMode == ConnectMode.ACTIVE) {
+            select();
+        }
+    }
+
+    /**
+     * Selects the connection (ACTIVE connection mode) by sending SELECT_REQ,
+     * guarded by the T6 timeout. Communication is established as soon as the
+     * SELECT_RSP is received. Must be called from the event loop thread.
+     */
+    private void select() {
+        retryTimer = null;
+        if (!isEnabled || connection == null || connectionState != ConnectionState.NOT_SELECTED || selectTransactionId != 0L) {
+            return;
+        }
+        try {
+            ControlMessage message = new ControlMessage(deviceId, 0x00, 0x00, SType.SELECT_REQ, 0L);
+            startControlTransaction(message);
+            selectTransactionId = message.getTransactionId();
+            sendMessage(message, false);
+        } catch (SecsException e) {
+            LOG.error("Internal SECS error while sending SELECT_REQ", e);
+        }
+    }
+
+    /**
+     * Establishes communication (ACTIVE connection mode) by sending S1F13, once
+     * selected. The Communication State is WAIT_CRA until the S1F14 is
+     * received; if communication is denied or the request fails (e.g. on a T3
+     * timeout), it is WAIT_DELAY until the S1F13 is resent after T5. Must be
+     * called from the event loop thread.
+     */
+    private void establishCommunication() {
+        retryTimer = null;
+        if (!isEnabled || connection == null || connectionState != ConnectionState.SELECTED
+                || communicationState == CommunicationState.COMMUNICATING || communicationState == CommunicationState.WAIT_CRA) {
+            return;
+        }
+        S1F13 s1f13 = new S1F13();
+        s1f13.setModelName(modelName);
+        s1f13.setSoftRev(softRev);
+        setCommunicationState(CommunicationState.WAIT_CRA);
+        final HsmsConnection connection = this.connection;
+        try {
+            sendRequest(s1f13, false).whenComplete(new BiConsumer<SecsReplyMessage, Throwable>() {
+                @Override
+                public void accept(SecsReplyMessage replyMessage, Throwable t) {
+                    // S1F14 handled (COMMUNICATING if accepted) or request failed.
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (SecsEquipment.this.connection == connection && communicationState == CommunicationState.WAIT_CRA) {
+                                communicationFailed();
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (SecsException e) {
+            LOG.error("Internal SECS error while sending S1F13", e);
+            communicationFailed();
+        }
+    }
+
+    /**
+     * Schedules to retry establishing communication after T5.
+     */
+    private void communicationFailed() {
+        LOG.warn(String.format("Communication not established; retry in %d seconds", t5));
+        setCommunicationState(CommunicationState.WAIT_DELAY);
+        retryTimer = startTimer(new Runnable() {
+            @Override
+            public void run() {
+                establishCommunication();
+            }
+        }, t5 * 1000L);
+    }
+
+    /**
+     * Handles the connection not being selected (anymore), after which the
+     * ACTIVE entity retries to select it after T5.
+     */
+    private void deselected() {
+        setConnectionState(ConnectionState.NOT_SELECTED);
+        if (connectMode == ConnectMode.ACTIVE || (parent != null && parent.connectMode == ConnectMode.ACTIVE)) {
+            retryTimer = startTimer(new Runnable() {
+                @Override
+                public void run() {
+                    select();
+                }
+            }, t5 * 1000L);
+        }
+    }
+
+    /**
+     * Handles the connection being selected.
+     */
+    private void selected() {
+        setConnectionState(ConnectionState.SELECTED);
+        ConnectionManager connectionManager = this.connectionManager;
+        if (connectionManager != null) {
+            connectionManager.connectionSelected(this);
+        }
+        if (connectMode == ConnectMode.ACTIVE || (parent != null && parent.connectMode == ConnectMode.ACTIVE)) {
+            establishCommunication();
+        }
+    }
+
+    /**
+     * Handles an incoming message frame. Called from the event loop thread. <br />
+     * <br />
+     * 
+     * With an executor set, the frame is owned by this method, so its data
+     * must be closed once handled.
+     * 
+     * @param header
+     *            The buffer with the Length field and message header.
+     * @param data
+     *            The message data, or <code>null</code> for a header-only
+     *            message.
+     */
+    /* package */void frameReceived(final ByteBuffer header, final ByteSource data) {
+        if (!sessions.isEmpty()) {
+            // Route message to session (HSMS-GS).
+            int sessionId = header.getShort(header.position() + SESSION_ID_OFFSET) & 0xffff;
+            SecsEquipment session = sessions.get(sessionId);
+            if (session != null) {
+                if (session.connection == connection) {
+                    session.frameReceived(header, data);
                 } else {
-                    sleep(POLL_INTERVAL);
+                    LOG.warn(String.format("Received message for disabled session %d -- ignored", sessionId));
+                    if (executor != null && data != null) {
+                        data.close();
+                    }
                 }
+                return;
             }
-        } catch (Exception e) {
-            // Internal error (should never happen).
-            LOG.error("Internal error while handling connection", e);
         }
+        Executor executor = (parent != null) ? parent.executor : this.executor;
+        if (executor == null) {
+            // Handle message on the event loop thread.
+            handleFrame(header, data);
+        } else if (header.get(header.position() + STYPE_OFFSET) == 0) {
+            // Data message; decode and handle on the executor.
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleFrame(header, data);
+                    } finally {
+                        if (data != null) {
+                            data.close();
+                        }
+                    }
+                }
+            };
+            if ((header.get(header.position() + FUNCTION_OFFSET) & 0x01) == 0) {
+                // Reply message; never wait for the primary messages being
+                // handled, since their handlers may be waiting for this reply.
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    LOG.error("Internal error while scheduling message", e);
+                    if (data != null) {
+                        data.close();
+                    }
+                }
+            } else {
+                // Primary message; handled in order of arrival.
+                if (receiveExecutor == null || receiveExecutor.getExecutor() != executor) {
+                    receiveExecutor = new SerialExecutor(executor);
+                }
+                try {
+                    receiveExecutor.execute(task);
+                } catch (RuntimeException e) {
+                    // Executor rejected the task (not queued) -- dropped.
+                    LOG.error("Internal error while scheduling message; message dropped", e);
+                    if (data != null) {
+                        data.close();
+                    }
+                }
+            }
+        } else {
+            // Control message; always handle on the event loop thread.
+            try {
+                handleFrame(header, data);
+            } finally {
+                if (data != null) {
+                    data.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes and handles an incoming message frame, sending any reply message.
+     * 
+     * @param header
+     *            The buffer with the Length field and message header.
+     * @param data
+     *            The message data, or <code>null</code> for a header-only
+     *            message.
+     */
+    private void handleFrame(ByteBuffer header, ByteSource data) {
+        try {
+            Message requestMessage = MessageParser.parseMessage(header, data, messageTypes, isLazyDecoding);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace(String.format("Received message: %s", requestMessage));
+            }
+            for (SecsEquipmentListener listener : listeners) {
+                listener.messageReceived(requestMessage);
+            }
+            Message replyMessage = handleMessage(requestMessage);
+            if (replyMessage != null) {
+                sendMessage(replyMessage, false);
+            }
+            
+        } catch (UnsupportedMessageException e) {
+            // Unsupported message type -- ABORT.
+            LOG.warn(e.getMessage());
+            SecsMessage sxf0 = new SxF0(e.getStream());
+            sxf0.setTransactionId(e.getTransactionId());
+            try {
+                sendMessage(sxf0, false);
+            } catch (SecsException e2) {
+                LOG.error("Internal SECS error while sending ABORT message", e2);
+            }
+            
+        } catch (SecsParseException e) {
+            // Protocol fault by remote equipment.
+            LOG.warn("Received invalid SECS message: " + e.getMessage());
+            
+        } catch (SecsException e) {
+            LOG.error("Internal SECS error while handling message", e);
+            
+        } catch (RuntimeException e) {
+            // Error in a message handler or listener; keep the connection.
+            LOG.error("Internal error while handling message", e);
+        }
+    }
 
-        // Disconnect.
-        IOUtils.closeQuietly(os);
-        IOUtils.closeQuietly(is);
-        IOUtils.closeQuietly(socket);
-        disconnect();
+    /**
+     * Handles a connection closed by the remote equipment or due to an I/O
+     * error. Called from the event loop thread.
+     * 
+     * @param connection
+     *            The connection.
+     */
+    /**
+     * Returns the current connection.
+     * 
+     * @return The connection, or <code>null</code> if not connected.
+     */
+    /* package */HsmsConnection getConnection() {
+        return connection;
+    }
+
+    /* package */void connectionClosed(HsmsConnection connection) {
+        if (connection == this.connection) {
+            disconnect();
+        }
     }
 
     private Message handleMessage(Message message) throws SecsException {
         int sessionId = message.getSessionId();
         long transactionId = message.getTransactionId();
-        updateTransactionId(transactionId);
 
         Message replyMessage = null;
 
@@ -568,20 +1665,23 @@ public class SecsEquipment {
                     break;
 
                 case SELECT_RSP:
+                    if (transactionId == selectTransactionId) {
+                        selectTransactionId = 0L;
+                    }
                     if (endTransaction(transactionId)) {
                         int selectStatus = controlMessage.getHeaderByte3();
                         if (selectStatus == 0x00) { // SelectStatus: Communication Established
                             LOG.debug("Received SELECT_RSP message with SelectStatus: Communication Established");
-                            setConnectionState(ConnectionState.SELECTED);
+                            selected();
                         } else if (selectStatus == 0x01) { // SelectStatus: Communication Already Active
                             LOG.debug("Received SELECT_RSP message with SelectStatus: Communication Already Active");
-                            setConnectionState(ConnectionState.SELECTED);
+                            selected();
                         } else if (selectStatus == 0x02) { // SelectStatus: Connection Not Ready
                             LOG.warn("Received SELECT_RSP message with SelectStatus: Connection Not Ready -- Communication failed");
-                            setConnectionState(ConnectionState.NOT_SELECTED);
+                            deselected();
                         } else if (selectStatus == 0x03) { // SelectStatus: Connect Exhaust
                             LOG.warn("Received SELECT_RSP message with SelectStatus: Connect Exhaust -- Communication failed");
-                            setConnectionState(ConnectionState.NOT_SELECTED);
+                            deselected();
                         } else {
                             LOG.warn("Received SELECT_RSP message with invalid SelectStatus: " + selectStatus);
                         }
@@ -594,7 +1694,7 @@ public class SecsEquipment {
                     // Acknowledge DESELECT_REQ if selected, otherwise fail.
                     if (getConnectionState() == ConnectionState.SELECTED) {
                         headerByte3 = 0x00; // DeselectStatus: Success
-                        setConnectionState(ConnectionState.NOT_SELECTED);
+                        deselected();
                     } else {
                         headerByte3 = 0x01; // DeselectStatus: Failed
                     }
@@ -627,6 +1727,14 @@ public class SecsEquipment {
                     break;
 
                 case LINKTEST_RSP:
+                    if (transactionId == linktestTransactionId) {
+                        linktestTransactionId = 0L;
+                        long roundTripTime = (System.nanoTime() - linktestSendTime) / 1000L;
+                        linktestTimes.record(roundTripTime);
+                        if (LOG.isTraceEnabled()) {
+                            LOG.trace(String.format("Linktest round-trip time: %d us", roundTripTime));
+                        }
+                    }
                     if (!endTransaction(transactionId)) {
                         LOG.warn("Unexpected LINKTEST_RSP received -- ignored");
                     }
@@ -647,12 +1755,19 @@ public class SecsEquipment {
             int function = dataMessage.getFunction();
 
             if (function == 0) {
-                // Received SxF0 (ABORT) message; nothing to do.
+                // Received SxF0 (ABORT) message; fail any waiting caller.
                 LOG.warn(String.format("Received ABORT for transaction %d", transactionId));
+                Transaction transaction = removeTransaction(transactionId);
+                if (transaction != null) {
+                    transaction.fail(new SecsException(String.format("Transaction %d aborted by remote equipment", transactionId)));
+                }
             } else if (stream == S9) {
                 // Steam 9 is reserved for generic errors.
-                if (endTransaction(transactionId)) {
-                    LOG.warn(String.format("Received %s for transaction %d", dataMessage.getType(), transactionId));
+                Transaction transaction = removeTransaction(transactionId);
+                if (transaction != null) {
+                    String msg = String.format("Received %s for transaction %d", dataMessage.getType(), transactionId);
+                    LOG.warn(msg);
+                    transaction.fail(new SecsException(msg));
                 } else {
                     LOG.warn(String.format("Received unexpected %s -- ignored", dataMessage.getType()));
                 }
@@ -661,10 +1776,14 @@ public class SecsEquipment {
                 if (dataMessage instanceof SecsPrimaryMessage) {
                     if (communicationState == CommunicationState.COMMUNICATING || dataMessage instanceof S1F13) {
                         // Redirect primary message to specific message handler.
-                        LOG.trace(String.format("Handle primary message %s - %s", dataMessage.getType(), dataMessage.getDescripton()));
+                        if (LOG.isTraceEnabled()) {
+                            LOG.trace(String.format("Handle primary message %s - %s", dataMessage.getType(), dataMessage.getDescripton()));
+                        }
                         replyMessage = ((SecsPrimaryMessage) dataMessage).handle();
-                        replyMessage.setSessionId(deviceId);
-                        replyMessage.setTransactionId(transactionId);
+                        if (replyMessage != null) {
+                            replyMessage.setSessionId(deviceId);
+                            replyMessage.setTransactionId(transactionId);
+                        }
                     } else {
                         // Communication not established yet -- ABORT.
                         SecsMessage sxf0 = new SxF0(stream);
@@ -674,16 +1793,21 @@ public class SecsEquipment {
                 } else if (dataMessage instanceof SecsReplyMessage) {
                     // Reply message.
                     // Try to match with active transaction.
-                    LOG.trace(String.format("Handle reply message %s - %s", dataMessage.getType(), dataMessage.getDescripton()));
-                    synchronized (transactions) {
-                        Transaction transaction = transactions.get(transactionId);
-                        if (transaction != null) {
-                            // Transaction found; set reply message to be processed.
-                            transaction.setReplyMessage(dataMessage);
-                        }
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace(String.format("Handle reply message %s - %s", dataMessage.getType(), dataMessage.getDescripton()));
                     }
+                    Transaction transaction = removeTransaction(transactionId);
                     // Redirect to specific message handler.
                     ((SecsReplyMessage) dataMessage).handle();
+                    if (transaction != null) {
+                        // Transaction found; wake up any waiting caller.
+                        if (LOG.isTraceEnabled()) {
+                            LOG.trace(String.format("Transaction %d ended", transactionId));
+                        }
+                        transaction.setReplyMessage(dataMessage);
+                    } else {
+                        LOG.warn(String.format("Reply message received for unknown transaction %d", transactionId));
+                    }
                 } else {
                     // Internal error (should never happen).
                     throw new SecsException("Invalid type of data message: " + dataMessage);
@@ -695,115 +1819,230 @@ public class SecsEquipment {
     }
     
     private void disconnect() {
-        setCommunicationState(CommunicationState.NOT_COMMUNICATING);
+        if (isEnabled && parent != null && connection != null && connection == parent.connection) {
+            // Session; stay attached to the connection of the parent.
+            separated();
+            return;
+        }
+        HsmsConnection connection = this.connection;
+        this.connection = null;
+        if (connection != null && parent == null) {
+            // Only the parent closes the connection shared with its sessions.
+            connection.close();
+            for (SecsEquipment session : sessions.values()) {
+                if (session.connection == connection) {
+                    session.disconnect();
+                }
+            }
+        }
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+        if (t7Timer != null) {
+            t7Timer.cancel();
+            t7Timer = null;
+        }
+        if (linktestTimer != null) {
+            linktestTimer.cancel();
+            linktestTimer = null;
+        }
+        selectTransactionId = 0L;
+        linktestTransactionId = 0L;
+        if (communicationState != CommunicationState.NOT_ENABLED) {
+            setCommunicationState(CommunicationState.NOT_COMMUNICATING);
+        }
         setConnectionState(ConnectionState.NOT_CONNECTED);
-        connectionThread.interrupt();
+        failTransactions("Disconnected");
         LOG.info("Disconnected");
+        
+        if (isEnabled && parent == null && connectMode == ConnectMode.ACTIVE) {
+            // Re-establish connection.
+            ConnectionManager connectionManager = this.connectionManager;
+            if (connectionManager != null) {
+                connectionManager.connectionLost(this);
+                return;
+            }
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Handles an enabled session (HSMS-GS) no longer being selected (e.g. on
+     * SEPARATE or a T6 timeout), while the connection of its parent remains.
+     * The session stays attached to that connection, so it can be selected
+     * again. Must be called from the event loop thread.
+     */
+    private void separated() {
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+        selectTransactionId = 0L;
+        setCommunicationState(CommunicationState.NOT_COMMUNICATING);
+        failTransactions("Separated");
+        LOG.info("Separated");
+        deselected();
     }
     
     private long getNextTransactionId() {
-        return nextTransactionId++;
+        return transactions.nextTransactionId();
     }
     
-    private void updateTransactionId(long transactionId) {
-        if (transactionId > nextTransactionId) {
-            nextTransactionId = transactionId + 1;
+    private Transaction startTransaction(Message message) throws SecsException {
+        Transaction transaction = transactions.start(message);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(String.format("Transaction %d started for message %s", transaction.getTransactionId(), message));
         }
+        return transaction;
     }
     
-    private void startTransaction(Message message) {
-        synchronized (transactions) {
-            long transactionId = message.getTransactionId();
-            transactions.put(transactionId, new Transaction(message));
-            LOG.trace(String.format("Transaction %d started for message %s", transactionId, message));
-        }
+    /**
+     * Starts an HSMS control transaction (e.g. SELECT_REQ), guarded by the T6
+     * (Control Transaction) timeout. Must be called from the event loop thread.
+     * 
+     * @param message
+     *            The control request message.
+     * 
+     * @throws SecsException
+     *             If the maximum number of open transactions has been reached.
+     */
+    private void startControlTransaction(ControlMessage message) throws SecsException {
+        final Transaction transaction = startTransaction(message);
+        final long transactionId = transaction.getTransactionId();
+        final SType messageType = message.getSType();
+        transaction.setTimer(startTimer(new Runnable() {
+            @Override
+            public void run() {
+                if (removeTransaction(transactionId) != null) {
+                    String msg = String.format("T6 timeout for control message %s with transaction ID %d", messageType, transactionId);
+                    LOG.warn(msg + " -- disconnecting");
+                    transaction.fail(new SecsTimeoutException(msg));
+                    disconnect();
+                }
+            }
+        }, t6 * 1000L));
     }
     
-    private boolean endTransaction(long transactionId) {
-        synchronized (transactions) {
-            if (transactions.containsKey(transactionId)) {
-                transactions.remove(transactionId);
-                LOG.trace(String.format("Transaction %d ended", transactionId));
-                return true;
-            } else {
-                LOG.warn(String.format("Reply message received for unknown transaction %d", transactionId));
-                return false;
+    /**
+     * Arms the T7 (Not Selected) timer for a new connection.
+     * 
+     * @param connection
+     *            The connection.
+     */
+    private void startT7Timer(final HsmsConnection connection) {
+        t7Timer = startTimer(new Runnable() {
+            @Override
+            public void run() {
+                if (SecsEquipment.this.connection == connection && connectionState == ConnectionState.NOT_SELECTED) {
+                    LOG.warn("T7 timeout; connection not selected -- disconnecting");
+                    disconnect();
+                }
             }
-        }
+        }, t7 * 1000L);
     }
     
-    private static void sleep(long duration) {
-        try {
-            Thread.sleep(duration);
-        } catch (InterruptedException e) {
-            // Safe to ignore.
-        }
+    /**
+     * Arms the linktest timer for a connection.
+     * 
+     * @param connection
+     *            The connection.
+     * @param delay
+     *            The delay in milliseconds.
+     */
+    private void startLinktestTimer(final HsmsConnection connection, long delay) {
+        linktestTimer = startTimer(new Runnable() {
+            @Override
+            public void run() {
+                linktest(connection);
+            }
+        }, delay);
     }
-
+    
     /**
-     * Thread to establish a TCP/IP connection to another equipment (ACTIVE
-     * connection mode).
+     * Sends a LINKTEST_REQ, guarded by the T6 timeout, if nothing has been
+     * received on the connection during the linktest interval, and rearms the
+     * linktest timer. Must be called from the event loop thread.
      * 
-     * @author Oscar Stigter
+     * @param connection
+     *            The connection.
      */
-    private class ActiveConnectionThread extends Thread {
-
-        @Override
-        public void run() {
-            while (isEnabled) {
-                if (getCommunicationState() == CommunicationState.NOT_COMMUNICATING) {
-                    LOG.debug(String.format("Connecting to equipment '%s' on port %d", host, port));
-                    try {
-                        socket = new Socket(host, port);
-                        handleConnection();
-                    } catch (IOException e) {
-                        LOG.debug(String.format("Failed to connect to equipment '%s' on port %d", host, port));
-                        SecsEquipment.sleep(t5 * 1000L);
-                    }
-                } else {
-                    SecsEquipment.sleep(POLL_INTERVAL);
-                }
+    private void linktest(HsmsConnection connection) {
+        linktestTimer = null;
+        if (this.connection != connection || linktestInterval == 0) {
+            return;
+        }
+        long interval = linktestInterval * 1000L;
+        long idleTime = (System.nanoTime() - connection.getLastReceiveTime()) / 1000000L;
+        if (idleTime < interval) {
+            // Data received recently; no linktest needed yet.
+            startLinktestTimer(connection, interval - idleTime);
+            return;
+        }
+        if (linktestTransactionId == 0L) {
+            try {
+                ControlMessage message = new ControlMessage(deviceId, 0x00, 0x00, SType.LINKTEST_REQ, 0L);
+                startControlTransaction(message);
+                linktestTransactionId = message.getTransactionId();
+                linktestSendTime = System.nanoTime();
+                sendMessage(message, false);
+            } catch (SecsException e) {
+                LOG.error("Internal SECS error while sending LINKTEST_REQ", e);
             }
         }
+        startLinktestTimer(connection, interval);
     }
-
+    
     /**
-     * Thread to listen for incoming TCP/IP connections from another equipment
-     * (PASSIVE connection mode).
+     * Arms a timer on the shared timing wheel. The task is run on the event
+     * loop thread.
      * 
-     * @author Oscar Stigter
+     * @param task
+     *            The task.
+     * @param delay
+     *            The delay in milliseconds.
+     * 
+     * @return The timer.
      */
-    private class PassiveConnectionThread extends Thread {
-
-        private static final int SOCKET_TIMEOUT = 100;
-
-        @Override
-        public void run() {
-            LOG.info(String.format("Listening for incoming connections on port %d", port));
-            ServerSocket serverSocket = null;
-            try {
-                serverSocket = new ServerSocket(port);
-                serverSocket.setSoTimeout(SOCKET_TIMEOUT);
-                while (isEnabled) {
-                    if (getCommunicationState() == CommunicationState.NOT_COMMUNICATING) {
-                        try {
-                            socket = serverSocket.accept();
-                            handleConnection();
-                        } catch (SocketTimeoutException e) {
-                            // No incoming connections, just continue waiting.
-                        } catch (IOException e) {
-                            LOG.error("Socket connection error: " + e.getMessage());
-                            disconnect();
-                        }
-                    } else {
-                        SecsEquipment.sleep(POLL_INTERVAL);
-                    }
+    /* package */HashedTimingWheel.Timeout startTimer(final Runnable task, long delay) {
+        return timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    eventLoop.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // Event loop stopped; timer no longer relevant.
                 }
-            } catch (IOException e) {
-                LOG.error("Could not start server: " + e.getMessage());
-            } finally {
-                IOUtils.closeQuietly(serverSocket);
             }
+        }, delay);
+    }
+    
+    private Transaction removeTransaction(long transactionId) {
+        return transactions.remove(transactionId);
+    }
+    
+    private void failTransactions(String reason) {
+        for (Transaction transaction : transactions.clear()) {
+            transaction.fail(new SecsException(reason));
+        }
+    }
+    
+    private boolean endTransaction(long transactionId) {
+        Transaction transaction = transactions.remove(transactionId);
+        if (transaction != null) {
+            transaction.cancelTimer();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace(String.format("Transaction %d ended", transactionId));
+            }
+            return true;
+        } else {
+            LOG.warn(String.format("Reply message received for unknown transaction %d", transactionId));
+            return false;
         }
     }
 
@@ -17,14 +17,14 @@
 
 package org.ozsoft.secs4j;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import org.apache.commons.io.IOUtils;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.format.B;
 import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.U2;
-import org.ozsoft.secs4j.format.U4;
-import org.ozsoft.secs4j.util.ConversionUtils;
+import org.ozsoft.secs4j.format.ItemHeader;
+import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.util.BufferPool;
 
 /**
  * SECS data message. <br />
@@ -38,6 +38,12 @@ public abstract class SecsMessage extends Message {
 
     private static final int WITH_REPLY_MASK = 0x80;
 
+    /** The length of the Length field in bytes. */
+    private static final int LENGTH_LENGTH = 4;
+
+    /** The minimum length of B items written without copying them. */
+    private static final int GATHER_THRESHOLD = 1024;
+
     /**
      * Returns the stream.
      * 
@@ -76,11 +82,43 @@ public abstract class SecsMessage extends Message {
         return String.format("S%dF%d", getStream(), getFunction());
     }
 
+    /**
+     * Returns the codec of this message type, if any. <br />
+     * <br />
+     * 
+     * Message types with a codec (typically generated from a
+     * <code>SecsSchema</code> declaration) are encoded and decoded directly
+     * from and to the wire format, without building data items; they need not
+     * implement {@link #parseData(Data)} and {@link #getData()}.
+     * 
+     * @return The codec, or <code>null</code> if none (default).
+     */
+    protected MessageCodec<? extends SecsMessage> getCodec() {
+        return null;
+    }
+
+    /**
+     * Validates the message specific values of a message type with a codec,
+     * after decoding an incoming message and before encoding an outgoing
+     * message. <br />
+     * <br />
+     * 
+     * The default implementation does nothing; the codec already validated the
+     * structure.
+     * 
+     * @throws SecsParseException
+     *             If any of the message specific values are invalid.
+     */
+    protected void validate() throws SecsParseException {
+        // Empty implementation.
+    }
+
     /**
      * Parses the data of an incoming message. <br />
      * <br />
      * 
-     * Typically used to set any message specific values (e.g. COMMACK).
+     * Typically used to set any message specific values (e.g. COMMACK). The
+     * default implementation uses the message type's codec.
      * 
      * @param data
      *            The message data.
@@ -88,49 +126,94 @@ public abstract class SecsMessage extends Message {
      * @throws SecsParseException
      *             If the data could not be parsed due to an invalid message.
      */
-    protected abstract void parseData(Data<?> data) throws SecsParseException;
+    protected void parseData(Data<?> data) throws SecsParseException {
+        if (getCodec() == null) {
+            throw new SecsParseException("No codec or parseData() implementation for " + getType());
+        }
+        decodeData((data != null) ? ByteBuffer.wrap(data.toByteArray()) : ByteBuffer.allocate(0));
+    }
 
     /**
      * Returns the message data. <br />
      * <br />
      * 
      * The data is typically based on message specific values (e.g. COMMACK).
+     * The default implementation uses the message type's codec.
      * 
      * @return The message data.
      * 
      * @throws SecsParseException
      *             If any of the message specific values are not set or invalid.
      */
-    protected abstract Data<?> getData() throws SecsParseException;
+    protected Data<?> getData() throws SecsParseException {
+        MessageCodec<SecsMessage> codec = codec();
+        if (codec == null) {
+            throw new SecsParseException("No codec or getData() implementation for " + getType());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(codec.encodedLength(this));
+        validate();
+        codec.encode(this, buffer);
+        buffer.flip();
+        return MessageParser.decodeData(buffer);
+    }
+
+    /**
+     * Decodes the data of an incoming message with the message type's codec.
+     * 
+     * @param data
+     *            The complete message data.
+     * 
+     * @throws SecsParseException
+     *             If the data is invalid.
+     */
+    /* package */final void decodeData(ByteBuffer data) throws SecsParseException {
+        codec().decode(this, data);
+        validate();
+    }
+
+    /**
+     * Indicates whether the message type has a codec.
+     * 
+     * @return True if it has a codec, otherwise false.
+     */
+    /* package */final boolean hasCodec() {
+        return getCodec() != null;
+    }
 
     @Override
     /* package */final byte[] toByteArray() throws SecsParseException {
-        int length = SecsConstants.HEADER_LENGTH;
+        return encode(null).toByteArray();
+    }
+
+    @Override
+    /* package */final OutboundFrame encode(BufferPool pool) throws SecsParseException {
+        MessageCodec<SecsMessage> codec = codec();
+        if (codec != null) {
+            // Encode directly from the message fields.
+            int dataLength = codec.encodedLength(this);
+            validate();
+            ByteBuffer buffer = allocate(pool, LENGTH_LENGTH + SecsConstants.HEADER_LENGTH + dataLength);
+            writeHeader(buffer, dataLength, headerByte2(), getFunction(), SType.DATA);
+            codec.encode(this, buffer);
+            return new OutboundFrame(pool, buffer).finish();
+        }
+        
+        // Size the message once, then encode it in a single pass.
         Data<?> data = getData();
-        byte[] dataBytes = null;
+        int dataLength = (data != null) ? data.encodedLength() : 0;
+        // Large B items are written from their own arrays instead of being copied.
+        int gatheredLength = (data != null) ? gatheredLength(data) : 0;
+        ByteBuffer buffer = allocate(pool, LENGTH_LENGTH + SecsConstants.HEADER_LENGTH + dataLength - gatheredLength);
+        OutboundFrame frame = new OutboundFrame(pool, buffer);
+        writeHeader(buffer, dataLength, headerByte2(), getFunction(), SType.DATA);
         if (data != null) {
-            dataBytes = data.toByteArray();
-            length += dataBytes.length;
-        }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            baos.write(ConversionUtils.integerToBytes(length, U4.SIZE));
-            baos.write(ConversionUtils.integerToBytes(getSessionId(), U2.SIZE));
-            baos.write((withReply()) ? getStream() | WITH_REPLY_MASK : getStream()); // HeaderByte2
-            baos.write(getFunction()); // HeaderByte3
-            baos.write(PType.SECS_II.getValue());
-            baos.write(SType.DATA.getValue());
-            baos.write(ConversionUtils.integerToBytes(getTransactionId(), U4.SIZE));
-            if (data != null) {
-                baos.write(dataBytes);
+            if (gatheredLength > 0) {
+                writeData(data, frame);
+            } else {
+                data.writeTo(buffer);
             }
-            return baos.toByteArray();
-        } catch (IOException e) {
-            // Internal error (should never happen).
-            throw new SecsParseException("Could not serialize data message", e);
-        } finally {
-            IOUtils.closeQuietly(baos);
         }
+        return frame.finish();
     }
 
     @Override
@@ -146,4 +229,75 @@ public abstract class SecsMessage extends Message {
         return String.format("%s - %s {%s}", getType(), getDescripton(), sb);
     }
 
+    /**
+     * Returns the value of the Header Byte 2 field (stream and W-bit).
+     * 
+     * @return The value of the Header Byte 2 field.
+     */
+    private int headerByte2() {
+        return (withReply()) ? getStream() | WITH_REPLY_MASK : getStream();
+    }
+
+    /**
+     * Returns the codec of this message type.
+     * 
+     * @return The codec, or <code>null</code> if none.
+     */
+    @SuppressWarnings("unchecked")
+    private MessageCodec<SecsMessage> codec() {
+        return (MessageCodec<SecsMessage>) getCodec();
+    }
+
+    /**
+     * Returns the total length of the B item values that are gathered rather
+     * than copied when encoding.
+     * 
+     * @param data
+     *            The data item.
+     * 
+     * @return The gathered length in bytes.
+     */
+    private static int gatheredLength(Data<?> data) {
+        if (data instanceof B) {
+            int length = data.length();
+            return (length >= GATHER_THRESHOLD) ? length : 0;
+        } else if (data instanceof L) {
+            L l = (L) data;
+            int length = 0;
+            int noOfItems = l.length();
+            for (int i = 0; i < noOfItems; i++) {
+                length += gatheredLength(l.getItem(i));
+            }
+            return length;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a data item to a frame, appending the values of large B items as
+     * separate buffers.
+     * 
+     * @param data
+     *            The data item.
+     * @param frame
+     *            The frame.
+     */
+    private static void writeData(Data<?> data, OutboundFrame frame) {
+        ByteBuffer buffer = frame.getBuffer();
+        if (data instanceof B && data.length() >= GATHER_THRESHOLD) {
+            ItemHeader.write(buffer, B.FORMAT_CODE, data.length());
+            frame.append(((B) data).asByteBuffer());
+        } else if (data instanceof L) {
+            L l = (L) data;
+            int noOfItems = l.length();
+            ItemHeader.write(buffer, L.FORMAT_CODE, noOfItems);
+            for (int i = 0; i < noOfItems; i++) {
+                writeData(l.getItem(i), frame);
+            }
+        } else {
+            data.writeTo(buffer);
+        }
+    }
+
 }
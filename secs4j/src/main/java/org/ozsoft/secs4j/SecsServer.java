@@ -0,0 +1,400 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.ozsoft.secs4j.util.HashedTimingWheel;
+
+/**
+ * Container hosting many SECS equipment sessions in a single JVM. <br />
+ * <br />
+ * 
+ * All HSMS connections are served by a small, fixed pool of event loops; each
+ * equipment is assigned to one of them (round-robin) when added. PASSIVE
+ * equipment share a single listening port: an incoming connection is routed to
+ * the equipment whose host matches the remote address of the connection, so
+ * the port configured on the equipment itself is not used. ACTIVE equipment
+ * connect to their own host and port, with the connection attempts of all
+ * ACTIVE equipment orchestrated by a {@link ConnectionManager}. <br />
+ * <br />
+ * 
+ * Equipment are indexed by device ID and by remote address, so routing is a
+ * single hash lookup regardless of the number of equipment hosted.
+ * 
+ * @author Oscar Stigter
+ */
+public class SecsServer {
+
+    /** Default number of event loops. */
+    private static final int DEFAULT_EVENT_LOOPS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static final int MIN_PORT = 1025;
+
+    private static final int MAX_PORT = 65535;
+
+    private static final Logger LOG = Logger.getLogger(SecsServer.class);
+
+    /** The event loops serving the connections. */
+    private final EventLoop[] eventLoops;
+
+    /** The timing wheel for the protocol timers. */
+    private final HashedTimingWheel timer;
+
+    /** The hosted equipment by device ID. */
+    private final Map<Integer, SecsEquipment> equipmentByDeviceId;
+
+    /** The hosted PASSIVE equipment by remote address. */
+    private final Map<InetAddress, SecsEquipment> equipmentByAddress;
+
+    /** The connection manager for the ACTIVE equipment. */
+    private final ConnectionManager connectionManager;
+
+    /** Counter for the round-robin assignment of event loops. */
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /** The listening port. */
+    private int port = SecsConstants.DEFAULT_PORT;
+
+    /** The server channel (accessed from the first event loop only). */
+    private ServerSocketChannel serverChannel;
+
+    /** Whether the server is running. */
+    private volatile boolean isRunning;
+
+    /**
+     * Constructor with the default number of event loops (the number of
+     * processors, with a maximum of 4).
+     */
+    public SecsServer() {
+        this(DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param eventLoopCount
+     *            The number of event loops.
+     */
+    public SecsServer(int eventLoopCount) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("Invalid number of event loops: " + eventLoopCount);
+        }
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("secs4j-server-io-" + (i + 1));
+        }
+        timer = new HashedTimingWheel("secs4j-server-timer", 10L, 512);
+        equipmentByDeviceId = new ConcurrentHashMap<Integer, SecsEquipment>();
+        equipmentByAddress = new ConcurrentHashMap<InetAddress, SecsEquipment>();
+        connectionManager = new ConnectionManager();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public synchronized void setPort(int port) throws SecsConfigurationException {
+        if (port < MIN_PORT || port > MAX_PORT) {
+            throw new SecsConfigurationException("Invalid port number: " + port);
+        }
+        if (isRunning) {
+            throw new SecsConfigurationException("Server already running");
+        }
+        this.port = port;
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Starts the event loops and listens for incoming connections on the
+     * server port.
+     * 
+     * @throws SecsException
+     *             If the server could not be started.
+     */
+    public synchronized void start() throws SecsException {
+        if (isRunning) {
+            throw new SecsException("Server already running");
+        }
+        timer.start();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            listen(serverChannel);
+        } catch (IOException e) {
+            shutdown();
+            throw new SecsException("Could not start server on port " + port, e);
+        }
+        isRunning = true;
+        LOG.info(String.format("Server started on port %d with %d event loop(s)", port, eventLoops.length));
+    }
+
+    /**
+     * Disables all hosted equipment and stops the server.
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        for (SecsEquipment equipment : equipmentByDeviceId.values()) {
+            disable(equipment);
+        }
+        shutdown();
+        LOG.info("Server stopped");
+    }
+
+    /**
+     * Adds an equipment to the server. <br />
+     * <br />
+     * 
+     * The equipment must not be enabled yet; it is assigned an event loop and
+     * the timing wheel of the server, and may be enabled once the server is
+     * running.
+     * 
+     * @param equipment
+     *            The equipment.
+     * 
+     * @throws SecsConfigurationException
+     *             If the equipment is already enabled, its device ID or (in
+     *             PASSIVE mode) its host is already in use, or its host could
+     *             not be resolved.
+     */
+    public synchronized void addEquipment(SecsEquipment equipment) throws SecsConfigurationException {
+        if (equipment.isEnabled()) {
+            throw new SecsConfigurationException("Equipment already enabled");
+        }
+        int deviceId = equipment.getDeviceId();
+        if (equipmentByDeviceId.containsKey(deviceId)) {
+            throw new SecsConfigurationException("Duplicate device ID: " + deviceId);
+        }
+        InetAddress address = null;
+        if (equipment.getConnectMode() == ConnectMode.PASSIVE) {
+            String host = equipment.getHost();
+            try {
+                address = InetAddress.getByName(host);
+            } catch (UnknownHostException e) {
+                throw new SecsConfigurationException("Unknown host: " + host);
+            }
+            if (equipmentByAddress.containsKey(address)) {
+                throw new SecsConfigurationException("Duplicate remote address: " + address.getHostAddress());
+            }
+            equipmentByAddress.put(address, equipment);
+        }
+        equipmentByDeviceId.put(deviceId, equipment);
+        equipment.setEventLoop(eventLoops[nextEventLoop.getAndIncrement() % eventLoops.length]);
+        equipment.setTimer(timer);
+        equipment.setServer(this);
+        if (equipment.getConnectMode() == ConnectMode.ACTIVE) {
+            equipment.setConnectionManager(connectionManager);
+            connectionManager.add(equipment);
+        }
+        LOG.debug(String.format("Added equipment with device ID %d (%s)", deviceId, (address != null) ? address.getHostAddress() : "ACTIVE"));
+    }
+
+    /**
+     * Removes an equipment from the server, disabling it if necessary. The
+     * equipment keeps its event loop, since tasks may still be pending.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    public synchronized void removeEquipment(SecsEquipment equipment) {
+        if (equipmentByDeviceId.remove(equipment.getDeviceId(), equipment)) {
+            equipmentByAddress.values().remove(equipment);
+            disable(equipment);
+            equipment.setServer(null);
+            equipment.setConnectionManager(null);
+            connectionManager.remove(equipment);
+            LOG.debug(String.format("Removed equipment with device ID %d", equipment.getDeviceId()));
+        }
+    }
+
+    /**
+     * Returns the equipment with a specific device ID.
+     * 
+     * @param deviceId
+     *            The device ID.
+     * 
+     * @return The equipment, or <code>null</code> if not hosted.
+     */
+    public SecsEquipment getEquipment(int deviceId) {
+        return equipmentByDeviceId.get(deviceId);
+    }
+
+    /**
+     * Returns the PASSIVE equipment serving connections from a specific remote
+     * address.
+     * 
+     * @param address
+     *            The remote address.
+     * 
+     * @return The equipment, or <code>null</code> if not hosted.
+     */
+    public SecsEquipment getEquipment(InetAddress address) {
+        return equipmentByAddress.get(address);
+    }
+
+    public Collection<SecsEquipment> getEquipment() {
+        return new ArrayList<SecsEquipment>(equipmentByDeviceId.values());
+    }
+
+    public int getEquipmentCount() {
+        return equipmentByDeviceId.size();
+    }
+
+    /**
+     * Registers the server channel with the first event loop.
+     * 
+     * @param serverChannel
+     *            The bound server channel.
+     */
+    private void listen(final ServerSocketChannel serverChannel) {
+        final EventLoop eventLoop = eventLoops[0];
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                SecsServer.this.serverChannel = serverChannel;
+                try {
+                    eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+                        @Override
+                        public void handleEvent(SelectionKey key) throws IOException {
+                            accept();
+                        }
+                    });
+                } catch (IOException e) {
+                    LOG.error("Could not listen for incoming connections: " + e.getMessage());
+                    closeServerChannel();
+                }
+            }
+        });
+    }
+
+    /**
+     * Accepts all pending incoming connections and routes each of them to the
+     * equipment by remote address. Called from the first event loop.
+     * 
+     * @throws IOException
+     *             If a connection could not be accepted.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        while (channel != null) {
+            try {
+                InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                SecsEquipment equipment = equipmentByAddress.get(address);
+                if (equipment != null) {
+                    equipment.connectionAccepted(channel);
+                } else {
+                    LOG.warn(String.format("Incoming connection from unknown host '%s' rejected", address.getHostAddress()));
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Error accepting incoming connection: " + e.getMessage());
+                close(channel);
+            } catch (RuntimeException e) {
+                LOG.error("Internal error while accepting incoming connection", e);
+                close(channel);
+            }
+            channel = serverChannel.accept();
+        }
+    }
+
+    /**
+     * Closes an accepted socket channel that could not be routed.
+     * 
+     * @param channel
+     *            The socket channel.
+     */
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Safe to ignore.
+        }
+    }
+
+    /**
+     * Closes the server channel.
+     */
+    private void closeServerChannel() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Safe to ignore.
+            }
+            serverChannel = null;
+        }
+    }
+
+    /**
+     * Stops the event loops (closing the server channel and any remaining
+     * connections) and the timing wheel.
+     */
+    private void shutdown() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        timer.shutdown();
+    }
+
+    /**
+     * Disables an equipment if it is enabled.
+     * 
+     * @param equipment
+     *            The equipment.
+     */
+    private static void disable(SecsEquipment equipment) {
+        if (equipment.isEnabled()) {
+            try {
+                equipment.setEnabled(false);
+            } catch (SecsException e) {
+                LOG.error("Could not disable equipment with device ID " + equipment.getDeviceId(), e);
+            }
+        }
+    }
+
+}
@@ -17,6 +17,10 @@
 
 package org.ozsoft.secs4j;
 
+import java.util.concurrent.CompletableFuture;
+
+import org.ozsoft.secs4j.util.HashedTimingWheel;
+
 /**
  * SECS data message transaction consisting of a pair of a primary message and corresponding reply message.
  * 
@@ -33,6 +37,12 @@ public class Transaction {
     /** The reply message. */
     private Message replyMessage;
 
+    /** The future completed with the reply message. */
+    private final CompletableFuture<SecsReplyMessage> future;
+
+    /** The reply timer (T3 or T6), if armed. */
+    private volatile HashedTimingWheel.Timeout timer;
+
     /**
      * Constructor.
      * 
@@ -42,6 +52,7 @@ public class Transaction {
     public Transaction(Message primaryMessage) {
         timestamp = System.currentTimeMillis();
         this.primaryMessage = primaryMessage;
+        future = new CompletableFuture<SecsReplyMessage>();
     }
 
     /**
@@ -53,6 +64,15 @@ public class Transaction {
         return timestamp;
     }
 
+    /**
+     * Returns the transaction ID (System Bytes).
+     * 
+     * @return The transaction ID.
+     */
+    public long getTransactionId() {
+        return primaryMessage.getTransactionId();
+    }
+
     /**
      * Returns the primary message.
      * 
@@ -82,6 +102,62 @@ public class Transaction {
             throw new IllegalArgumentException("Reply message does not match request message");
         }
         this.replyMessage = replyMessage;
+        if (replyMessage instanceof SecsReplyMessage) {
+            future.complete((SecsReplyMessage) replyMessage);
+        } else {
+            future.completeExceptionally(new SecsException("Unexpected reply message type: " + replyMessage));
+        }
+        cancelTimer();
+    }
+
+    /**
+     * Returns the future that is completed with the reply message. <br />
+     * <br />
+     * 
+     * The future is completed from the event loop thread, so any dependent
+     * actions must not block.
+     * 
+     * @return The future.
+     */
+    public CompletableFuture<SecsReplyMessage> getFuture() {
+        return future;
+    }
+
+    /**
+     * Fails the transaction without a reply message.
+     * 
+     * @param cause
+     *            The cause (e.g. a T3 timeout).
+     */
+    /* package */void fail(SecsException cause) {
+        future.completeExceptionally(cause);
+        cancelTimer();
+    }
+
+    /**
+     * Sets the reply timer (T3 or T6). The timer is cancelled right away if
+     * the transaction has already completed (e.g. a reply message received
+     * before the timer was set), so it does not keep the transaction alive.
+     * 
+     * @param timer
+     *            The timer.
+     */
+    /* package */void setTimer(HashedTimingWheel.Timeout timer) {
+        this.timer = timer;
+        if (future.isDone()) {
+            cancelTimer();
+        }
+    }
+
+    /**
+     * Cancels the reply timer, if armed.
+     */
+    /* package */void cancelTimer() {
+        HashedTimingWheel.Timeout timer = this.timer;
+        if (timer != null) {
+            timer.cancel();
+            this.timer = null;
+        }
     }
 
 }
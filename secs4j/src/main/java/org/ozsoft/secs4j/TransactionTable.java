@@ -0,0 +1,208 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free table of open transactions, keyed by their System Bytes
+ * (transaction ID). <br />
+ * <br />
+ * 
+ * Since this equipment allocates the System Bytes of its own transactions, the
+ * table is direct-mapped: a transaction is stored in the slot indexed by the
+ * lower bits of its ID, and the allocator simply skips any ID whose slot is
+ * still occupied. Lookups therefore take a single array read without boxing,
+ * and opening and ending transactions only takes a single CAS, so concurrent
+ * senders and the event loop thread never block each other. <br />
+ * <br />
+ * 
+ * Transaction IDs wrap around at 2^32, skipping 0.
+ * 
+ * @author Oscar Stigter
+ */
+/* package */class TransactionTable {
+
+    /** Bit mask for a 32-bit transaction ID. */
+    private static final long ID_MASK = 0xffffffffL;
+
+    /** The slots. */
+    private final AtomicReferenceArray<Transaction> slots;
+
+    /** Bit mask for the slot index. */
+    private final int mask;
+
+    /** The next transaction ID (as unsigned 32-bit integer). */
+    private final AtomicInteger nextId;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            The maximum number of open transactions (rounded up to a
+     *            power of 2).
+     */
+    public TransactionTable(int capacity) {
+        this(capacity, 1L);
+    }
+
+    /**
+     * Constructor with a specific first transaction ID (for testing).
+     * 
+     * @param capacity
+     *            The maximum number of open transactions (rounded up to a
+     *            power of 2).
+     * @param firstTransactionId
+     *            The first transaction ID to allocate.
+     */
+    /* package */TransactionTable(int capacity, long firstTransactionId) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<Transaction>(size);
+        mask = size - 1;
+        nextId = new AtomicInteger((int) firstTransactionId);
+    }
+
+    /**
+     * Returns the capacity.
+     * 
+     * @return The maximum number of open transactions.
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Allocates a transaction ID for a message that does not start a
+     * transaction (e.g. a primary message without reply). Skips the IDs of
+     * open transactions.
+     * 
+     * @return The transaction ID.
+     */
+    public long nextTransactionId() {
+        while (true) {
+            long id = nextId.getAndIncrement() & ID_MASK;
+            if (id != 0L) {
+                Transaction transaction = slots.get(index(id));
+                if (transaction == null || transaction.getTransactionId() != id) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocates a transaction ID for a primary message and opens its
+     * transaction.
+     * 
+     * @param message
+     *            The primary message.
+     * 
+     * @return The transaction.
+     * 
+     * @throws SecsException
+     *             If the maximum number of open transactions has been reached.
+     */
+    public Transaction start(Message message) throws SecsException {
+        // One full round over all slots before giving up.
+        for (int i = 0; i <= slots.length(); i++) {
+            long id = nextId.getAndIncrement() & ID_MASK;
+            if (id == 0L) {
+                continue;
+            }
+            int index = index(id);
+            if (slots.get(index) == null) {
+                message.setTransactionId(id);
+                Transaction transaction = new Transaction(message);
+                if (slots.compareAndSet(index, null, transaction)) {
+                    return transaction;
+                }
+            }
+        }
+        throw new SecsException(String.format("Too many open transactions (maximum: %d)", slots.length()));
+    }
+
+    /**
+     * Returns an open transaction.
+     * 
+     * @param transactionId
+     *            The transaction ID.
+     * 
+     * @return The transaction, or <code>null</code> if not found.
+     */
+    public Transaction get(long transactionId) {
+        Transaction transaction = slots.get(index(transactionId));
+        return (transaction != null && transaction.getTransactionId() == transactionId) ? transaction : null;
+    }
+
+    /**
+     * Ends (removes) an open transaction.
+     * 
+     * @param transactionId
+     *            The transaction ID.
+     * 
+     * @return The transaction, or <code>null</code> if not found (e.g. already
+     *         ended).
+     */
+    public Transaction remove(long transactionId) {
+        int index = index(transactionId);
+        Transaction transaction = slots.get(index);
+        if (transaction != null && transaction.getTransactionId() == transactionId && slots.compareAndSet(index, transaction, null)) {
+            return transaction;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Removes all open transactions.
+     * 
+     * @return The removed transactions.
+     */
+    public List<Transaction> clear() {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < slots.length(); i++) {
+            Transaction transaction = slots.getAndSet(i, null);
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * Returns the slot index of a transaction ID.
+     * 
+     * @param transactionId
+     *            The transaction ID.
+     * 
+     * @return The slot index.
+     */
+    private int index(long transactionId) {
+        return (int) transactionId & mask;
+    }
+
+}
@@ -0,0 +1,755 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.codec;
+
+import java.nio.ByteBuffer;
+
+import org.ozsoft.secs4j.SecsParseException;
+import org.ozsoft.secs4j.format.A;
+import org.ozsoft.secs4j.format.B;
+import org.ozsoft.secs4j.format.F4;
+import org.ozsoft.secs4j.format.F8;
+import org.ozsoft.secs4j.format.I1;
+import org.ozsoft.secs4j.format.I2;
+import org.ozsoft.secs4j.format.I4;
+import org.ozsoft.secs4j.format.I8;
+import org.ozsoft.secs4j.format.ItemHeader;
+import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.format.U1;
+import org.ozsoft.secs4j.format.U2;
+import org.ozsoft.secs4j.format.U4;
+import org.ozsoft.secs4j.format.U8;
+
+/**
+ * Runtime support for generated message codecs. <br />
+ * <br />
+ * 
+ * Decoding methods read a single data item at the buffer's position, validate
+ * its format and length, and advance the position past the item. Numeric
+ * values are big-endian; item length bytes are least significant byte first,
+ * as everywhere in this library.
+ * 
+ * @author Oscar Stigter
+ */
+public final class CodecSupport {
+
+    /**
+     * Private constructor; utility class.
+     */
+    private CodecSupport() {
+        // Empty implementation.
+    }
+
+    /**
+     * Checks that there is any message data.
+     * 
+     * @param data
+     *            The message data.
+     * 
+     * @throws SecsParseException
+     *             If there is no message data.
+     */
+    public static void checkData(ByteBuffer data) throws SecsParseException {
+        if (!data.hasRemaining()) {
+            throw new SecsParseException("Missing data");
+        }
+    }
+
+    /**
+     * Checks that all message data has been decoded.
+     * 
+     * @param data
+     *            The message data.
+     * 
+     * @throws SecsParseException
+     *             If there is any data left.
+     */
+    public static void checkEnd(ByteBuffer data) throws SecsParseException {
+        if (data.hasRemaining()) {
+            throw new SecsParseException(String.format("Unexpected data after message data (%d bytes)", data.remaining()));
+        }
+    }
+
+    /**
+     * Checks that a value is set.
+     * 
+     * @param value
+     *            The value.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the value is not set.
+     */
+    public static <T> T checkSet(T value, String name) throws SecsParseException {
+        if (value == null) {
+            throw new SecsParseException(name + " not set");
+        }
+        return value;
+    }
+
+    /**
+     * Checks the number of values of an array.
+     * 
+     * @param count
+     *            The number of values.
+     * @param expected
+     *            The expected number of values, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @throws SecsParseException
+     *             If the number of values is not as expected.
+     */
+    public static void checkCount(int count, int expected, String name) throws SecsParseException {
+        if (expected >= 0 && count != expected) {
+            throw new SecsParseException(String.format("%s must have exactly %d values", name, expected));
+        }
+    }
+
+    /**
+     * Checks the length of an A value.
+     * 
+     * @param value
+     *            The value.
+     * @param maxLength
+     *            The maximum length, or -1 for any length.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the value is too long.
+     */
+    public static String checkLength(String value, int maxLength, String name) throws SecsParseException {
+        if (maxLength >= 0 && value.length() > maxLength) {
+            throw new SecsParseException(String.format("%s must have a length of at most %d characters", name, maxLength));
+        }
+        return value;
+    }
+
+    /**
+     * Converts a decoded integer value to an <code>int</code>.
+     * 
+     * @param value
+     *            The value.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the value does not fit in an <code>int</code>.
+     */
+    public static int toInt(long value, String name) throws SecsParseException {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new SecsParseException(String.format("%s out of range: %d", name, value));
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns the encoded length of an L item header.
+     * 
+     * @param count
+     *            The number of items.
+     * 
+     * @return The length in bytes.
+     */
+    public static int listLength(int count) {
+        return ItemHeader.encodedLength(count);
+    }
+
+    /**
+     * Returns the encoded length of a (non-L) data item.
+     * 
+     * @param valueLength
+     *            The length of the value in bytes.
+     * 
+     * @return The length in bytes.
+     */
+    public static int itemLength(int valueLength) {
+        return ItemHeader.encodedLength(valueLength) + valueLength;
+    }
+
+    /**
+     * Returns the size of a single value of a numeric format.
+     * 
+     * @param formatCode
+     *            The format code.
+     * 
+     * @return The size in bytes.
+     */
+    public static int valueSize(int formatCode) {
+        switch (formatCode) {
+            case B.FORMAT_CODE:
+            case I1.FORMAT_CODE:
+            case U1.FORMAT_CODE:
+                return 1;
+            case I2.FORMAT_CODE:
+            case U2.FORMAT_CODE:
+                return 2;
+            case I4.FORMAT_CODE:
+            case U4.FORMAT_CODE:
+            case F4.FORMAT_CODE:
+                return 4;
+            case I8.FORMAT_CODE:
+            case U8.FORMAT_CODE:
+            case F8.FORMAT_CODE:
+                return 8;
+            default:
+                throw new IllegalArgumentException("Invalid format code: " + formatCode);
+        }
+    }
+
+    /**
+     * Reads an L item header.
+     * 
+     * @param data
+     *            The message data.
+     * @param count
+     *            The expected number of items.
+     * @param isOptional
+     *            Whether the L may also be empty.
+     * @param name
+     *            The name of the L.
+     * 
+     * @return The number of items.
+     * 
+     * @throws SecsParseException
+     *             If the data item is not an L with the expected number of
+     *             items.
+     */
+    public static int readList(ByteBuffer data, int count, boolean isOptional, String name) throws SecsParseException {
+        int length = readHeader(data, L.FORMAT_CODE, "L", name);
+        if (length != count && !(isOptional && length == 0)) {
+            if (isOptional) {
+                throw new SecsParseException(String.format("%s must contain exactly 0 or %d items", name, count));
+            } else {
+                throw new SecsParseException(String.format("%s must contain exactly %d items", name, count));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads an A item.
+     * 
+     * @param data
+     *            The message data.
+     * @param maxLength
+     *            The maximum length, or -1 for any length.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static String readA(ByteBuffer data, int maxLength, String name) throws SecsParseException {
+        int length = readHeader(data, A.FORMAT_CODE, "A", name);
+        if (maxLength >= 0 && length > maxLength) {
+            throw new SecsParseException(String.format("%s must have a length of at most %d characters", name, maxLength));
+        }
+        char[] chars = new char[length];
+        int position = data.position();
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) data.get(position + i);
+        }
+        data.position(position + length);
+        return new String(chars);
+    }
+
+    /**
+     * Reads a B item with a single byte.
+     * 
+     * @param data
+     *            The message data.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value (0 to 255).
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static int readB1(ByteBuffer data, String name) throws SecsParseException {
+        readValues(data, B.FORMAT_CODE, "B", 1, name);
+        return data.get() & 0xff;
+    }
+
+    /**
+     * Reads a B item.
+     * 
+     * @param data
+     *            The message data.
+     * @param count
+     *            The expected number of bytes, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The bytes.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static byte[] readB(ByteBuffer data, int count, String name) throws SecsParseException {
+        byte[] bytes = new byte[readValues(data, B.FORMAT_CODE, "B", count, name)];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads an integer item (I1 to I8, U1 to U8) with a single value.
+     * 
+     * @param data
+     *            The message data.
+     * @param formatCode
+     *            The format code.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static long readInteger(ByteBuffer data, int formatCode, String name) throws SecsParseException {
+        readValues(data, formatCode, formatName(formatCode), 1, name);
+        return getInteger(data, formatCode);
+    }
+
+    /**
+     * Reads an integer item (I1 to I8, U1 to U8).
+     * 
+     * @param data
+     *            The message data.
+     * @param formatCode
+     *            The format code.
+     * @param count
+     *            The expected number of values, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The values.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static long[] readIntegers(ByteBuffer data, int formatCode, int count, String name) throws SecsParseException {
+        long[] values = new long[readValues(data, formatCode, formatName(formatCode), count, name)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getInteger(data, formatCode);
+        }
+        return values;
+    }
+
+    /**
+     * Reads an F4 item with a single value.
+     * 
+     * @param data
+     *            The message data.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static float readF4(ByteBuffer data, String name) throws SecsParseException {
+        readValues(data, F4.FORMAT_CODE, "F4", 1, name);
+        return data.getFloat();
+    }
+
+    /**
+     * Reads an F4 item.
+     * 
+     * @param data
+     *            The message data.
+     * @param count
+     *            The expected number of values, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The values.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static float[] readF4s(ByteBuffer data, int count, String name) throws SecsParseException {
+        float[] values = new float[readValues(data, F4.FORMAT_CODE, "F4", count, name)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.getFloat();
+        }
+        return values;
+    }
+
+    /**
+     * Reads an F8 item with a single value.
+     * 
+     * @param data
+     *            The message data.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The value.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static double readF8(ByteBuffer data, String name) throws SecsParseException {
+        readValues(data, F8.FORMAT_CODE, "F8", 1, name);
+        return data.getDouble();
+    }
+
+    /**
+     * Reads an F8 item.
+     * 
+     * @param data
+     *            The message data.
+     * @param count
+     *            The expected number of values, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The values.
+     * 
+     * @throws SecsParseException
+     *             If the data item is invalid.
+     */
+    public static double[] readF8s(ByteBuffer data, int count, String name) throws SecsParseException {
+        double[] values = new double[readValues(data, F8.FORMAT_CODE, "F8", count, name)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.getDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Writes an L item header.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param count
+     *            The number of items.
+     */
+    public static void writeList(ByteBuffer buffer, int count) {
+        ItemHeader.write(buffer, L.FORMAT_CODE, count);
+    }
+
+    /**
+     * Writes an A item.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param value
+     *            The value.
+     */
+    public static void writeA(ByteBuffer buffer, String value) {
+        int length = value.length();
+        ItemHeader.write(buffer, A.FORMAT_CODE, length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a B item with a single byte.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param value
+     *            The value.
+     */
+    public static void writeB1(ByteBuffer buffer, int value) {
+        ItemHeader.write(buffer, B.FORMAT_CODE, 1);
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a B item.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param bytes
+     *            The bytes.
+     */
+    public static void writeB(ByteBuffer buffer, byte[] bytes) {
+        ItemHeader.write(buffer, B.FORMAT_CODE, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes an integer item (I1 to I8, U1 to U8) with a single value.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param formatCode
+     *            The format code.
+     * @param value
+     *            The value.
+     */
+    public static void writeInteger(ByteBuffer buffer, int formatCode, long value) {
+        ItemHeader.write(buffer, formatCode, valueSize(formatCode));
+        putInteger(buffer, formatCode, value);
+    }
+
+    /**
+     * Writes an integer item (I1 to I8, U1 to U8).
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param formatCode
+     *            The format code.
+     * @param values
+     *            The values.
+     */
+    public static void writeIntegers(ByteBuffer buffer, int formatCode, long[] values) {
+        ItemHeader.write(buffer, formatCode, values.length * valueSize(formatCode));
+        for (long value : values) {
+            putInteger(buffer, formatCode, value);
+        }
+    }
+
+    /**
+     * Writes an F4 item with a single value.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param value
+     *            The value.
+     */
+    public static void writeF4(ByteBuffer buffer, float value) {
+        ItemHeader.write(buffer, F4.FORMAT_CODE, 4);
+        buffer.putFloat(value);
+    }
+
+    /**
+     * Writes an F4 item.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param values
+     *            The values.
+     */
+    public static void writeF4s(ByteBuffer buffer, float[] values) {
+        ItemHeader.write(buffer, F4.FORMAT_CODE, values.length * 4);
+        for (float value : values) {
+            buffer.putFloat(value);
+        }
+    }
+
+    /**
+     * Writes an F8 item with a single value.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param value
+     *            The value.
+     */
+    public static void writeF8(ByteBuffer buffer, double value) {
+        ItemHeader.write(buffer, F8.FORMAT_CODE, 8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Writes an F8 item.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param values
+     *            The values.
+     */
+    public static void writeF8s(ByteBuffer buffer, double[] values) {
+        ItemHeader.write(buffer, F8.FORMAT_CODE, values.length * 8);
+        for (double value : values) {
+            buffer.putDouble(value);
+        }
+    }
+
+    /**
+     * Reads an item header, checking the format code.
+     * 
+     * @param data
+     *            The message data.
+     * @param formatCode
+     *            The expected format code.
+     * @param formatName
+     *            The name of the expected format.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The item length (in bytes, or in items for an L).
+     * 
+     * @throws SecsParseException
+     *             If the header is invalid or not of the expected format.
+     */
+    private static int readHeader(ByteBuffer data, int formatCode, String formatName, String name) throws SecsParseException {
+        if (data.remaining() < 2) {
+            throw new SecsParseException("Incomplete message data");
+        }
+        int formatByte = data.get() & 0xff;
+        if ((formatByte & 0xfc) != formatCode) {
+            throw new SecsParseException(String.format("%s must be of type %s", name, formatName));
+        }
+        int noOfLengthBytes = formatByte & 0x03;
+        if (noOfLengthBytes == 0) {
+            throw new SecsParseException("Invalid number of length bytes: " + noOfLengthBytes);
+        }
+        if (data.remaining() < noOfLengthBytes) {
+            throw new SecsParseException("Incomplete message data");
+        }
+        int length = 0;
+        for (int i = 0; i < noOfLengthBytes; i++) {
+            length |= (data.get() & 0xff) << (i * 8);
+        }
+        if (formatCode != L.FORMAT_CODE && data.remaining() < length) {
+            throw new SecsParseException("Incomplete message data");
+        }
+        return length;
+    }
+
+    /**
+     * Reads the header of an item with fixed size values, checking the format
+     * code and the number of values.
+     * 
+     * @param data
+     *            The message data.
+     * @param formatCode
+     *            The expected format code.
+     * @param formatName
+     *            The name of the expected format.
+     * @param count
+     *            The expected number of values, or -1 for any number.
+     * @param name
+     *            The name of the value.
+     * 
+     * @return The number of values.
+     * 
+     * @throws SecsParseException
+     *             If the header is invalid or not as expected.
+     */
+    private static int readValues(ByteBuffer data, int formatCode, String formatName, int count, String name) throws SecsParseException {
+        int length = readHeader(data, formatCode, formatName, name);
+        int size = valueSize(formatCode);
+        if (length % size != 0) {
+            throw new SecsParseException(String.format("Invalid %s length: %d", formatName, length));
+        }
+        int noOfValues = length / size;
+        if (count >= 0 && noOfValues != count) {
+            if (count == 1 && size == 1) {
+                throw new SecsParseException(String.format("%s must have a length of exactly 1 byte", name));
+            } else {
+                throw new SecsParseException(String.format("%s must have exactly %d values", name, count));
+            }
+        }
+        return noOfValues;
+    }
+
+    /**
+     * Returns the name of an integer format.
+     * 
+     * @param formatCode
+     *            The format code.
+     * 
+     * @return The format name.
+     */
+    private static String formatName(int formatCode) {
+        switch (formatCode) {
+            case I1.FORMAT_CODE:
+                return "I1";
+            case I2.FORMAT_CODE:
+                return "I2";
+            case I4.FORMAT_CODE:
+                return "I4";
+            case I8.FORMAT_CODE:
+                return "I8";
+            case U1.FORMAT_CODE:
+                return "U1";
+            case U2.FORMAT_CODE:
+                return "U2";
+            case U4.FORMAT_CODE:
+                return "U4";
+            case U8.FORMAT_CODE:
+                return "U8";
+            default:
+                throw new IllegalArgumentException("Invalid integer format code: " + formatCode);
+        }
+    }
+
+    /**
+     * Reads a single integer value at the buffer's position.
+     * 
+     * @param data
+     *            The message data.
+     * @param formatCode
+     *            The format code.
+     * 
+     * @return The value.
+     */
+    private static long getInteger(ByteBuffer data, int formatCode) {
+        switch (formatCode) {
+            case I1.FORMAT_CODE:
+                return data.get();
+            case U1.FORMAT_CODE:
+                return data.get() & 0xffL;
+            case I2.FORMAT_CODE:
+                return data.getShort();
+            case U2.FORMAT_CODE:
+                return data.getShort() & 0xffffL;
+            case I4.FORMAT_CODE:
+                return data.getInt();
+            case U4.FORMAT_CODE:
+                return data.getInt() & 0xffffffffL;
+            default:
+                // I8 or U8.
+                return data.getLong();
+        }
+    }
+
+    /**
+     * Writes a single integer value.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param formatCode
+     *            The format code.
+     * @param value
+     *            The value.
+     */
+    private static void putInteger(ByteBuffer buffer, int formatCode, long value) {
+        switch (valueSize(formatCode)) {
+            case 1:
+                buffer.put((byte) value);
+                break;
+            case 2:
+                buffer.putShort((short) value);
+                break;
+            case 4:
+                buffer.putInt((int) value);
+                break;
+            default:
+                buffer.putLong(value);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.codec;
+
+import java.nio.ByteBuffer;
+
+import org.ozsoft.secs4j.SecsMessage;
+import org.ozsoft.secs4j.SecsParseException;
+
+/**
+ * Encoder and decoder of the data of a specific message type, reading and
+ * writing the SECS-II wire format directly, without building data items. <br />
+ * <br />
+ * 
+ * Codecs are typically generated from a {@link SecsSchema} declaration.
+ * 
+ * @param <T>
+ *            The message type.
+ * 
+ * @author Oscar Stigter
+ */
+public interface MessageCodec<T extends SecsMessage> {
+
+    /**
+     * Returns the length of a message's encoded data.
+     * 
+     * @param message
+     *            The message.
+     * 
+     * @return The length in bytes.
+     * 
+     * @throws SecsParseException
+     *             If any of the message specific values are not set or invalid.
+     */
+    int encodedLength(T message) throws SecsParseException;
+
+    /**
+     * Encodes a message's data. The buffer must have room for at least
+     * {@link #encodedLength(SecsMessage)} bytes.
+     * 
+     * @param message
+     *            The message.
+     * @param buffer
+     *            The buffer to write to.
+     */
+    void encode(T message, ByteBuffer buffer);
+
+    /**
+     * Decodes message data into a message.
+     * 
+     * @param message
+     *            The message.
+     * @param data
+     *            The complete message data, from its position to its limit
+     *            (empty if the message has no data).
+     * 
+     * @throws SecsParseException
+     *             If the data does not have the expected structure.
+     */
+    void decode(T message, ByteBuffer data) throws SecsParseException;
+
+}
@@ -0,0 +1,78 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.codec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the SECS-II structure of a message's data, from which a codec is
+ * generated at build time. <br />
+ * <br />
+ * 
+ * The structure is written in an SML-like notation, mirroring the format
+ * description of the message, with the name of the message field holding the
+ * value of each item, for example:
+ * 
+ * <pre>
+ * &#64;SecsSchema("&lt;L &lt;B:1 commAck&gt; &lt;L? &lt;A modelName&gt; &lt;A softRev&gt;&gt;&gt;")
+ * </pre>
+ * 
+ * Supported items:
+ * <ul>
+ * <li><code>&lt;L ...&gt;</code>: a list with exactly the specified items</li>
+ * <li><code>&lt;L? ...&gt;</code>: a list with either the specified items, or
+ * none at all (received as empty A values)</li>
+ * <li><code>&lt;A field&gt;</code>, <code>&lt;A:n field&gt;</code>: a
+ * <code>String</code>, optionally of at most <i>n</i> characters</li>
+ * <li><code>&lt;B:1 field&gt;</code>: an <code>int</code> or
+ * <code>Integer</code>; <code>&lt;B field&gt;</code>: a <code>byte[]</code></li>
+ * <li><code>&lt;U1:1 field&gt;</code> (also U2, U4, U8, I1, I2, I4, I8): an
+ * <code>int</code>, <code>long</code> or their wrappers;
+ * <code>&lt;U1 field&gt;</code>: a <code>long[]</code></li>
+ * <li><code>&lt;F4:1 field&gt;</code>, <code>&lt;F8:1 field&gt;</code>: a
+ * <code>float</code> or <code>double</code> (or their wrappers);
+ * <code>&lt;F4 field&gt;</code>, <code>&lt;F8 field&gt;</code>: a
+ * <code>float[]</code> or <code>double[]</code></li>
+ * </ul>
+ * 
+ * A length <i>n</i> other than 1 for an array requires exactly <i>n</i> values.
+ * The fields must not be private. <br />
+ * <br />
+ * 
+ * The generated codec is named after the message class with the suffix
+ * <code>Codec</code>, in the same package, and is used by overriding
+ * <code>SecsMessage.getCodec()</code>.
+ * 
+ * @author Oscar Stigter
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface SecsSchema {
+
+    /**
+     * Returns the structure of the message data.
+     * 
+     * @return The structure.
+     */
+    String value();
+
+}
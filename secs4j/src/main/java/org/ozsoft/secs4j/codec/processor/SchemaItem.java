@@ -0,0 +1,242 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.codec.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data item of a message schema, as declared with <code>SecsSchema</code>.
+ * 
+ * @author Oscar Stigter
+ */
+/* package */class SchemaItem {
+
+    /** The format name (e.g. "L" or "U4"). */
+    private final String format;
+
+    /** Whether an L may also be empty. */
+    private final boolean isOptional;
+
+    /** The declared length (max. characters for an A, values otherwise), or -1. */
+    private final int length;
+
+    /** The name of the field holding the value (not for an L). */
+    private final String field;
+
+    /** The child items of an L. */
+    private final List<SchemaItem> items;
+
+    /**
+     * Constructor.
+     * 
+     * @param format
+     *            The format name.
+     * @param isOptional
+     *            Whether an L may also be empty.
+     * @param length
+     *            The declared length, or -1.
+     * @param field
+     *            The name of the field, or <code>null</code> for an L.
+     */
+    private SchemaItem(String format, boolean isOptional, int length, String field) {
+        this.format = format;
+        this.isOptional = isOptional;
+        this.length = length;
+        this.field = field;
+        items = new ArrayList<SchemaItem>();
+    }
+
+    /**
+     * Parses a schema.
+     * 
+     * @param schema
+     *            The schema.
+     * 
+     * @return The top-level data item.
+     * 
+     * @throws IllegalArgumentException
+     *             If the schema is invalid.
+     */
+    public static SchemaItem parse(String schema) {
+        Parser parser = new Parser(schema);
+        SchemaItem item = parser.parseItem();
+        parser.skipWhitespace();
+        if (parser.position < schema.length()) {
+            throw new IllegalArgumentException("Unexpected text after top-level item at position " + parser.position);
+        }
+        return item;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public boolean isList() {
+        return format.equals("L");
+    }
+
+    public boolean isOptional() {
+        return isOptional;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public List<SchemaItem> getItems() {
+        return items;
+    }
+
+    /**
+     * Indicates whether the item holds a single value.
+     * 
+     * @return True if a single value, otherwise false.
+     */
+    public boolean isScalar() {
+        return length == 1 && !format.equals("A");
+    }
+
+    /**
+     * Schema parser.
+     */
+    private static class Parser {
+
+        /** The schema. */
+        private final String text;
+
+        /** The current position. */
+        private int position;
+
+        /**
+         * Constructor.
+         * 
+         * @param text
+         *            The schema.
+         */
+        public Parser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Parses the item at the current position.
+         * 
+         * @return The item.
+         */
+        public SchemaItem parseItem() {
+            skipWhitespace();
+            expect('<');
+            String type = parseWord();
+            if (type.equals("L") || type.equals("L?")) {
+                SchemaItem list = new SchemaItem("L", type.endsWith("?"), -1, null);
+                skipWhitespace();
+                while (position < text.length() && text.charAt(position) == '<') {
+                    list.items.add(parseItem());
+                    skipWhitespace();
+                }
+                expect('>');
+                if (list.items.isEmpty()) {
+                    throw new IllegalArgumentException("Empty L at position " + position);
+                }
+                return list;
+            } else {
+                String format = type;
+                int length = -1;
+                int p = type.indexOf(':');
+                if (p != -1) {
+                    format = type.substring(0, p);
+                    try {
+                        length = Integer.parseInt(type.substring(p + 1));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid length: " + type);
+                    }
+                    if (length < 0) {
+                        throw new IllegalArgumentException("Invalid length: " + type);
+                    }
+                }
+                if (!isSupportedFormat(format)) {
+                    throw new IllegalArgumentException("Unsupported format: " + format);
+                }
+                String field = parseWord();
+                if (field.isEmpty()) {
+                    throw new IllegalArgumentException("Missing field name at position " + position);
+                }
+                expect('>');
+                return new SchemaItem(format, false, length, field);
+            }
+        }
+
+        /**
+         * Skips any whitespace.
+         */
+        public void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        /**
+         * Parses a word (up to the next whitespace or angle bracket).
+         * 
+         * @return The word.
+         */
+        private String parseWord() {
+            skipWhitespace();
+            int start = position;
+            while (position < text.length()) {
+                char c = text.charAt(position);
+                if (Character.isWhitespace(c) || c == '<' || c == '>') {
+                    break;
+                }
+                position++;
+            }
+            return text.substring(start, position);
+        }
+
+        /**
+         * Consumes an expected character.
+         * 
+         * @param c
+         *            The character.
+         */
+        private void expect(char c) {
+            skipWhitespace();
+            if (position >= text.length() || text.charAt(position) != c) {
+                throw new IllegalArgumentException(String.format("Expected '%c' at position %d", c, position));
+            }
+            position++;
+        }
+
+        /**
+         * Indicates whether a (non-L) format is supported.
+         * 
+         * @param format
+         *            The format name.
+         * 
+         * @return True if supported, otherwise false.
+         */
+        private static boolean isSupportedFormat(String format) {
+            return format.equals("A") || format.equals("B") || format.equals("F4") || format.equals("F8") || format.matches("[IU][1248]");
+        }
+
+    }
+
+}
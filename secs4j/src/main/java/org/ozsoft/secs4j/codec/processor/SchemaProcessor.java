@@ -0,0 +1,458 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.codec.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.ozsoft.secs4j.codec.SecsSchema;
+
+/**
+ * Annotation processor generating message codecs from {@link SecsSchema}
+ * declarations. <br />
+ * <br />
+ * 
+ * For each annotated message class <code>X</code>, a class
+ * <code>XCodec</code> implementing <code>MessageCodec&lt;X&gt;</code> is
+ * generated in the same package. The codec accesses the message fields
+ * directly and reads and writes the wire format in a single pass, validating
+ * the structure while decoding. Fixed parts of the encoded length are computed
+ * at build time. <br />
+ * <br />
+ * 
+ * This processor only depends on the JDK and the annotation itself, so it can
+ * be compiled ahead of the rest of the library.
+ * 
+ * @author Oscar Stigter
+ */
+@SupportedAnnotationTypes("org.ozsoft.secs4j.codec.SecsSchema")
+public class SchemaProcessor extends AbstractProcessor {
+
+    /** Suffix of generated codec classes. */
+    private static final String CODEC_SUFFIX = "Codec";
+
+    /** Package of the data item format classes. */
+    private static final String FORMAT_PACKAGE = "org.ozsoft.secs4j.format.";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(SecsSchema.class)) {
+            if (element.getKind() != ElementKind.CLASS || element.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+                error("@SecsSchema is only supported on top-level classes", element);
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            SchemaItem root;
+            try {
+                root = SchemaItem.parse(type.getAnnotation(SecsSchema.class).value());
+            } catch (IllegalArgumentException e) {
+                error("Invalid schema: " + e.getMessage(), element);
+                continue;
+            }
+            try {
+                generate(type, root);
+            } catch (SchemaException e) {
+                error(e.getMessage(), element);
+            } catch (IOException e) {
+                error("Could not write codec: " + e.getMessage(), element);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates the codec for a message class.
+     * 
+     * @param type
+     *            The message class.
+     * @param root
+     *            The top-level data item.
+     * 
+     * @throws SchemaException
+     *             If the schema does not match the message fields.
+     * @throws IOException
+     *             If the codec could not be written.
+     */
+    private void generate(TypeElement type, SchemaItem root) throws SchemaException, IOException {
+        Map<String, VariableElement> fields = new HashMap<String, VariableElement>();
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.FIELD) {
+                fields.put(member.getSimpleName().toString(), (VariableElement) member);
+            }
+        }
+
+        Generator generator = new Generator(fields);
+        generator.generate(root);
+
+        String packageName = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+        String messageName = type.getSimpleName().toString();
+        String codecName = messageName + CODEC_SUFFIX;
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated from the @SecsSchema declaration of ").append(messageName).append("; do not edit.\n\n");
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        sb.append("import java.nio.ByteBuffer;\n\n");
+        sb.append("import org.ozsoft.secs4j.SecsParseException;\n");
+        sb.append("import org.ozsoft.secs4j.codec.CodecSupport;\n");
+        sb.append("import org.ozsoft.secs4j.codec.MessageCodec;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Codec for the <code>").append(messageName).append("</code> message: <code>");
+        sb.append(escape(type.getAnnotation(SecsSchema.class).value())).append("</code>\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(codecName).append(" implements MessageCodec<").append(messageName).append("> {\n\n");
+        sb.append("    /** The shared instance. */\n");
+        sb.append("    public static final ").append(codecName).append(" INSTANCE = new ").append(codecName).append("();\n\n");
+        sb.append("    private ").append(codecName).append("() {\n");
+        sb.append("        // Stateless; use INSTANCE.\n");
+        sb.append("    }\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public int encodedLength(").append(messageName).append(" message) throws SecsParseException {\n");
+        sb.append("        int length = ").append(generator.fixedLength).append(";\n");
+        sb.append(generator.lengthCode);
+        sb.append("        return length;\n");
+        sb.append("    }\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public void encode(").append(messageName).append(" message, ByteBuffer buffer) {\n");
+        sb.append(generator.encodeCode);
+        sb.append("    }\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public void decode(").append(messageName).append(" message, ByteBuffer data) throws SecsParseException {\n");
+        sb.append("        CodecSupport.checkData(data);\n");
+        sb.append(generator.decodeCode);
+        sb.append("        CodecSupport.checkEnd(data);\n");
+        sb.append("    }\n\n");
+        sb.append("}\n");
+
+        String qualifiedName = (packageName.isEmpty()) ? codecName : packageName + '.' + codecName;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reports an error on an element.
+     * 
+     * @param message
+     *            The error message.
+     * @param element
+     *            The element.
+     */
+    private void error(String message, Element element) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * Escapes a schema for use in a doc comment.
+     * 
+     * @param text
+     *            The text.
+     * 
+     * @return The escaped text.
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("*/", "*&#47;");
+    }
+
+    /**
+     * Returns the encoded length of an item header.
+     * 
+     * @param length
+     *            The item length (in bytes, or in items for an L).
+     * 
+     * @return The header length in bytes.
+     */
+    private static int headerLength(int length) {
+        return (length > 0xffff) ? 4 : (length > 0xff) ? 3 : 2;
+    }
+
+    /**
+     * Returns the size of a single value of a (non-A) format.
+     * 
+     * @param format
+     *            The format name.
+     * 
+     * @return The size in bytes.
+     */
+    private static int valueSize(String format) {
+        if (format.equals("B")) {
+            return 1;
+        } else {
+            return Integer.parseInt(format.substring(1));
+        }
+    }
+
+    /**
+     * Generator of the codec method bodies.
+     */
+    private static class Generator {
+
+        /** The message fields by name. */
+        private final Map<String, VariableElement> fields;
+
+        /** The fixed part of the encoded length. */
+        private int fixedLength;
+
+        /** The code adding the variable parts of the encoded length. */
+        private final StringBuilder lengthCode = new StringBuilder();
+
+        /** The body of the encode method. */
+        private final StringBuilder encodeCode = new StringBuilder();
+
+        /** The body of the decode method. */
+        private final StringBuilder decodeCode = new StringBuilder();
+
+        /**
+         * Constructor.
+         * 
+         * @param fields
+         *            The message fields by name.
+         */
+        public Generator(Map<String, VariableElement> fields) {
+            this.fields = fields;
+        }
+
+        /**
+         * Generates the code for an item (recursively).
+         * 
+         * @param item
+         *            The item.
+         * 
+         * @throws SchemaException
+         *             If the item does not match its field.
+         */
+        public void generate(SchemaItem item) throws SchemaException {
+            generate(item, 2);
+        }
+
+        private void generate(SchemaItem item, int indent) throws SchemaException {
+            if (item.isList()) {
+                List<SchemaItem> items = item.getItems();
+                fixedLength += headerLength(items.size());
+                line(encodeCode, 2, "CodecSupport.writeList(buffer, %d);", items.size());
+                if (item.isOptional()) {
+                    line(decodeCode, indent, "if (CodecSupport.readList(data, %d, true, \"L\") != 0) {", items.size());
+                    for (SchemaItem child : items) {
+                        generate(child, indent + 1);
+                    }
+                    line(decodeCode, indent, "} else {");
+                    line(decodeCode, indent + 1, "// Empty L; no values specified.");
+                    clearStrings(item, indent + 1);
+                    line(decodeCode, indent, "}");
+                } else {
+                    line(decodeCode, indent, "CodecSupport.readList(data, %d, false, \"L\");", items.size());
+                    for (SchemaItem child : items) {
+                        generate(child, indent);
+                    }
+                }
+            } else {
+                generateValue(item, indent);
+            }
+        }
+
+        private void generateValue(SchemaItem item, int indent) throws SchemaException {
+            String name = item.getField();
+            VariableElement field = fields.get(name);
+            if (field == null) {
+                throw new SchemaException("No field '" + name + "' for schema item " + item.getFormat());
+            }
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL)) {
+                throw new SchemaException("Field '" + name + "' must not be private, static or final");
+            }
+            String type = field.asType().toString();
+            String format = item.getFormat();
+            String value = "message." + name;
+            String quoted = '"' + name + '"';
+            boolean isBoxed = type.startsWith("java.lang.");
+
+            if (format.equals("A")) {
+                checkType(name, type, "java.lang.String");
+                int maxLength = item.getLength();
+                String checked = String.format("CodecSupport.checkSet(%s, %s)", value, quoted);
+                if (maxLength >= 0) {
+                    checked = String.format("CodecSupport.checkLength(%s, %d, %s)", checked, maxLength, quoted);
+                }
+                line(lengthCode, 2, "length += CodecSupport.itemLength(%s.length());", checked);
+                line(encodeCode, 2, "CodecSupport.writeA(buffer, %s);", value);
+                line(decodeCode, indent, "%s = CodecSupport.readA(data, %d, %s);", value, maxLength, quoted);
+                return;
+            }
+
+            int size = valueSize(format);
+            boolean isInteger = !format.equals("B") && !format.startsWith("F");
+            String formatCode = FORMAT_PACKAGE + format + ".FORMAT_CODE";
+            if (item.isScalar()) {
+                if (format.equals("B")) {
+                    checkType(name, type, "int", "java.lang.Integer");
+                    line(encodeCode, 2, "CodecSupport.writeB1(buffer, %s);", value);
+                    line(decodeCode, indent, "%s = CodecSupport.readB1(data, %s);", value, quoted);
+                } else if (isInteger) {
+                    checkType(name, type, "int", "java.lang.Integer", "long", "java.lang.Long");
+                    line(encodeCode, 2, "CodecSupport.writeInteger(buffer, %s, %s);", formatCode, value);
+                    String read = String.format("CodecSupport.readInteger(data, %s, %s)", formatCode, quoted);
+                    if (type.equals("int") || type.equals("java.lang.Integer")) {
+                        read = String.format("CodecSupport.toInt(%s, %s)", read, quoted);
+                    }
+                    line(decodeCode, indent, "%s = %s;", value, read);
+                } else if (format.equals("F4")) {
+                    checkType(name, type, "float", "java.lang.Float");
+                    line(encodeCode, 2, "CodecSupport.writeF4(buffer, %s);", value);
+                    line(decodeCode, indent, "%s = CodecSupport.readF4(data, %s);", value, quoted);
+                } else {
+                    checkType(name, type, "double", "java.lang.Double");
+                    line(encodeCode, 2, "CodecSupport.writeF8(buffer, %s);", value);
+                    line(decodeCode, indent, "%s = CodecSupport.readF8(data, %s);", value, quoted);
+                }
+                fixedLength += headerLength(size) + size;
+                if (isBoxed) {
+                    line(lengthCode, 2, "CodecSupport.checkSet(%s, %s);", value, quoted);
+                }
+            } else {
+                int count = item.getLength();
+                String read;
+                if (format.equals("B")) {
+                    checkType(name, type, "byte[]");
+                    line(encodeCode, 2, "CodecSupport.writeB(buffer, %s);", value);
+                    read = String.format("CodecSupport.readB(data, %d, %s)", count, quoted);
+                } else if (isInteger) {
+                    checkType(name, type, "long[]");
+                    line(encodeCode, 2, "CodecSupport.writeIntegers(buffer, %s, %s);", formatCode, value);
+                    read = String.format("CodecSupport.readIntegers(data, %s, %d, %s)", formatCode, count, quoted);
+                } else if (format.equals("F4")) {
+                    checkType(name, type, "float[]");
+                    line(encodeCode, 2, "CodecSupport.writeF4s(buffer, %s);", value);
+                    read = String.format("CodecSupport.readF4s(data, %d, %s)", count, quoted);
+                } else {
+                    checkType(name, type, "double[]");
+                    line(encodeCode, 2, "CodecSupport.writeF8s(buffer, %s);", value);
+                    read = String.format("CodecSupport.readF8s(data, %d, %s)", count, quoted);
+                }
+                line(lengthCode, 2, "CodecSupport.checkCount(CodecSupport.checkSet(%s, %s).length, %d, %s);", value, quoted, count, quoted);
+                line(lengthCode, 2, "length += CodecSupport.itemLength(%s.length * %d);", value, size);
+                line(decodeCode, indent, "%s = %s;", value, read);
+            }
+        }
+
+        /**
+         * Generates code setting all A values within an (empty) L to empty
+         * strings.
+         * 
+         * @param list
+         *            The L.
+         * @param indent
+         *            The indentation level.
+         */
+        private void clearStrings(SchemaItem list, int indent) {
+            for (SchemaItem item : list.getItems()) {
+                if (item.isList()) {
+                    clearStrings(item, indent);
+                } else if (item.getFormat().equals("A")) {
+                    line(decodeCode, indent, "message.%s = \"\";", item.getField());
+                }
+            }
+        }
+
+        /**
+         * Checks the type of a field.
+         * 
+         * @param name
+         *            The field name.
+         * @param type
+         *            The field type.
+         * @param allowedTypes
+         *            The allowed types.
+         * 
+         * @throws SchemaException
+         *             If the type is not allowed.
+         */
+        private static void checkType(String name, String type, String... allowedTypes) throws SchemaException {
+            for (String allowedType : allowedTypes) {
+                if (allowedType.equals(type)) {
+                    return;
+                }
+            }
+            throw new SchemaException(String.format("Field '%s' has type %s; expected %s", name, type, String.join(" or ", allowedTypes)));
+        }
+
+        /**
+         * Appends a line of code.
+         * 
+         * @param sb
+         *            The code.
+         * @param indent
+         *            The indentation level.
+         * @param format
+         *            The line format.
+         * @param args
+         *            The format arguments.
+         */
+        private static void line(StringBuilder sb, int indent, String format, Object... args) {
+            for (int i = 0; i < indent; i++) {
+                sb.append("    ");
+            }
+            sb.append(String.format(format, args)).append('\n');
+        }
+
+    }
+
+    /**
+     * Schema not matching the annotated message class.
+     */
+    private static class SchemaException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         * 
+         * @param message
+         *            The message.
+         */
+        public SchemaException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -17,9 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
-import org.apache.commons.io.IOUtils;
 
 /**
  * SECS data item A (single 7-bit ASCII text).
@@ -68,39 +67,22 @@ public class A implements Data<String> {
 
     @Override
     public byte[] toByteArray() {
-        // Determine length.
+        return ItemHeader.toByteArray(this);
+    }
+
+    @Override
+    public int encodedLength() {
         int length = length();
-        int noOfLengthBytes = 1;
-        B lengthBytes = new B();
-        lengthBytes.add(length & 0xff);
-        if (length > 0xff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 8) & 0xff);
-        }
-        if (length > 0xffff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 16) & 0xff);
-        }
-        
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            // Write format byte.
-            baos.write(FORMAT_CODE | noOfLengthBytes);
-            
-            // Write length bytes.
-            for (int i = 0; i < noOfLengthBytes; i++) {
-                baos.write(lengthBytes.get(i));
-            }
-            
-            // Write character bytes.
-            for (int b : value.getBytes()) {
-                baos.write(b);
-            }
-            
-            return baos.toByteArray();
-            
-        } finally {
-            IOUtils.closeQuietly(baos);
+        return ItemHeader.encodedLength(length) + length;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int length = length();
+        ItemHeader.write(buffer, FORMAT_CODE, length);
+        // Write character bytes (7-bit ASCII).
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
         }
     }
 
@@ -14,17 +14,21 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package org.ozsoft.secs4j.format;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-
-import org.apache.commons.io.IOUtils;
+import java.util.RandomAccess;
 
 /**
- * SECS data item B (sequence of bytes).
+ * SECS data item B (sequence of bytes). <br />
+ * <br />
+ * 
+ * The bytes are stored in a region of a byte array. An existing array (or a
+ * heap buffer) can be wrapped without copying; the wrapped region is copied
+ * only when bytes are added.
  * 
  * @author Oscar Stigter
  */
@@ -39,8 +43,23 @@ public class B implements Data<List<Integer>> {
     /** Maximum value. */
     public static final int MAX_VALUE = 0xff;
 
-    /** The bytes. */
-    private List<Integer> bytes = new ArrayList<Integer>();
+    /** Empty byte array. */
+    private static final byte[] EMPTY = new byte[0];
+
+    /** The initial capacity of the byte array. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The byte array. */
+    private byte[] bytes = EMPTY;
+
+    /** The offset of the first byte in the byte array. */
+    private int offset;
+
+    /** The number of bytes. */
+    private int count;
+
+    /** Whether the byte array is shared (wrapped) and must not be modified. */
+    private boolean isShared;
 
     /**
      * Constructor with an initial empty byte sequence.
@@ -79,6 +98,76 @@ public class B implements Data<List<Integer>> {
         add(data);
     }
 
+    /**
+     * Returns a B data item wrapping a byte array, without copying it. <br />
+     * <br />
+     * 
+     * Changes to the array are reflected by the data item.
+     * 
+     * @param data
+     *            The byte array.
+     * 
+     * @return The data item.
+     */
+    public static B wrap(byte[] data) {
+        return wrap(data, 0, data.length);
+    }
+
+    /**
+     * Returns a B data item wrapping a region of a byte array, without copying
+     * it. <br />
+     * <br />
+     * 
+     * Changes to the region are reflected by the data item.
+     * 
+     * @param data
+     *            The byte array.
+     * @param offset
+     *            The offset of the region.
+     * @param length
+     *            The length of the region.
+     * 
+     * @return The data item.
+     */
+    public static B wrap(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(String.format("Invalid region: offset %d, length %d", offset, length));
+        }
+        B b = new B();
+        b.bytes = data;
+        b.offset = offset;
+        b.count = length;
+        b.isShared = true;
+        return b;
+    }
+
+    /**
+     * Returns a B data item with the remaining bytes of a buffer. <br />
+     * <br />
+     * 
+     * Heap buffers are wrapped without copying; changes to their content are
+     * reflected by the data item. The buffer's position is advanced to its
+     * limit.
+     * 
+     * @param buffer
+     *            The buffer.
+     * 
+     * @return The data item.
+     */
+    public static B wrap(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        B b;
+        if (buffer.hasArray() && !buffer.isReadOnly()) {
+            b = wrap(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        } else {
+            byte[] data = new byte[length];
+            buffer.duplicate().get(data);
+            b = wrap(data);
+        }
+        buffer.position(buffer.limit());
+        return b;
+    }
+
     /**
      * Returs the byte at the specified index position.
      * 
@@ -88,7 +177,10 @@ public class B implements Data<List<Integer>> {
      * @return The byte.
      */
     public int get(int index) {
-        return bytes.get(index);
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        return bytes[offset + index] & 0xff;
     }
 
     /**
@@ -98,84 +190,119 @@ public class B implements Data<List<Integer>> {
      *            The byte.
      */
     public void add(byte b) {
-        add((int) b);
+        ensureCapacity(count + 1);
+        bytes[count++] = b;
     }
 
+    /**
+     * Returns a (modifiable) list view of the bytes as unsigned values.
+     * 
+     * @return The bytes.
+     */
     @Override
     public List<Integer> getValue() {
-        return bytes;
+        return new ValueList();
     }
 
     @Override
     public void setValue(List<Integer> bytes) {
-        this.bytes = bytes;
+        byte[] data = new byte[bytes.size()];
+        int i = 0;
+        for (int b : bytes) {
+            checkValue(b);
+            data[i++] = (byte) b;
+        }
+        this.bytes = data;
+        offset = 0;
+        count = data.length;
+        isShared = false;
     }
 
     @Override
     public int length() {
-        return bytes.size();
+        return count;
     }
 
     public void add(int b) {
-        if (b < MIN_VALUE || b > MAX_VALUE) {
-            throw new IllegalArgumentException("Invalid value for B: " + b);
-        }
-        bytes.add((byte) b & 0xff);
+        checkValue(b);
+        add((byte) b);
     }
 
     public void add(byte[] data) {
-        for (byte b : data) {
-            add(b);
-        }
+        add(data, 0, data.length);
+    }
+
+    /**
+     * Adds a region of a byte array to the end of the byte sequence.
+     * 
+     * @param data
+     *            The byte array.
+     * @param offset
+     *            The offset of the region.
+     * @param length
+     *            The length of the region.
+     */
+    public void add(byte[] data, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(data, offset, bytes, count, length);
+        count += length;
     }
 
     public void add(int[] data) {
         for (int b : data) {
-            add(b);
+            checkValue(b);
+        }
+        ensureCapacity(count + data.length);
+        for (int b : data) {
+            bytes[count++] = (byte) b;
         }
     }
 
     public void add(B data) {
-        int length = data.length();
-        for (int i = 0; i < length; i++) {
-            add(data.get(i));
-        }
+        add(data.bytes, data.offset, data.count);
     }
 
     public void clear() {
-        bytes.clear();
+        if (isShared) {
+            bytes = EMPTY;
+            isShared = false;
+        }
+        offset = 0;
+        count = 0;
+    }
+
+    /**
+     * Returns a copy of the bytes.
+     * 
+     * @return The bytes.
+     */
+    public byte[] getBytes() {
+        return Arrays.copyOfRange(bytes, offset, offset + count);
+    }
+
+    /**
+     * Returns a read-only buffer view of the bytes, without copying them.
+     * 
+     * @return The buffer.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, offset, count).slice().asReadOnlyBuffer();
     }
 
     @Override
     public byte[] toByteArray() {
-        // Determine length.
-        int length = length();
-        int noOfLengthBytes = 1;
-        B lengthBytes = new B();
-        lengthBytes.add(length & 0xff);
-        if (length > 0xff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 8) & 0xff);
-        }
-        if (length > 0xffff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 16) & 0xff);
-        }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            // Write format byte.
-            baos.write(FORMAT_CODE | noOfLengthBytes);
-            for (int i = 0; i < noOfLengthBytes; i++) {
-                baos.write(lengthBytes.get(i));
-            }
-            // Write bytes recursively.
-            for (int b : bytes) {
-                baos.write(b);
-            }
-            return baos.toByteArray();
-        } finally {
-            IOUtils.closeQuietly(baos);
-        }
+        return ItemHeader.toByteArray(this);
+    }
+
+    @Override
+    public int encodedLength() {
+        return ItemHeader.encodedLength(count) + count;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        ItemHeader.write(buffer, FORMAT_CODE, count);
+        buffer.put(bytes, offset, count);
     }
 
     @Override
@@ -183,10 +310,8 @@ public class B implements Data<List<Integer>> {
         StringBuilder sb = new StringBuilder();
         int length = length();
         sb.append("<B");
-        if (length > 0) {
-            for (int i = 0; i < length; i++) {
-                sb.append(String.format(" 0x%02x", bytes.get(i)));
-            }
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format(" 0x%02x", get(i)));
         }
         sb.append('>');
         return sb.toString();
@@ -196,25 +321,105 @@ public class B implements Data<List<Integer>> {
     public boolean equals(Object obj) {
         if (obj instanceof B) {
             B b = (B) obj;
-            int length = b.length();
-            if (length == length()) {
-                for (int i = 0; i < length; i++) {
-                    if (b.get(i) != bytes.get(i)) {
-                        return false;
-                    }
-                }
-                return true;
-            } else {
-                return false;
-            }
+            return asByteBuffer().equals(b.asByteBuffer());
         } else {
             return false;
         }
     }
 
+    @Override
+    public int hashCode() {
+        return asByteBuffer().hashCode();
+    }
+
     @Override
     public String toString() {
         return toSml();
     }
-    
+
+    /**
+     * Validates a byte value.
+     * 
+     * @param b
+     *            The byte value.
+     */
+    private static void checkValue(int b) {
+        if (b < MIN_VALUE || b > MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for B: " + b);
+        }
+    }
+
+    /**
+     * Makes sure the byte array is owned, starts at offset 0 and has at least
+     * the specified capacity.
+     * 
+     * @param capacity
+     *            The minimum capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (!isShared && offset == 0 && capacity <= bytes.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, INITIAL_CAPACITY);
+        if (!isShared) {
+            newCapacity = Math.max(newCapacity, bytes.length + (bytes.length >> 1));
+        }
+        byte[] data = new byte[newCapacity];
+        System.arraycopy(bytes, offset, data, 0, count);
+        bytes = data;
+        offset = 0;
+        isShared = false;
+    }
+
+    /**
+     * List view of the bytes.
+     * 
+     * @author Oscar Stigter
+     */
+    private class ValueList extends AbstractList<Integer> implements RandomAccess {
+
+        @Override
+        public Integer get(int index) {
+            return B.this.get(index);
+        }
+
+        @Override
+        public Integer set(int index, Integer value) {
+            int oldValue = B.this.get(index);
+            checkValue(value);
+            ensureCapacity(count);
+            bytes[index] = (byte) (int) value;
+            return oldValue;
+        }
+
+        @Override
+        public void add(int index, Integer value) {
+            if (index < 0 || index > count) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            }
+            checkValue(value);
+            ensureCapacity(count + 1);
+            System.arraycopy(bytes, index, bytes, index + 1, count - index);
+            bytes[index] = (byte) (int) value;
+            count++;
+            modCount++;
+        }
+
+        @Override
+        public Integer remove(int index) {
+            int oldValue = B.this.get(index);
+            ensureCapacity(count);
+            System.arraycopy(bytes, index + 1, bytes, index, count - index - 1);
+            count--;
+            modCount++;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+    }
+
 }
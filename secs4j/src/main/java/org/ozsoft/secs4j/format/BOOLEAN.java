@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 /**
  * SECS data item BOOLEAN (a single boolean).
  * 
@@ -92,7 +94,17 @@ public class BOOLEAN implements Data<Boolean> {
 
     @Override
     public byte[] toByteArray() {
-        return new byte[] { FORMAT_CODE, LENGTH, (value) ? TRUE : FALSE };
+        return ItemHeader.toByteArray(this);
+    }
+
+    @Override
+    public int encodedLength() {
+        return 2 + LENGTH;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) FORMAT_CODE).put((byte) LENGTH).put((value) ? TRUE : FALSE);
     }
 
     @Override
@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 /**
  * SECS data item.
  * 
@@ -61,6 +63,24 @@ public interface Data<T> {
      */
     byte[] toByteArray();
 
+    /**
+     * Returns the length of this data item serialized as bytes, including the
+     * item header.
+     * 
+     * @return The encoded length in bytes.
+     */
+    int encodedLength();
+
+    /**
+     * Writes this data item serialized as bytes according to the SEMI E05
+     * SECS-II standard.
+     * 
+     * @param buffer
+     *            The (big-endian) buffer to write to, with at least
+     *            {@link #encodedLength()} bytes remaining.
+     */
+    void writeTo(ByteBuffer buffer);
+
     /**
      * Returns the SML text representing this data item.
      * 
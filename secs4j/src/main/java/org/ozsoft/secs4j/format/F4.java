@@ -14,20 +14,21 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package org.ozsoft.secs4j.format;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-
-import org.apache.commons.io.IOUtils;
-import org.ozsoft.secs4j.util.ConversionUtils;
+import java.util.RandomAccess;
 
 /**
  * SECS data item F4 (sequence of 4-byte, single-precision floating-point
- * numbers).
+ * numbers). <br />
+ * <br />
+ * 
+ * The values are stored in a growable <code>float[]</code> and encoded and
+ * decoded in bulk.
  * 
  * @author Oscar Stigter
  */
@@ -42,8 +43,14 @@ public class F4 implements Data<List<Float>> {
     /** Fixed size in bytes. */
     public static final int SIZE = 4;
 
+    /** The initial capacity of the value array. */
+    private static final int INITIAL_CAPACITY = 8;
+
     /** The floating-point numbers. */
-    private List<Float> values = new ArrayList<Float>();
+    private float[] values = new float[0];
+
+    /** The number of values. */
+    private int count;
 
     /**
      * Constructor with an initial empty sequence.
@@ -82,7 +89,36 @@ public class F4 implements Data<List<Float>> {
      * @return The value.
      */
     public float getValue(int index) {
-        return values.get(index);
+        checkIndex(index, count);
+        return values[index];
+    }
+
+    /**
+     * Copies values into an array.
+     * 
+     * @param index
+     *            The index position of the first value to copy.
+     * @param dst
+     *            The destination array.
+     * @param offset
+     *            The offset in the destination array.
+     * @param length
+     *            The number of values to copy.
+     */
+    public void getValues(int index, float[] dst, int offset, int length) {
+        if (index < 0 || length < 0 || index + length > count) {
+            throw new IndexOutOfBoundsException(String.format("Invalid range: index %d, length %d, size %d", index, length, count));
+        }
+        System.arraycopy(values, index, dst, offset, length);
+    }
+
+    /**
+     * Returns a copy of the values.
+     * 
+     * @return The values.
+     */
+    public float[] toFloatArray() {
+        return Arrays.copyOf(values, count);
     }
 
     /**
@@ -92,7 +128,8 @@ public class F4 implements Data<List<Float>> {
      *            The value to add.
      */
     public void addValue(float value) {
-        values.add(value);
+        ensureCapacity(count + 1);
+        values[count++] = value;
     }
 
     /**
@@ -105,77 +142,113 @@ public class F4 implements Data<List<Float>> {
         if (data.length != SIZE) {
             throw new IllegalArgumentException(String.format("Invalid %s length: %d bytes", NAME, data.length));
         }
-        addValue(Float.intBitsToFloat((int) ConversionUtils.bytesToUnsignedInteger(data)));
+        addAll(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Adds multiple values to the end of the sequence.
+     * 
+     * @param values
+     *            The values to add.
+     */
+    public void addAll(float[] values) {
+        addAll(values, 0, values.length);
+    }
+
+    /**
+     * Adds a range of values from an array to the end of the sequence.
+     * 
+     * @param values
+     *            The array with the values to add.
+     * @param offset
+     *            The offset of the first value to add.
+     * @param length
+     *            The number of values to add.
+     */
+    public void addAll(float[] values, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(values, offset, this.values, count, length);
+        count += length;
+    }
+
+    /**
+     * Adds multiple values to the end of the sequence, based on raw
+     * (big-endian) bytes. <br />
+     * <br />
+     * 
+     * All remaining bytes of the buffer are consumed.
+     * 
+     * @param data
+     *            The buffer with the raw values.
+     */
+    public void addAll(ByteBuffer data) {
+        int length = data.remaining();
+        if (length % SIZE != 0) {
+            throw new IllegalArgumentException(String.format("Invalid %s length: %d bytes", NAME, length));
+        }
+        int n = length / SIZE;
+        ensureCapacity(count + n);
+        data.asFloatBuffer().get(values, count, n);
+        data.position(data.limit());
+        count += n;
     }
 
+    /**
+     * Returns a (modifiable) list view of the values. <br />
+     * <br />
+     * 
+     * The view is backed by this data item; the values are only boxed when
+     * accessed.
+     * 
+     * @return The values.
+     */
     @Override
     public List<Float> getValue() {
-        return values;
+        return new ValueList();
     }
 
     @Override
     public void setValue(List<Float> values) {
-        this.values = values;
+        float[] array = new float[values.size()];
+        int i = 0;
+        for (float value : values) {
+            array[i++] = value;
+        }
+        this.values = array;
+        count = array.length;
     }
 
     @Override
     public int length() {
-        return values.size();
+        return count;
     }
 
     @Override
     public byte[] toByteArray() {
-        // Determine length.
-        int length = values.size() * SIZE;
-        int noOfLengthBytes = 1;
-        B lengthBytes = new B();
-        lengthBytes.add(length & 0xff);
-        if (length > 0xff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 8) & 0xff);
-        }
-        if (length > 0xffff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 16) & 0xff);
-        }
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            // Write format byte.
-            baos.write(FORMAT_CODE | noOfLengthBytes);
-
-            // Write length bytes.
-            for (int i = 0; i < noOfLengthBytes; i++) {
-                baos.write(lengthBytes.get(i));
-            }
-
-            // Write values.
-            for (float value : values) {
-                int bits = Float.floatToIntBits(value);
-                baos.write(ConversionUtils.integerToBytes(bits, SIZE));
-            }
-
-            return baos.toByteArray();
+        return ItemHeader.toByteArray(this);
+    }
 
-        } catch (IOException e) {
-            // This should never happen.
-            throw new RuntimeException("Could not serialize data item", e);
+    @Override
+    public int encodedLength() {
+        int length = count * SIZE;
+        return ItemHeader.encodedLength(length) + length;
+    }
 
-        } finally {
-            IOUtils.closeQuietly(baos);
-        }
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int length = count * SIZE;
+        ItemHeader.write(buffer, FORMAT_CODE, length);
+        buffer.asFloatBuffer().put(values, 0, count);
+        buffer.position(buffer.position() + length);
     }
 
     @Override
     public String toSml() {
-        int length = length();
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("<%s", NAME));
-        if (length > 0) {
-            for (float value : values) {
-                sb.append(' ');
-                sb.append(value);
-            }
+        for (int i = 0; i < count; i++) {
+            sb.append(' ');
+            sb.append(values[i]);
         }
         sb.append('>');
         return sb.toString();
@@ -186,9 +259,9 @@ public class F4 implements Data<List<Float>> {
         if (obj instanceof F4) {
             F4 f4 = (F4) obj;
             int length = f4.length();
-            if (length == values.size()) {
+            if (length == count) {
                 for (int i = 0; i < length; i++) {
-                    if (f4.getValue(i) != values.get(i)) {
+                    if (Float.floatToIntBits(f4.values[i]) != Float.floatToIntBits(values[i])) {
                         return false;
                     }
                 }
@@ -201,9 +274,90 @@ public class F4 implements Data<List<Float>> {
         }
     }
 
+    @Override
+    public int hashCode() {
+        int hashCode = 1;
+        for (int i = 0; i < count; i++) {
+            hashCode = 31 * hashCode + Float.floatToIntBits(values[i]);
+        }
+        return hashCode;
+    }
+
     @Override
     public String toString() {
         return toSml();
     }
 
+    /**
+     * Validates an index position.
+     * 
+     * @param index
+     *            The index position.
+     * @param size
+     *            The number of values.
+     */
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Grows the value array if necessary.
+     * 
+     * @param capacity
+     *            The minimum capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newCapacity = Math.max(Math.max(capacity, INITIAL_CAPACITY), values.length + (values.length >> 1));
+            values = Arrays.copyOf(values, newCapacity);
+        }
+    }
+
+    /**
+     * List view of the values.
+     * 
+     * @author Oscar Stigter
+     */
+    private class ValueList extends AbstractList<Float> implements RandomAccess {
+
+        @Override
+        public Float get(int index) {
+            return getValue(index);
+        }
+
+        @Override
+        public Float set(int index, Float value) {
+            float oldValue = getValue(index);
+            values[index] = value;
+            return oldValue;
+        }
+
+        @Override
+        public void add(int index, Float value) {
+            checkIndex(index, count + 1);
+            ensureCapacity(count + 1);
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = value;
+            count++;
+            modCount++;
+        }
+
+        @Override
+        public Float remove(int index) {
+            float oldValue = getValue(index);
+            System.arraycopy(values, index + 1, values, index, count - index - 1);
+            count--;
+            modCount++;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+    }
+
 }
@@ -14,26 +14,46 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
-
 package org.ozsoft.secs4j.format;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
-import org.apache.commons.io.IOUtils;
 import org.ozsoft.secs4j.util.ConversionUtils;
 
 /**
- * Base class of integer-based SECS data items.
+ * Base class of integer-based SECS data items. <br />
+ * <br />
+ * 
+ * The values are stored in a growable primitive array matching the size of
+ * the integers (<code>byte[]</code>, <code>short[]</code>, <code>int[]</code>
+ * or <code>long[]</code>); unsigned values are stored in their two's
+ * complement form.
  * 
  * @author Oscar Stigter
  */
 public class IntegerBase implements Data<List<Long>> {
 
-    /** The values. */
-    private List<Long> values = new ArrayList<Long>();
+    /** The initial capacity of the value array. */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** The values of 1-byte integers. */
+    private byte[] bytes;
+
+    /** The values of 2-byte integers. */
+    private short[] shorts;
+
+    /** The values of 4-byte integers. */
+    private int[] ints;
+
+    /** The values of 8-byte integers. */
+    private long[] longs;
+
+    /** The number of values. */
+    private int count;
 
     /** SECS name. */
     private String name;
@@ -87,7 +107,38 @@ public class IntegerBase implements Data<List<Long>> {
      * @return The value.
      */
     public long getValue(int index) {
-        return values.get(index);
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        switch (size) {
+            case 1:
+                return (isSigned) ? bytes[index] : bytes[index] & 0xffL;
+            case 2:
+                return (isSigned) ? shorts[index] : shorts[index] & 0xffffL;
+            case 4:
+                return (isSigned) ? ints[index] : ints[index] & 0xffffffffL;
+            default:
+                return longs[index];
+        }
+    }
+
+    /**
+     * Returns the value at a specific index position as an <code>int</code>.
+     * 
+     * @param index
+     *            The index position.
+     * 
+     * @return The value.
+     * 
+     * @throws ArithmeticException
+     *             If the value does not fit in an <code>int</code>.
+     */
+    public int getInt(int index) {
+        long value = getValue(index);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ArithmeticException("Value does not fit in an int: " + value);
+        }
+        return (int) value;
     }
 
     /**
@@ -97,10 +148,9 @@ public class IntegerBase implements Data<List<Long>> {
      *            The value to add.
      */
     public void addValue(long value) {
-        if (value < minValue || value > maxValue) {
-            throw new IllegalArgumentException("Invalid value: " + value);
-        }
-        values.add(value);
+        checkValue(value);
+        ensureCapacity(count + 1);
+        store(count++, value);
     }
 
     /**
@@ -132,73 +182,142 @@ public class IntegerBase implements Data<List<Long>> {
         }
     }
 
+    /**
+     * Adds multiple values to the end of the sequence.
+     * 
+     * @param values
+     *            The values to add.
+     */
+    public void addAll(long[] values) {
+        for (long value : values) {
+            checkValue(value);
+        }
+        ensureCapacity(count + values.length);
+        for (long value : values) {
+            store(count++, value);
+        }
+    }
+
+    /**
+     * Adds multiple values to the end of the sequence, based on raw
+     * (big-endian) bytes. <br />
+     * <br />
+     * 
+     * All remaining bytes of the buffer are consumed.
+     * 
+     * @param data
+     *            The buffer with the raw values.
+     */
+    public void addAll(ByteBuffer data) {
+        int length = data.remaining();
+        if (length % size != 0) {
+            throw new IllegalArgumentException(String.format("Invalid %s length: %d bytes", name, length));
+        }
+        int n = length / size;
+        ensureCapacity(count + n);
+        switch (size) {
+            case 1:
+                data.get(bytes, count, n);
+                break;
+            case 2:
+                data.asShortBuffer().get(shorts, count, n);
+                break;
+            case 4:
+                data.asIntBuffer().get(ints, count, n);
+                break;
+            default:
+                data.asLongBuffer().get(longs, count, n);
+                for (int i = count; i < count + n; i++) {
+                    checkValue(longs[i]);
+                }
+        }
+        data.position(data.limit());
+        count += n;
+    }
+
+    /**
+     * Returns a copy of the values.
+     * 
+     * @return The values.
+     */
+    public long[] toLongArray() {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = getValue(i);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a (modifiable) list view of the values. <br />
+     * <br />
+     * 
+     * The view is backed by this data item; the values are only boxed when
+     * accessed.
+     * 
+     * @return The values.
+     */
     @Override
     public List<Long> getValue() {
-        return values;
+        return new ValueList();
     }
 
     @Override
     public void setValue(List<Long> values) {
-        this.values = values;
+        long[] array = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            array[i++] = value;
+        }
+        count = 0;
+        addAll(array);
     }
 
     @Override
     public int length() {
-        return values.size();
+        return count;
     }
 
     @Override
     public byte[] toByteArray() {
-        // Determine length.
-        int length = values.size() * size;
-        int noOfLengthBytes = 1;
-        B lengthBytes = new B();
-        lengthBytes.add(length & 0xff);
-        if (length > 0xff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 8) & 0xff);
-        }
-        if (length > 0xffff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 16) & 0xff);
-        }
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            // Write format byte.
-            baos.write(formatCode | noOfLengthBytes);
-
-            // Write length bytes.
-            for (int i = 0; i < noOfLengthBytes; i++) {
-                baos.write(lengthBytes.get(i));
-            }
-
-            // Write values.
-            for (long value : values) {
-                baos.write(ConversionUtils.integerToBytes(value, size));
-            }
-
-            return baos.toByteArray();
+        return ItemHeader.toByteArray(this);
+    }
 
-        } catch (IOException e) {
-            // This should never happen.
-            throw new RuntimeException("Could not serialize data item", e);
+    @Override
+    public int encodedLength() {
+        int length = count * size;
+        return ItemHeader.encodedLength(length) + length;
+    }
 
-        } finally {
-            IOUtils.closeQuietly(baos);
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        int length = count * size;
+        ItemHeader.write(buffer, formatCode, length);
+        switch (size) {
+            case 1:
+                buffer.put(bytes, 0, count);
+                break;
+            case 2:
+                buffer.asShortBuffer().put(shorts, 0, count);
+                break;
+            case 4:
+                buffer.asIntBuffer().put(ints, 0, count);
+                break;
+            default:
+                buffer.asLongBuffer().put(longs, 0, count);
+        }
+        if (size > 1) {
+            buffer.position(buffer.position() + length);
         }
     }
 
     @Override
     public String toSml() {
-        int length = length();
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("<%s", name));
-        if (length > 0) {
-            for (long value : values) {
-                sb.append(' ');
-                sb.append(value);
-            }
+        for (int i = 0; i < count; i++) {
+            sb.append(' ');
+            sb.append(getValue(i));
         }
         sb.append('>');
         return sb.toString();
@@ -209,9 +328,9 @@ public class IntegerBase implements Data<List<Long>> {
         if (obj instanceof IntegerBase) {
             IntegerBase ib = (IntegerBase) obj;
             int length = ib.length();
-            if (length == this.size) {
+            if (ib.formatCode == formatCode && length == count) {
                 for (int i = 0; i < length; i++) {
-                    if (ib.getValue(i) != values.get(i)) {
+                    if (ib.getValue(i) != getValue(i)) {
                         return false;
                     }
                 }
@@ -224,9 +343,146 @@ public class IntegerBase implements Data<List<Long>> {
         }
     }
 
+    @Override
+    public int hashCode() {
+        int hashCode = formatCode;
+        for (int i = 0; i < count; i++) {
+            long value = getValue(i);
+            hashCode = 31 * hashCode + (int) (value ^ (value >>> 32));
+        }
+        return hashCode;
+    }
+
     @Override
     public String toString() {
         return toSml();
     }
 
+    /**
+     * Validates a value against the range of this integer type.
+     * 
+     * @param value
+     *            The value.
+     */
+    private void checkValue(long value) {
+        if (value < minValue || value > maxValue) {
+            throw new IllegalArgumentException("Invalid value: " + value);
+        }
+    }
+
+    /**
+     * Stores a (validated) value at a specific index position.
+     * 
+     * @param index
+     *            The index position.
+     * @param value
+     *            The value.
+     */
+    private void store(int index, long value) {
+        switch (size) {
+            case 1:
+                bytes[index] = (byte) value;
+                break;
+            case 2:
+                shorts[index] = (short) value;
+                break;
+            case 4:
+                ints[index] = (int) value;
+                break;
+            default:
+                longs[index] = value;
+        }
+    }
+
+    /**
+     * Grows the value array if necessary.
+     * 
+     * @param capacity
+     *            The minimum capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        int oldCapacity = 0;
+        switch (size) {
+            case 1:
+                oldCapacity = (bytes != null) ? bytes.length : 0;
+                break;
+            case 2:
+                oldCapacity = (shorts != null) ? shorts.length : 0;
+                break;
+            case 4:
+                oldCapacity = (ints != null) ? ints.length : 0;
+                break;
+            default:
+                oldCapacity = (longs != null) ? longs.length : 0;
+        }
+        if (capacity <= oldCapacity && oldCapacity > 0) {
+            return;
+        }
+        int newCapacity = Math.max(Math.max(capacity, INITIAL_CAPACITY), oldCapacity + (oldCapacity >> 1));
+        switch (size) {
+            case 1:
+                bytes = (bytes != null) ? Arrays.copyOf(bytes, newCapacity) : new byte[newCapacity];
+                break;
+            case 2:
+                shorts = (shorts != null) ? Arrays.copyOf(shorts, newCapacity) : new short[newCapacity];
+                break;
+            case 4:
+                ints = (ints != null) ? Arrays.copyOf(ints, newCapacity) : new int[newCapacity];
+                break;
+            default:
+                longs = (longs != null) ? Arrays.copyOf(longs, newCapacity) : new long[newCapacity];
+        }
+    }
+
+    /**
+     * List view of the values.
+     * 
+     * @author Oscar Stigter
+     */
+    private class ValueList extends AbstractList<Long> implements RandomAccess {
+
+        @Override
+        public Long get(int index) {
+            return getValue(index);
+        }
+
+        @Override
+        public Long set(int index, Long value) {
+            long oldValue = getValue(index);
+            checkValue(value);
+            store(index, value);
+            return oldValue;
+        }
+
+        @Override
+        public void add(int index, Long value) {
+            if (index < 0 || index > count) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            }
+            addValue(value);
+            for (int i = count - 1; i > index; i--) {
+                store(i, getValue(i - 1));
+            }
+            store(index, value);
+            modCount++;
+        }
+
+        @Override
+        public Long remove(int index) {
+            long oldValue = getValue(index);
+            for (int i = index; i < count - 1; i++) {
+                store(i, getValue(i + 1));
+            }
+            count--;
+            modCount++;
+            return oldValue;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+    }
+
 }
@@ -0,0 +1,101 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the item header (format byte and length bytes) of SECS-II data
+ * items. <br />
+ * <br />
+ * 
+ * The length bytes are written least significant byte first.
+ * 
+ * @author Oscar Stigter
+ */
+public final class ItemHeader {
+
+    /**
+     * Private constructor; utility class.
+     */
+    private ItemHeader() {
+        // Empty implementation.
+    }
+
+    /**
+     * Returns the number of length bytes needed for a specific length.
+     * 
+     * @param length
+     *            The length (in bytes, or in items for an L).
+     * 
+     * @return The number of length bytes (1 to 3).
+     */
+    public static int noOfLengthBytes(int length) {
+        if (length > 0xffff) {
+            return 3;
+        } else if (length > 0xff) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * Returns the encoded length of an item header.
+     * 
+     * @param length
+     *            The length (in bytes, or in items for an L).
+     * 
+     * @return The encoded length in bytes.
+     */
+    public static int encodedLength(int length) {
+        return 1 + noOfLengthBytes(length);
+    }
+
+    /**
+     * Writes an item header.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @param formatCode
+     *            The format code.
+     * @param length
+     *            The length (in bytes, or in items for an L).
+     */
+    public static void write(ByteBuffer buffer, int formatCode, int length) {
+        int noOfLengthBytes = noOfLengthBytes(length);
+        buffer.put((byte) (formatCode | noOfLengthBytes));
+        for (int i = 0; i < noOfLengthBytes; i++) {
+            buffer.put((byte) (length >> (i * 8)));
+        }
+    }
+
+    /**
+     * Serializes a data item to a new, exactly sized byte array.
+     * 
+     * @param data
+     *            The data item.
+     * 
+     * @return The byte array.
+     */
+    public static byte[] toByteArray(Data<?> data) {
+        byte[] bytes = new byte[data.encodedLength()];
+        data.writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+}
@@ -17,13 +17,10 @@
 
 package org.ozsoft.secs4j.format;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.io.IOUtils;
-
 /**
  * SECS data item L (list of other data items).
  * 
@@ -83,40 +80,24 @@ public class L implements Data<List<Data<?>>> {
     
     @Override
     public byte[] toByteArray() {
-        // Construct length bytes.
-        int length = length();
-        int noOfLengthBytes = 1;
-        B lengthBytes = new B();
-        lengthBytes.add(length & 0xff);
-        if (length > 0xff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 8) & 0xff);
-        }
-        if (length > 0xffff) {
-            noOfLengthBytes++;
-            lengthBytes.add((length >> 16) & 0xff);
-        }
+        return ItemHeader.toByteArray(this);
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            // Write format byte.
-            baos.write(FORMAT_CODE | noOfLengthBytes);
-            for (int i = 0; i < noOfLengthBytes; i++) {
-                baos.write(lengthBytes.get(i));
-            }
-        
-            // Write items recursively.
-            for (Data<?> item : items) {
-                baos.write(item.toByteArray());
-            }
-            
-            return baos.toByteArray();
+    @Override
+    public int encodedLength() {
+        int length = ItemHeader.encodedLength(items.size());
+        for (Data<?> item : items) {
+            length += item.encodedLength();
+        }
+        return length;
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException("Could not serialize L items: " + e.getMessage());
-            
-        } finally {
-            IOUtils.closeQuietly(baos);
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        ItemHeader.write(buffer, FORMAT_CODE, items.size());
+        // Write items recursively.
+        for (Data<?> item : items) {
+            item.writeTo(buffer);
         }
     }
 
@@ -18,12 +18,10 @@
 package org.ozsoft.secs4j.message;
 
 import org.ozsoft.secs4j.CommunicationState;
-import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsPrimaryMessage;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.A;
-import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S1F13 Establish Communication Request (CR) primary message. <br />
@@ -39,6 +37,7 @@ import org.ozsoft.secs4j.format.L;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<L? <A modelName> <A softRev>>")
 public class S1F13 extends SecsPrimaryMessage {
     
     private static final int STREAM = 1;
@@ -51,9 +50,9 @@ public class S1F13 extends SecsPrimaryMessage {
 
     private static final int COMMACK_ACCEPTED = 0x00;
 
-    private String modelName;
+    /* package */String modelName;
     
-    private String softRev;
+    /* package */String softRev;
     
     public String getModelName() {
         return modelName;
@@ -92,49 +91,8 @@ public class S1F13 extends SecsPrimaryMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof L)) {
-            throw new SecsParseException("Root data item must be of type L");
-        }
-        L l = (L) data;
-        if (l.length() == 0) {
-            // No MDLN and SOFTREV specified; use empty values.
-            setModelName("");
-            setSoftRev("");
-        } else if (l.length() == 2) {
-            Data<?> dataItem = l.getItem(0);
-            if (!(dataItem instanceof A)) {
-                throw new SecsParseException("MDLN must be of type A");
-            }
-            String modelName = ((A) dataItem).getValue();
-            dataItem = l.getItem(1);
-            if (!(dataItem instanceof A)) {
-                throw new SecsParseException("SOFTREV must be of type A");
-            }
-            String softRev = ((A) dataItem).getValue();
-            setModelName(modelName);
-            setSoftRev(softRev);
-        } else {
-            throw new SecsParseException("L must contain exactly 2 items");
-        }
-    }
-
-    @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (modelName == null) {
-            throw new SecsParseException("MDLN not set");
-        }
-        if (softRev == null) {
-            throw new SecsParseException("SOFTREV not set");
-        }
-        
-        L l = new L();
-        l.addItem(new A(modelName));
-        l.addItem(new A(softRev));
-        return l;
+    protected MessageCodec<S1F13> getCodec() {
+        return S1F13Codec.INSTANCE;
     }
 
     @Override
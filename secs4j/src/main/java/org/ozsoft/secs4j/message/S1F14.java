@@ -21,10 +21,8 @@ import org.apache.log4j.Logger;
 import org.ozsoft.secs4j.CommunicationState;
 import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.A;
-import org.ozsoft.secs4j.format.B;
-import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S1F14 - Establish Communication Request Acknowledge (CRA) reply message. <br />
@@ -43,6 +41,7 @@ import org.ozsoft.secs4j.format.L;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<L <B:1 commAck> <L? <A modelName> <A softRev>>>")
 public class S1F14 extends SecsReplyMessage {
     
     private static final Logger LOG = Logger.getLogger(S1F14.class);
@@ -59,11 +58,11 @@ public class S1F14 extends SecsReplyMessage {
     
     private static final String DESCRIPTION = "Establish Communication Request Acknowledge (CRA)";
     
-    private Integer commAck;
+    /* package */Integer commAck;
     
-    private String modelName;
+    /* package */String modelName;
     
-    private String softRev;
+    /* package */String softRev;
     
     public int getCommAck() {
         return commAck;
@@ -110,76 +109,15 @@ public class S1F14 extends SecsReplyMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof L)) {
-            throw new SecsParseException("Top-level data item must be of type L");
-        }
-        L l = (L) data;
-        if (l.length() != 2) {
-            throw new SecsParseException("Top-level L must contain exactly 2 items");
-        }
-        data = l.getItem(0);
-        if (!(data instanceof B)) {
-            throw new SecsParseException("COMMACK must be of type B");
-        }
-        B b = (B) data;
-        if (b.length() != 1) {
-            throw new SecsParseException("COMMACK must have a length of exactly 1 byte");
-        }
-        int commAck = b.get(0);
-        if (commAck != COMMACK_ACCEPTED && commAck != COMMACK_DENIED_TRY_AGAIN) {
-            throw new SecsParseException("Invalid COMMACK value: " + commAck);
-        }
-        setCommAck(commAck);
-        data = l.getItem(1);
-        if (!(data instanceof L)) {
-            throw new SecsParseException("MDLN and SOFTREV must be in a L");
-        }
-        l = (L) data;
-        if (l.length() == 0) {
-            // MDLN and SOFTREV not specified; set empty.
-            setModelName("");
-            setSoftRev("");
-        } else if (l.length() == 2) {
-            data = l.getItem(0);
-            if (!(data instanceof A)) {
-                throw new SecsParseException("MDLN must be an A");
-            }
-            String modelName = ((A) data).getValue();
-            data = l.getItem(1);
-            if (!(data instanceof A)) {
-                throw new SecsParseException("SOFTREV must be an A");
-            }
-            String softRev = ((A) data).getValue();
-            setModelName(modelName);
-            setSoftRev(softRev);
-        } else {
-            throw new SecsParseException("Nested L must contain exactly 0 or 2 items");
-        }
+    protected MessageCodec<S1F14> getCodec() {
+        return S1F14Codec.INSTANCE;
     }
 
     @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (commAck == null) {
-            throw new SecsParseException("COMMACK not set");
-        }
-        if (modelName == null) {
-            throw new SecsParseException("MDLN not set");
-        }
-        if (softRev == null) {
-            throw new SecsParseException("SOFTREV not set");
+    protected void validate() throws SecsParseException {
+        if (commAck != COMMACK_ACCEPTED && commAck != COMMACK_DENIED_TRY_AGAIN) {
+            throw new SecsParseException("Invalid COMMACK value: " + commAck);
         }
-
-        L data = new L();
-        data.addItem(new B(commAck));
-        L l = new L();
-        l.addItem(new A(modelName));
-        l.addItem(new A(softRev));
-        data.addItem(l);
-        return data;
     }
 
     @Override
@@ -19,8 +19,8 @@ package org.ozsoft.secs4j.message;
 
 import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.B;
-import org.ozsoft.secs4j.format.Data;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S1F16 OFF-LINE Acknowledge (OFLA) reply message.
@@ -33,6 +33,7 @@ import org.ozsoft.secs4j.format.Data;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<B:1 oflAck>")
 public class S1F16 extends SecsReplyMessage {
 
     public static final int OFLACK_ACKNOWLEDGE = 0x00;
@@ -45,7 +46,7 @@ public class S1F16 extends SecsReplyMessage {
     
     private static final String DESCRIPTION = "OFF-LINE Acknowledge (OFLA)";
     
-    private Integer oflAck;
+    /* package */Integer oflAck;
     
     public int getOflAck() {
         return oflAck;
@@ -76,31 +77,15 @@ public class S1F16 extends SecsReplyMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof B)) {
-            throw new SecsParseException("OFLACK must be of type B");
-        }
-        B b = (B) data;
-        if (b.length() != 1) {
-            throw new SecsParseException("OFLACK must have a length of exactly 1 byte");
-        }
-        int ofla = b.get(0);
-        if (ofla != OFLACK_ACKNOWLEDGE) {
-            throw new SecsParseException("Invalid OFLACK value: " + ofla);
-        }
-        setOflAck(ofla);
+    protected MessageCodec<S1F16> getCodec() {
+        return S1F16Codec.INSTANCE;
     }
 
     @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (oflAck == null) {
-            throw new SecsParseException("OFLACK not set");
+    protected void validate() throws SecsParseException {
+        if (oflAck != OFLACK_ACKNOWLEDGE) {
+            throw new SecsParseException("Invalid OFLACK value: " + oflAck);
         }
-        
-        return new B(oflAck);
     }
 
     @Override
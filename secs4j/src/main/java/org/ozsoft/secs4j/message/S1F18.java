@@ -19,8 +19,8 @@ package org.ozsoft.secs4j.message;
 
 import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.B;
-import org.ozsoft.secs4j.format.Data;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S1F18 ON-LINE Acknowledge (ONLA) reply message. <br />
@@ -33,6 +33,7 @@ import org.ozsoft.secs4j.format.Data;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<B:1 onlAck>")
 public class S1F18 extends SecsReplyMessage {
 
     private static final int STREAM = 1;
@@ -46,7 +47,7 @@ public class S1F18 extends SecsReplyMessage {
     /** ONLACK: Acknowledge. */
     private static final int ONLA_ACKNOWLEDGE = 0x00;
 
-    private Integer onlAck;
+    /* package */Integer onlAck;
     
     public int getOnlAck() {
         return onlAck;
@@ -77,31 +78,15 @@ public class S1F18 extends SecsReplyMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof B)) {
-            throw new SecsParseException("ONLACK must be of type B");
-        }
-        B b = (B) data;
-        if (b.length() != 1) {
-            throw new SecsParseException("ONLACK must have a length of exactly 1 byte");
-        }
-        int onlAck = b.get(0);
-        if (onlAck != ONLA_ACKNOWLEDGE) {
-            throw new SecsParseException("Invalid ONLACK value: " + onlAck);
-        }
-        setOnlAck(onlAck);
+    protected MessageCodec<S1F18> getCodec() {
+        return S1F18Codec.INSTANCE;
     }
 
     @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (onlAck == null) {
-            throw new SecsParseException("ONLACK not set");
+    protected void validate() throws SecsParseException {
+        if (onlAck != ONLA_ACKNOWLEDGE) {
+            throw new SecsParseException("Invalid ONLACK value: " + onlAck);
         }
-        
-        return new B(onlAck);
     }
 
     @Override
@@ -17,17 +17,16 @@
 
 package org.ozsoft.secs4j.message;
 
-import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.A;
-import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S1F2 On Line Data (D) reply message.
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<L? <A modelName> <A softRev>>")
 public class S1F2 extends SecsReplyMessage {
 
     private static final int STREAM = 1;
@@ -38,9 +37,9 @@ public class S1F2 extends SecsReplyMessage {
     
     private static final String DESCRIPTION = "On Line Data (D)";
     
-    private String modelName;
+    /* package */String modelName;
     
-    private String softRev;
+    /* package */String softRev;
     
     public String getModelName() {
         return modelName;
@@ -79,52 +78,8 @@ public class S1F2 extends SecsReplyMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof L)) {
-            throw new SecsParseException("Top-level data item must be an L");
-        }
-        L l = (L) data;
-        String softRev = "";
-        String modelName = "";
-        
-        
-        if (l.length() == 0) {
-            softRev = "";
-            modelName = "";
-        } else if (l.length() == 2) {
-            data = l.getItem(0);
-            if (!(data instanceof A)) {
-                throw new SecsParseException("MDLN must be an A");
-            }
-            modelName = ((A) data).getValue();
-            data = l.getItem(1);
-            if (!(data instanceof A)) {
-                throw new SecsParseException("SOFTREV must be an A");
-            }
-            softRev = ((A) data).getValue();
-        } else {
-            throw new SecsParseException("L must contain 0 or 2 items");
-        }
-        setModelName(modelName);
-        setSoftRev(softRev);
-    }
-
-    @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (modelName == null) {
-            throw new SecsParseException("MDLN not set");
-        }
-        if (softRev == null) {
-            throw new SecsParseException("SOFTREV not set");
-        }
-        
-        L l = new L();
-        l.addItem(new A(modelName));
-        l.addItem(new A(softRev));
-        return l;
+    protected MessageCodec<S1F2> getCodec() {
+        return S1F2Codec.INSTANCE;
     }
 
     @Override
@@ -0,0 +1,224 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable I/O buffers, organized in power-of-two size classes. <br />
+ * <br />
+ * 
+ * Buffers are leased with {@link #acquire(int)} and returned with
+ * {@link #release(ByteBuffer)} once their content has been handled. Requests
+ * larger than the maximum size class are served with unpooled buffers. The
+ * pool is thread-safe.
+ * 
+ * @author Oscar Stigter
+ */
+public class BufferPool {
+
+    /** The smallest size class in bytes. */
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    /** The largest size class in bytes. */
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /** The default maximum number of idle buffers per size class. */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    /** The size shift of the smallest size class. */
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    /** Whether to allocate direct buffers. */
+    private final boolean isDirect;
+
+    /** The maximum number of idle buffers per size class. */
+    private final int maxIdle;
+
+    /** The idle buffers per size class. */
+    private final Queue<ByteBuffer>[] idleBuffers;
+
+    /** The number of idle buffers per size class. */
+    private final AtomicInteger[] idleCounts;
+
+    /** The number of leases served from the pool. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of leases requiring a new buffer. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor with heap buffers and the default maximum number of idle
+     * buffers.
+     */
+    public BufferPool() {
+        this(false, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param isDirect
+     *            Whether to allocate direct buffers.
+     * @param maxIdle
+     *            The maximum number of idle buffers kept per size class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean isDirect, int maxIdle) {
+        this.isDirect = isDirect;
+        this.maxIdle = maxIdle;
+        int noOfClasses = sizeClass(MAX_BUFFER_SIZE) + 1;
+        idleBuffers = new Queue[noOfClasses];
+        idleCounts = new AtomicInteger[noOfClasses];
+        for (int i = 0; i < noOfClasses; i++) {
+            idleBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Indicates whether this pool allocates direct buffers.
+     * 
+     * @return True if direct buffers are allocated, otherwise false.
+     */
+    public boolean isDirect() {
+        return isDirect;
+    }
+
+    /**
+     * Leases a buffer. <br />
+     * <br />
+     * 
+     * The buffer's position is 0 and its limit is the requested length; its
+     * capacity may be larger.
+     * 
+     * @param length
+     *            The requested length in bytes.
+     * 
+     * @return The buffer.
+     */
+    public ByteBuffer acquire(int length) {
+        ByteBuffer buffer = null;
+        if (length <= MAX_BUFFER_SIZE) {
+            int sizeClass = sizeClass(length);
+            buffer = idleBuffers[sizeClass].poll();
+            if (buffer != null) {
+                idleCounts[sizeClass].decrementAndGet();
+                hits.incrementAndGet();
+            } else {
+                buffer = allocate(MIN_BUFFER_SIZE << sizeClass);
+                misses.incrementAndGet();
+            }
+        } else {
+            buffer = allocate(length);
+            misses.incrementAndGet();
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool. <br />
+     * <br />
+     * 
+     * The buffer must not be used anymore afterwards. Buffers not leased from a
+     * pool of the same kind (e.g. unpooled, oversized buffers) are ignored.
+     * 
+     * @param buffer
+     *            The buffer.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != isDirect || capacity < MIN_BUFFER_SIZE || capacity > MAX_BUFFER_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (idleCounts[sizeClass].incrementAndGet() <= maxIdle) {
+            idleBuffers[sizeClass].add(buffer);
+        } else {
+            idleCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of leases served with a pooled buffer.
+     * 
+     * @return The number of pool hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of leases requiring a newly allocated buffer.
+     * 
+     * @return The number of pool misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of idle buffers in the pool.
+     * 
+     * @return The number of idle buffers.
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (AtomicInteger idleCount : idleCounts) {
+            count += idleCount.get();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool {hits: %d; misses: %d; idle: %d}", getHits(), getMisses(), getIdleCount());
+    }
+
+    /**
+     * Allocates a new buffer.
+     * 
+     * @param capacity
+     *            The capacity in bytes.
+     * 
+     * @return The buffer.
+     */
+    private ByteBuffer allocate(int capacity) {
+        return (isDirect) ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the size class for a length.
+     * 
+     * @param length
+     *            The length in bytes (at most the maximum size class).
+     * 
+     * @return The size class.
+     */
+    private static int sizeClass(int length) {
+        if (length <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - MIN_SHIFT;
+    }
+
+}
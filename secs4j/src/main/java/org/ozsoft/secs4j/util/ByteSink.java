@@ -0,0 +1,52 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequentially written destination of bytes with a fixed length.
+ * 
+ * @author Oscar Stigter
+ */
+public interface ByteSink {
+
+    /**
+     * Appends bytes. <br />
+     * <br />
+     * 
+     * Bytes beyond the fixed length are not consumed.
+     * 
+     * @param src
+     *            The buffer with the bytes to append, starting at its
+     *            position.
+     * 
+     * @throws IOException
+     *             If the bytes could not be written.
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Returns the number of bytes still to be written.
+     * 
+     * @return The number of bytes still to be written.
+     */
+    long remaining();
+
+}
@@ -0,0 +1,88 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only, random access source of bytes, used for message data that may be
+ * too large for a single byte array (up to 4 GB). <br />
+ * <br />
+ * 
+ * Read errors of sources backed by external storage are reported as
+ * <code>UncheckedIOException</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public interface ByteSource extends Closeable {
+
+    /**
+     * Returns the number of bytes.
+     * 
+     * @return The number of bytes.
+     */
+    long length();
+
+    /**
+     * Returns a single byte.
+     * 
+     * @param index
+     *            The index of the byte.
+     * 
+     * @return The byte.
+     */
+    byte get(long index);
+
+    /**
+     * Copies a range of bytes into a byte array.
+     * 
+     * @param index
+     *            The index of the first byte.
+     * @param dst
+     *            The destination byte array.
+     * @param offset
+     *            The offset in the destination byte array.
+     * @param length
+     *            The number of bytes to copy.
+     */
+    void get(long index, byte[] dst, int offset, int length);
+
+    /**
+     * Returns a range of bytes as a buffer. <br />
+     * <br />
+     * 
+     * The buffer shares the content of this source whenever possible, in which
+     * case it is only valid until this source is closed.
+     * 
+     * @param index
+     *            The index of the first byte.
+     * @param length
+     *            The number of bytes.
+     * 
+     * @return The buffer, with its position at the first byte.
+     */
+    ByteBuffer slice(long index, int length);
+
+    /**
+     * Releases any resources held by this source.
+     */
+    @Override
+    void close();
+
+}
@@ -0,0 +1,122 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte source stored in fixed-size heap chunks, avoiding a single large array.
+ * <br />
+ * <br />
+ * 
+ * Chunks are allocated as the bytes are written.
+ * 
+ * @author Oscar Stigter
+ */
+public class ChunkedByteSource implements ByteSource, ByteSink {
+
+    /** Number of bits of the offset within a chunk. */
+    private static final int CHUNK_SHIFT = 16;
+
+    /** Chunk size in bytes (64 kB). */
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /** Bit mask for the offset within a chunk. */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** The chunks. */
+    private final byte[][] chunks;
+
+    /** The length in bytes. */
+    private final long length;
+
+    /** The number of bytes written so far. */
+    private long writePosition;
+
+    /**
+     * Constructor.
+     * 
+     * @param length
+     *            The length in bytes.
+     */
+    public ChunkedByteSource(long length) {
+        this.length = length;
+        chunks = new byte[(int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT)][];
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public byte get(long index) {
+        return chunks[(int) (index >>> CHUNK_SHIFT)][(int) index & CHUNK_MASK];
+    }
+
+    @Override
+    public void get(long index, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            int chunkOffset = (int) index & CHUNK_MASK;
+            int count = Math.min(length, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(chunks[(int) (index >>> CHUNK_SHIFT)], chunkOffset, dst, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(long index, int length) {
+        int chunkOffset = (int) index & CHUNK_MASK;
+        if (chunkOffset + length <= CHUNK_SIZE) {
+            // Within a single chunk; no need to copy.
+            return ByteBuffer.wrap(chunks[(int) (index >>> CHUNK_SHIFT)], chunkOffset, length).slice();
+        } else {
+            byte[] data = new byte[length];
+            get(index, data, 0, length);
+            return ByteBuffer.wrap(data);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        while (src.hasRemaining() && writePosition < length) {
+            int chunkIndex = (int) (writePosition >>> CHUNK_SHIFT);
+            if (chunks[chunkIndex] == null) {
+                chunks[chunkIndex] = new byte[(int) Math.min(CHUNK_SIZE, length - writePosition)];
+            }
+            byte[] chunk = chunks[chunkIndex];
+            int chunkOffset = (int) writePosition & CHUNK_MASK;
+            int count = Math.min(src.remaining(), chunk.length - chunkOffset);
+            src.get(chunk, chunkOffset, count);
+            writePosition += count;
+        }
+    }
+
+    @Override
+    public long remaining() {
+        return length - writePosition;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release; chunks are garbage collected.
+    }
+
+}
@@ -0,0 +1,164 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Byte source stored in a temporary file, keeping very large message data off
+ * the heap. <br />
+ * <br />
+ * 
+ * The file is deleted when the source is closed. Single byte reads are served
+ * from a small read-ahead window.
+ * 
+ * @author Oscar Stigter
+ */
+public class FileByteSource implements ByteSource, ByteSink {
+
+    /** Size of the read-ahead window in bytes. */
+    private static final int WINDOW_SIZE = 8192;
+
+    /** The temporary file. */
+    private final File file;
+
+    /** The file channel. */
+    private final FileChannel channel;
+
+    /** The length in bytes. */
+    private final long length;
+
+    /** The read-ahead window. */
+    private final ByteBuffer window;
+
+    /** The index of the first byte in the read-ahead window. */
+    private long windowIndex;
+
+    /** The number of bytes written so far. */
+    private long writePosition;
+
+    /**
+     * Constructor.
+     * 
+     * @param length
+     *            The length in bytes.
+     * @param dir
+     *            The directory for the temporary file, or <code>null</code>
+     *            for the default temporary directory.
+     * 
+     * @throws IOException
+     *             If the temporary file could not be created.
+     */
+    @SuppressWarnings("resource")
+    public FileByteSource(long length, File dir) throws IOException {
+        this.length = length;
+        file = File.createTempFile("secs4j-", ".dat", dir);
+        file.deleteOnExit();
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        window = ByteBuffer.allocate(WINDOW_SIZE);
+        window.limit(0);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public byte get(long index) {
+        if (index < windowIndex || index >= windowIndex + window.limit()) {
+            window.clear();
+            window.limit((int) Math.min(WINDOW_SIZE, length - index));
+            read(index, window);
+            windowIndex = index;
+        }
+        return window.get((int) (index - windowIndex));
+    }
+
+    @Override
+    public void get(long index, byte[] dst, int offset, int length) {
+        read(index, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    @Override
+    public ByteBuffer slice(long index, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        read(index, buf);
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int count = (int) Math.min(src.remaining(), length - writePosition);
+        ByteBuffer in = src.slice();
+        in.limit(count);
+        while (in.hasRemaining()) {
+            writePosition += channel.write(in, writePosition);
+        }
+        src.position(src.position() + count);
+    }
+
+    @Override
+    public long remaining() {
+        return length - writePosition;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Safe to ignore.
+        }
+        file.delete();
+    }
+
+    /**
+     * Fills a buffer from the file.
+     * 
+     * @param index
+     *            The file position.
+     * @param dst
+     *            The buffer to fill.
+     */
+    private void read(long index, ByteBuffer dst) {
+        try {
+            while (dst.hasRemaining()) {
+                int count = channel.read(dst, index);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                index += count;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read message data from file: " + file, e);
+        }
+    }
+
+}
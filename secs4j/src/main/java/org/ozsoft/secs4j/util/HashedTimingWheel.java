@@ -0,0 +1,458 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hashed timing wheel, serving large numbers of timeouts (e.g. the T3 reply
+ * timeouts of all open transactions) with a single thread. <br />
+ * <br />
+ * 
+ * Timeouts are hashed into a circular array of buckets by their deadline,
+ * making both arming and cancelling a timeout O(1), regardless of the number
+ * of pending timeouts. The timer thread only wakes up once every tick, so
+ * timeouts expire with a precision of one tick. <br />
+ * <br />
+ * 
+ * Expired tasks are run on the timer thread, so they must not block.
+ * 
+ * @author Oscar Stigter
+ */
+public class HashedTimingWheel {
+
+    /** Maximum number of new timeouts transferred to the wheel per tick. */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final Logger LOG = Logger.getLogger(HashedTimingWheel.class);
+
+    /** Shared default timer. */
+    private static HashedTimingWheel defaultTimer;
+
+    /** Thread name. */
+    private final String name;
+
+    /** The tick duration in nanoseconds. */
+    private final long tickDuration;
+
+    /** The buckets. */
+    private final Bucket[] wheel;
+
+    /** Bit mask for the bucket index. */
+    private final int mask;
+
+    /** New timeouts, not yet transferred to their bucket. */
+    private final Queue<Timeout> newTimeouts;
+
+    /** Cancelled timeouts, not yet removed from their bucket. */
+    private final Queue<Timeout> cancelledTimeouts;
+
+    /** The number of pending timeouts. */
+    private final AtomicInteger pendingTimeouts;
+
+    /** The timer thread. */
+    private Thread thread;
+
+    /** The start time in nanoseconds. */
+    private volatile long startTime;
+
+    /** Whether the timer is running. */
+    private volatile boolean isRunning;
+
+    /** The current tick, only accessed from the timer thread. */
+    private long tick;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            The name of the timer thread.
+     * @param tickDuration
+     *            The tick duration in milliseconds.
+     * @param ticksPerWheel
+     *            The number of buckets (rounded up to a power of 2).
+     */
+    public HashedTimingWheel(String name, long tickDuration, int ticksPerWheel) {
+        if (tickDuration < 1L) {
+            throw new IllegalArgumentException("Invalid tick duration: " + tickDuration);
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid number of ticks per wheel: " + ticksPerWheel);
+        }
+        this.name = name;
+        this.tickDuration = tickDuration * 1000000L;
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        pendingTimeouts = new AtomicInteger();
+    }
+
+    /**
+     * Returns the shared default timer (10 ms ticks), starting it if necessary.
+     * 
+     * @return The default timer.
+     */
+    public static synchronized HashedTimingWheel getDefault() {
+        if (defaultTimer == null) {
+            defaultTimer = new HashedTimingWheel("secs4j-timer", 10L, 512);
+            defaultTimer.start();
+        }
+        return defaultTimer;
+    }
+
+    /**
+     * Starts the timer thread.
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        startTime = System.nanoTime();
+        tick = 0L;
+        isRunning = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HashedTimingWheel.this.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        LOG.debug(String.format("Timer '%s' started", name));
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts will not expire.
+     */
+    public synchronized void shutdown() {
+        if (isRunning) {
+            isRunning = false;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Arms a timeout. May be called from any thread.
+     * 
+     * @param task
+     *            The task to run when the timeout expires.
+     * @param delay
+     *            The delay in milliseconds.
+     * 
+     * @return The timeout, which may be cancelled.
+     */
+    public Timeout newTimeout(Runnable task, long delay) {
+        if (!isRunning) {
+            throw new IllegalStateException("Timer not running");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(delay, 0L) * 1000000L);
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of pending timeouts.
+     * 
+     * @return The number of pending timeouts.
+     */
+    public int getPendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Main loop of the timer thread.
+     */
+    private void run() {
+        while (isRunning) {
+            long deadline = waitForNextTick();
+            if (deadline < 0L) {
+                continue;
+            }
+            removeCancelledTimeouts();
+            transferNewTimeouts();
+            try {
+                wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            } catch (Exception e) {
+                // Internal error (should never happen).
+                LOG.error("Internal error in timer", e);
+            }
+            tick++;
+        }
+        LOG.debug(String.format("Timer '%s' stopped", name));
+    }
+
+    /**
+     * Sleeps until the start of the next tick.
+     * 
+     * @return The current time relative to the start time in nanoseconds, or
+     *         -1 if interrupted.
+     */
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long currentTime = System.nanoTime() - startTime;
+            long sleepTime = (deadline - currentTime + 999999L) / 1000000L;
+            if (sleepTime <= 0L) {
+                return currentTime;
+            }
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                if (!isRunning) {
+                    return -1L;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transfers new timeouts to their bucket.
+     */
+    private void transferNewTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.state.get() != Timeout.STATE_PENDING) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // Ensure timeouts in the past expire in the current tick.
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Removes cancelled timeouts from their bucket.
+     */
+    private void removeCancelledTimeouts() {
+        Timeout timeout = cancelledTimeouts.poll();
+        while (timeout != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+            timeout = cancelledTimeouts.poll();
+        }
+    }
+
+    /**
+     * Timeout armed with a timer.
+     * 
+     * @author Oscar Stigter
+     */
+    public class Timeout {
+
+        /** State of a pending timeout. */
+        private static final int STATE_PENDING = 0;
+
+        /** State of a cancelled timeout. */
+        private static final int STATE_CANCELLED = 1;
+
+        /** State of an expired timeout. */
+        private static final int STATE_EXPIRED = 2;
+
+        /** The task. */
+        private final Runnable task;
+
+        /** The deadline relative to the timer's start time in nanoseconds. */
+        private final long deadline;
+
+        /** The state. */
+        private final AtomicInteger state;
+
+        /** The number of remaining wheel rounds before expiry. */
+        private long remainingRounds;
+
+        /** The bucket, if transferred. */
+        private Bucket bucket;
+
+        /** The previous timeout in the bucket. */
+        private Timeout prev;
+
+        /** The next timeout in the bucket. */
+        private Timeout next;
+
+        /**
+         * Constructor.
+         * 
+         * @param task
+         *            The task.
+         * @param deadline
+         *            The deadline in nanoseconds.
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(STATE_PENDING);
+        }
+
+        /**
+         * Cancels the timeout. Has no effect if already expired.
+         * 
+         * @return True if cancelled, otherwise false.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                pendingTimeouts.decrementAndGet();
+                cancelledTimeouts.add(this);
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * Indicates whether the timeout has been cancelled.
+         * 
+         * @return True if cancelled, otherwise false.
+         */
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        /**
+         * Indicates whether the timeout has expired.
+         * 
+         * @return True if expired, otherwise false.
+         */
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        /**
+         * Expires the timeout, running its task.
+         */
+        private void expire() {
+            if (state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                pendingTimeouts.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.error("Internal error while executing timer task", e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Bucket with a doubly linked list of timeouts, only accessed from the
+     * timer thread.
+     * 
+     * @author Oscar Stigter
+     */
+    private static class Bucket {
+
+        /** The first timeout. */
+        private Timeout head;
+
+        /** The last timeout. */
+        private Timeout tail;
+
+        /**
+         * Adds a timeout.
+         * 
+         * @param timeout
+         *            The timeout.
+         */
+        public void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Removes a timeout.
+         * 
+         * @param timeout
+         *            The timeout.
+         * 
+         * @return The next timeout.
+         */
+        public Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Expires all timeouts in this bucket that are due.
+         * 
+         * @param deadline
+         *            The current time relative to the timer's start time in
+         *            nanoseconds.
+         */
+        public void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0L) {
+                    Timeout next = remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // Should never happen; deadline is within this tick.
+                        LOG.error(String.format("Timeout deadline (%d) after tick deadline (%d)", timeout.deadline, deadline));
+                    }
+                    timeout = next;
+                } else if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+
+    }
+
+}
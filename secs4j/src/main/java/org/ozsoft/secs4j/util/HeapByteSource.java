@@ -0,0 +1,138 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte source backed by a single (heap or direct) buffer.
+ * 
+ * @author Oscar Stigter
+ */
+public class HeapByteSource implements ByteSource, ByteSink {
+
+    /** The buffer, with the bytes from position 0 up to its limit. */
+    private final ByteBuffer buffer;
+
+    /** The number of bytes written so far. */
+    private int writePosition;
+
+    /** The pool the buffer was leased from, if any. */
+    private BufferPool pool;
+
+    /** The leased buffer, until released. */
+    private ByteBuffer leasedBuffer;
+
+    /**
+     * Constructor wrapping the remaining bytes of a buffer, without copying.
+     * 
+     * @param buffer
+     *            The buffer.
+     */
+    public HeapByteSource(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        writePosition = this.buffer.limit();
+    }
+
+    /**
+     * Returns an empty source with a fixed length, to be filled by writing to
+     * it.
+     * 
+     * @param length
+     *            The length in bytes.
+     * 
+     * @return The byte source.
+     */
+    public static HeapByteSource allocate(int length) {
+        HeapByteSource source = new HeapByteSource(ByteBuffer.allocate(length));
+        source.writePosition = 0;
+        return source;
+    }
+
+    /**
+     * Returns an empty source with a fixed length, to be filled by writing to
+     * it, backed by a buffer leased from a pool. The buffer is returned to the
+     * pool when the source is closed.
+     * 
+     * @param length
+     *            The length in bytes.
+     * @param pool
+     *            The buffer pool.
+     * 
+     * @return The byte source.
+     */
+    public static HeapByteSource allocate(int length, BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(length);
+        HeapByteSource source = new HeapByteSource(buffer);
+        source.writePosition = 0;
+        source.pool = pool;
+        source.leasedBuffer = buffer;
+        return source;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public byte get(long index) {
+        return buffer.get((int) index);
+    }
+
+    @Override
+    public void get(long index, byte[] dst, int offset, int length) {
+        ByteBuffer src = buffer.duplicate();
+        src.position((int) index);
+        src.get(dst, offset, length);
+    }
+
+    @Override
+    public ByteBuffer slice(long index, int length) {
+        ByteBuffer src = buffer.duplicate();
+        src.position((int) index);
+        src.limit((int) index + length);
+        return src.slice();
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        int length = Math.min(src.remaining(), buffer.limit() - writePosition);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(writePosition);
+        ByteBuffer in = src.slice();
+        in.limit(length);
+        dst.put(in);
+        src.position(src.position() + length);
+        writePosition += length;
+    }
+
+    @Override
+    public long remaining() {
+        return buffer.limit() - writePosition;
+    }
+
+    @Override
+    public void close() {
+        if (leasedBuffer != null) {
+            pool.release(leasedBuffer);
+            leasedBuffer = null;
+        }
+    }
+
+}
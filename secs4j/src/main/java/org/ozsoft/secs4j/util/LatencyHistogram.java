@@ -0,0 +1,144 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies (e.g. round-trip times) in microseconds. <br />
+ * <br />
+ * 
+ * Values are counted in buckets with power-of-2 bounds, so recording a value
+ * is constant time without any allocation, while percentiles are accurate to
+ * within a factor of 2. Safe for concurrent use; values may be recorded and
+ * read from any thread.
+ * 
+ * @author Oscar Stigter
+ */
+public class LatencyHistogram {
+
+    /** The number of buckets (values up to 2^39 microseconds). */
+    private static final int BUCKETS = 40;
+
+    /** The number of values per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The number of values. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The sum of the values. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** The largest value. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     * 
+     * @param value
+     *            The value in microseconds (negative values are recorded as
+     *            0).
+     */
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+        counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1));
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * 
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     * 
+     * @return The largest value in microseconds, or 0 if none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     * 
+     * @return The mean in microseconds, or 0 if none.
+     */
+    public long getMean() {
+        long n = count.get();
+        return (n > 0L) ? sum.get() / n : 0L;
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the recorded values.
+     * 
+     * @param percentile
+     *            The percentile (between 0 and 100, e.g. 99.9).
+     * 
+     * @return The upper bound of the percentile in microseconds, or 0 if no
+     *         values have been recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100.0 * total), 1L);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // Upper bound of the bucket, but never beyond the largest value.
+                return Math.min((1L << i) - 1L, max.get());
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Discards all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d, mean: %d us, p50: %d us, p99: %d us, max: %d us", getCount(), getMean(), getPercentile(50.0), getPercentile(99.0), getMax());
+    }
+
+}
@@ -0,0 +1,168 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue backed by a ring buffer, safe for any number of
+ * producer and consumer threads. <br />
+ * <br />
+ * 
+ * Each slot carries a sequence number telling whether it is free for the
+ * producer or filled for the consumer of a specific position, so neither
+ * ever waits for a lock; a full buffer is reported to the producer instead of
+ * blocking it.
+ * 
+ * @param <E>
+ *            The element type.
+ * 
+ * @author Oscar Stigter
+ */
+public class RingBuffer<E> {
+
+    /** The elements. */
+    private final Object[] elements;
+
+    /** The sequence number of each slot. */
+    private final AtomicLongArray sequences;
+
+    /** The index mask (capacity - 1). */
+    private final int mask;
+
+    /** The position of the next element to add. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The position of the next element to remove. */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            The capacity (rounded up to a power of 2).
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element, unless the buffer is full.
+     * 
+     * @param element
+     *            The element.
+     * 
+     * @return True if added, or false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new IllegalArgumentException("Null element");
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0L) {
+                if (tail.compareAndSet(position, position + 1L)) {
+                    elements[index] = element;
+                    // Publish element to consumers.
+                    sequences.set(index, position + 1L);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0L) {
+                // Slot not consumed yet; buffer full.
+                return false;
+            } else {
+                // Slot taken by another producer.
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.
+     * 
+     * @return The element, or <code>null</code> if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1L);
+            if (diff == 0L) {
+                if (head.compareAndSet(position, position + 1L)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    // Release slot to producers of the next round.
+                    sequences.set(index, position + mask + 1L);
+                    return element;
+                }
+                position = head.get();
+            } else if (diff < 0L) {
+                // Slot not filled yet; buffer empty.
+                return null;
+            } else {
+                // Slot taken by another consumer.
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the (approximate) number of elements.
+     * 
+     * @return The number of elements.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(size, elements.length));
+    }
+
+    /**
+     * Indicates whether the buffer is (approximately) empty.
+     * 
+     * @return True if empty, otherwise false.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the capacity.
+     * 
+     * @return The capacity.
+     */
+    public int capacity() {
+        return elements.length;
+    }
+
+}
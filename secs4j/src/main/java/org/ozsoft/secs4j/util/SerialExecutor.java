@@ -0,0 +1,170 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executor running its tasks one at a time, in submission order, on an
+ * underlying (typically multi-threaded) executor. <br />
+ * <br />
+ * 
+ * Many serial executors may share the same underlying executor; tasks of
+ * different serial executors run in parallel, while the tasks of a single
+ * serial executor never overlap. A serial executor does not hold on to a
+ * thread while it has no tasks.
+ * 
+ * @author Oscar Stigter
+ */
+public class SerialExecutor implements Executor {
+
+    /** Maximum number of tasks to run before yielding the thread. */
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private static final Logger LOG = Logger.getLogger(SerialExecutor.class);
+
+    /** The underlying executor. */
+    private final Executor executor;
+
+    /** The pending tasks. */
+    private final Queue<Runnable> tasks;
+
+    /** Whether a drain task is scheduled or running on the underlying executor. */
+    private final AtomicBoolean isScheduled;
+
+    /** The drain task. */
+    private final Runnable drainTask;
+
+    /**
+     * Constructor.
+     * 
+     * @param executor
+     *            The underlying executor.
+     */
+    public SerialExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Null executor");
+        }
+        this.executor = executor;
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        isScheduled = new AtomicBoolean();
+        drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Returns the underlying executor.
+     * 
+     * @return The underlying executor.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executes a task after all previously submitted tasks. <br />
+     * <br />
+     * 
+     * If the underlying executor rejects running the tasks, the task is not
+     * queued and the exception is rethrown, so the caller still owns it.
+     * 
+     * @param task
+     *            The task.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        try {
+            schedule();
+        } catch (RuntimeException e) {
+            if (tasks.remove(task)) {
+                throw e;
+            }
+            // Already taken by a running drain task.
+        }
+    }
+
+    /**
+     * Returns the number of pending tasks.
+     * 
+     * @return The number of pending tasks.
+     */
+    public int getPendingTasks() {
+        return tasks.size();
+    }
+
+    /**
+     * Schedules the drain task on the underlying executor, unless already
+     * scheduled.
+     */
+    private void schedule() {
+        if (!tasks.isEmpty() && isScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RuntimeException e) {
+                isScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs pending tasks, yielding the thread after a maximum number of tasks
+     * so other serial executors sharing the underlying executor are not
+     * starved. If the underlying executor rejects the re-scheduled drain task
+     * (e.g. when shut down), the remaining tasks run on the current thread
+     * instead of being left queued.
+     */
+    private void drain() {
+        boolean isDraining = true;
+        while (isDraining) {
+            try {
+                for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("Internal error while executing task", e);
+                    }
+                }
+            } finally {
+                isScheduled.set(false);
+            }
+            try {
+                // Re-schedule for tasks added meanwhile or not run yet.
+                schedule();
+                isDraining = false;
+            } catch (RuntimeException e) {
+                // Keep draining here, unless another thread took over.
+                isDraining = isScheduled.compareAndSet(false, true);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Utilities for virtual threads (Java 21 or later). <br />
+ * <br />
+ * 
+ * The library itself is built for older Java versions, so virtual threads are
+ * created through reflection when the runtime supports them. <br />
+ * <br />
+ * 
+ * A virtual thread blocked in <code>SecsEquipment.sendMessageAndWait()</code>
+ * is parked without occupying a carrier thread, since waiting for the reply
+ * message and all data structures on the send path are lock-free. An executor
+ * returned by {@link #newExecutor(String)} may be set on a SECS equipment to
+ * run the message handlers on virtual threads as well, so a handler may send a
+ * message and wait for its reply (which is handled on another virtual thread)
+ * without tying up a platform thread.
+ * 
+ * @author Oscar Stigter
+ */
+public abstract class VirtualThreads {
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreads.class);
+
+    /** Method <code>Thread.ofVirtual()</code>, or null if not available. */
+    private static final Method OF_VIRTUAL;
+
+    /** Method <code>Thread.Builder.name(String, long)</code>. */
+    private static final Method NAME;
+
+    /** Method <code>Thread.Builder.factory()</code>. */
+    private static final Method FACTORY;
+
+    /** Method <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>. */
+    private static final Method NEW_EXECUTOR;
+
+    /** Method <code>Thread.isVirtual()</code>. */
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        Method isVirtual = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            isVirtual = Thread.class.getMethod("isVirtual");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            // Fails for preview versions (Java 19 and 20) without preview enabled.
+            ofVirtual.invoke(null);
+        } catch (Throwable t) {
+            LOG.debug("Virtual threads not available");
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_EXECUTOR = newExecutor;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    /**
+     * Indicates whether virtual threads are available.
+     * 
+     * @return True if virtual threads are available, otherwise false.
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Indicates whether a thread is a virtual thread.
+     * 
+     * @param thread
+     *            The thread.
+     * 
+     * @return True if the thread is a virtual thread, otherwise false.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (OF_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a new thread factory creating virtual threads.
+     * 
+     * @param name
+     *            The prefix of the thread names, followed by a sequence number.
+     * 
+     * @return The thread factory.
+     * 
+     * @throws UnsupportedOperationException
+     *             If virtual threads are not available.
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        if (OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads not available (Java 21 or later required)");
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Returns a new executor starting a virtual thread for each task.
+     * 
+     * @param name
+     *            The prefix of the thread names, followed by a sequence number.
+     * 
+     * @return The executor.
+     * 
+     * @throws UnsupportedOperationException
+     *             If virtual threads are not available.
+     */
+    public static ExecutorService newExecutor(String name) {
+        ThreadFactory threadFactory = newThreadFactory(name);
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null, threadFactory);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+        }
+    }
+
+}
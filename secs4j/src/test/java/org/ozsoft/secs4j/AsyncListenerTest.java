@@ -0,0 +1,147 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the <code>AsyncListener</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class AsyncListenerTest {
+
+    /** Delivery tasks, run on demand by the test. */
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    /** Executor queueing the delivery tasks. */
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    };
+
+    /**
+     * Tests delivery in order, dropping new events when the buffer is full.
+     */
+    @Test
+    public void dropNewest() {
+        RecordingListener listener = new RecordingListener();
+        AsyncListener asyncListener = new AsyncListener(listener, executor, 4, AsyncListener.OverflowPolicy.DROP_NEWEST);
+        publish(asyncListener);
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(4, asyncListener.getPendingEvents());
+        Assert.assertEquals(3L, asyncListener.getDroppedEvents());
+        Assert.assertTrue(listener.events.isEmpty());
+        runTasks();
+        Assert.assertEquals("[NOT_CONNECTED, NOT_SELECTED, SELECTED, NOT_COMMUNICATING]", listener.events.toString());
+        Assert.assertEquals(4L, asyncListener.getDeliveredEvents());
+        Assert.assertEquals(0, asyncListener.getPendingEvents());
+    }
+
+    /**
+     * Tests delivery in order, dropping the oldest events when the buffer is
+     * full.
+     */
+    @Test
+    public void dropOldest() {
+        RecordingListener listener = new RecordingListener();
+        AsyncListener asyncListener = new AsyncListener(listener, executor, 4, AsyncListener.OverflowPolicy.DROP_OLDEST);
+        publish(asyncListener);
+        Assert.assertEquals(3L, asyncListener.getDroppedEvents());
+        runTasks();
+        Assert.assertEquals("[NOT_COMMUNICATING, COMMUNICATING, EQUIPMENT_OFFLINE, ONLINE_REMOTE]", listener.events.toString());
+    }
+
+    /**
+     * Tests adding and removing an asynchronous listener on an equipment.
+     * 
+     * @throws SecsException
+     *             If the equipment could not be configured.
+     */
+    @Test
+    public void equipment() throws SecsException {
+        SecsEquipment equipment = new SecsEquipment();
+        RecordingListener listener = new RecordingListener();
+        AsyncListener asyncListener = equipment.addListener(listener, executor, 16, AsyncListener.OverflowPolicy.DROP_OLDEST);
+        equipment.setControlState(ControlState.ONLINE_REMOTE);
+        runTasks();
+        Assert.assertEquals("[ONLINE_REMOTE]", listener.events.toString());
+        Assert.assertTrue(asyncListener.getMaxLag() >= 0L);
+        equipment.removeListener(listener);
+        equipment.setControlState(ControlState.EQUIPMENT_OFFLINE);
+        runTasks();
+        Assert.assertEquals(1, listener.events.size());
+    }
+
+    private static void publish(SecsEquipmentListener listener) {
+        listener.connectionStateChanged(ConnectionState.NOT_CONNECTED);
+        listener.connectionStateChanged(ConnectionState.NOT_SELECTED);
+        listener.connectionStateChanged(ConnectionState.SELECTED);
+        listener.communicationStateChanged(CommunicationState.NOT_COMMUNICATING);
+        listener.communicationStateChanged(CommunicationState.COMMUNICATING);
+        listener.controlStateChanged(ControlState.EQUIPMENT_OFFLINE);
+        listener.controlStateChanged(ControlState.ONLINE_REMOTE);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    /**
+     * Listener recording all events.
+     */
+    private static class RecordingListener implements SecsEquipmentListener {
+
+        private final List<Object> events = new ArrayList<Object>();
+
+        @Override
+        public void connectionStateChanged(ConnectionState connectionState) {
+            events.add(connectionState);
+        }
+
+        @Override
+        public void communicationStateChanged(CommunicationState communicationState) {
+            events.add(communicationState);
+        }
+
+        @Override
+        public void controlStateChanged(ControlState controlState) {
+            events.add(controlState);
+        }
+
+        @Override
+        public void messageReceived(Message message) {
+            events.add(message);
+        }
+
+        @Override
+        public void messageSent(Message message) {
+            events.add(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,246 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ozsoft.secs4j.util.ByteSource;
+
+/**
+ * Test suite for the <code>FrameDecoder</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class FrameDecoderTest {
+
+    /** SELECT_REQ message (header only). */
+    private static final byte[] SELECT_REQ = new byte[] { 0x00, 0x00, 0x00, 0x0a, (byte) 0xff, (byte) 0xff, 0x00, 0x00, 0x00, 0x01, 0x11, 0x12, 0x13, 0x14 };
+
+    /** S2F25 message with B data item. */
+    private static final byte[] S2F25 = new byte[] { 0x00, 0x00, 0x00, 0x0f, 0x00, 0x01, (byte) 0x82, 0x19, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14, 0x21, 0x03, 0x21, 0x22, 0x23 };
+
+    private final List<byte[]> frames = new ArrayList<byte[]>();
+
+    private FrameDecoder decoder;
+
+    @Before
+    public void before() {
+        frames.clear();
+        decoder = new FrameDecoder(new FrameHandler());
+    }
+
+    /**
+     * Tests multiple frames coalesced in a single read.
+     */
+    @Test
+    public void coalescedFrames() throws SecsException {
+        ByteBuffer buf = ByteBuffer.allocate(SELECT_REQ.length + S2F25.length);
+        buf.put(SELECT_REQ).put(S2F25).flip();
+        decoder.decode(buf);
+        Assert.assertFalse(buf.hasRemaining());
+        Assert.assertFalse(decoder.isPartial());
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals(SELECT_REQ, frames.get(0));
+        Assert.assertArrayEquals(S2F25, frames.get(1));
+    }
+
+    /**
+     * Tests a single frame split over many reads, including the Length field.
+     */
+    @Test
+    public void splitFrame() throws SecsException {
+        for (int i = 0; i < S2F25.length; i++) {
+            Assert.assertEquals(0, frames.size());
+            decoder.decode(ByteBuffer.wrap(S2F25, i, 1));
+            Assert.assertEquals(i < S2F25.length - 1, decoder.isPartial());
+        }
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals(S2F25, frames.get(0));
+    }
+
+    /**
+     * Tests a frame completed in the same read as the start of the next frame.
+     */
+    @Test
+    public void overlappingFrames() throws SecsException {
+        ByteBuffer buf = ByteBuffer.allocate(SELECT_REQ.length + S2F25.length);
+        buf.put(SELECT_REQ).put(S2F25).flip();
+        decoder.decode(ByteBuffer.wrap(buf.array(), 0, 6));
+        decoder.decode(ByteBuffer.wrap(buf.array(), 6, 16));
+        Assert.assertEquals(1, frames.size());
+        Assert.assertTrue(decoder.isPartial());
+        decoder.decode(ByteBuffer.wrap(buf.array(), 22, buf.limit() - 22));
+        Assert.assertFalse(decoder.isPartial());
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals(SELECT_REQ, frames.get(0));
+        Assert.assertArrayEquals(S2F25, frames.get(1));
+    }
+
+    /**
+     * Tests that frames handed off remain valid after the buffer is reused.
+     */
+    @Test
+    public void handOff() throws SecsException {
+        final List<ByteBuffer> headers = new ArrayList<ByteBuffer>();
+        final List<ByteSource> sources = new ArrayList<ByteSource>();
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameHandler() {
+            @Override
+            public void frameReceived(ByteBuffer header, ByteSource data) {
+                headers.add(header);
+                sources.add(data);
+            }
+        });
+        decoder.setHandOff(true);
+        ByteBuffer buf = ByteBuffer.allocate(SELECT_REQ.length + S2F25.length);
+        buf.put(SELECT_REQ).put(S2F25).flip();
+        decoder.decode(buf);
+        buf.clear();
+        buf.put(new byte[buf.capacity()]);
+        Assert.assertEquals(2, headers.size());
+        Assert.assertNull(sources.get(0));
+        Assert.assertEquals(SELECT_REQ.length, headers.get(0).remaining());
+        Assert.assertEquals(0x11, headers.get(1).get(10));
+        ByteSource data = sources.get(1);
+        byte[] bytes = new byte[(int) data.length()];
+        data.get(0L, bytes, 0, bytes.length);
+        Assert.assertArrayEquals(new byte[] { 0x21, 0x03, 0x21, 0x22, 0x23 }, bytes);
+        data.close();
+    }
+
+    /**
+     * Tests that complete frames are passed on without copying.
+     */
+    @Test
+    public void zeroCopy() throws SecsException {
+        final ByteBuffer buf = ByteBuffer.allocate(SELECT_REQ.length + S2F25.length);
+        buf.put(SELECT_REQ).put(S2F25).flip();
+        final List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameHandler() {
+            @Override
+            public void frameReceived(ByteBuffer header, ByteSource data) {
+                slices.add(header);
+                if (data != null) {
+                    slices.add(data.slice(0L, (int) data.length()));
+                }
+            }
+        });
+        decoder.decode(buf);
+        Assert.assertEquals(3, slices.size());
+        Assert.assertSame(buf.array(), slices.get(0).array());
+        Assert.assertSame(buf.array(), slices.get(1).array());
+        Assert.assertEquals(SELECT_REQ.length, slices.get(1).arrayOffset());
+        Assert.assertSame(buf.array(), slices.get(2).array());
+        Assert.assertEquals(SELECT_REQ.length + 14, slices.get(2).arrayOffset());
+        Assert.assertEquals(S2F25.length - 14, slices.get(2).remaining());
+    }
+
+    /**
+     * Tests large frames spanning many reads, buffered in heap chunks and in a
+     * temporary file.
+     */
+    @Test
+    public void largeFrames() throws SecsException {
+        decoder = new FrameDecoder(new FrameHandler(), SecsConstants.DEFAULT_MAX_MESSAGE_LENGTH, 100000L);
+        byte[] chunked = createFrame(80000);
+        byte[] fileBacked = createFrame(300000);
+        for (byte[] frame : new byte[][] { chunked, fileBacked }) {
+            for (int offset = 0; offset < frame.length; offset += 8192) {
+                decoder.decode(ByteBuffer.wrap(frame, offset, Math.min(8192, frame.length - offset)));
+            }
+        }
+        Assert.assertFalse(decoder.isPartial());
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals(chunked, frames.get(0));
+        Assert.assertArrayEquals(fileBacked, frames.get(1));
+    }
+
+    /**
+     * Tests that a frame exceeding the maximum message length is skipped
+     * without losing the framing.
+     */
+    @Test
+    public void tooLargeFrame() throws SecsException {
+        decoder = new FrameDecoder(new FrameHandler(), 1024L, SecsConstants.DEFAULT_MAX_IN_MEMORY_LENGTH);
+        byte[] frame = createFrame(2000);
+        ByteBuffer buf = ByteBuffer.allocate(frame.length + S2F25.length);
+        buf.put(frame).put(S2F25).flip();
+        decoder.decode(ByteBuffer.wrap(buf.array(), 0, 2));
+        decoder.decode(ByteBuffer.wrap(buf.array(), 2, 1000));
+        Assert.assertTrue(decoder.isPartial());
+        decoder.decode(ByteBuffer.wrap(buf.array(), 1002, buf.limit() - 1002));
+        Assert.assertFalse(decoder.isPartial());
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals(S2F25, frames.get(0));
+    }
+
+    /**
+     * Tests an invalid Length field.
+     */
+    @Test
+    public void invalidLength() {
+        try {
+            decoder.decode(ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x09, 0x00 }));
+            Assert.fail("Missed exception");
+        } catch (SecsParseException e) {
+            Assert.assertEquals("Invalid message length: 9", e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a data message frame with a B data item.
+     * 
+     * @param dataLength
+     *            The length of the B data item's value.
+     * 
+     * @return The frame.
+     */
+    private static byte[] createFrame(int dataLength) {
+        ByteBuffer buf = ByteBuffer.allocate(18 + dataLength);
+        buf.putInt(14 + dataLength);
+        buf.put(new byte[] { 0x00, 0x01, 0x06, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01 });
+        buf.put((byte) 0x23).put((byte) dataLength).put((byte) (dataLength >> 8)).put((byte) (dataLength >> 16));
+        for (int i = 0; i < dataLength; i++) {
+            buf.put((byte) i);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Frame handler collecting the received frames.
+     */
+    private class FrameHandler implements FrameDecoder.FrameHandler {
+
+        @Override
+        public void frameReceived(ByteBuffer header, ByteSource data) {
+            int dataLength = (data != null) ? (int) data.length() : 0;
+            byte[] frame = new byte[header.remaining() + dataLength];
+            header.duplicate().get(frame, 0, header.remaining());
+            if (data != null) {
+                data.get(0L, frame, header.remaining(), dataLength);
+            }
+            frames.add(frame);
+        }
+
+    }
+
+}
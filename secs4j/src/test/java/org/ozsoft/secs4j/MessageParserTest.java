@@ -17,12 +17,14 @@
 
 package org.ozsoft.secs4j;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.ozsoft.secs4j.codec.MessageCodec;
 import org.ozsoft.secs4j.format.A;
 import org.ozsoft.secs4j.format.B;
 import org.ozsoft.secs4j.format.BOOLEAN;
@@ -39,7 +41,10 @@ import org.ozsoft.secs4j.format.U2;
 import org.ozsoft.secs4j.format.U4;
 import org.ozsoft.secs4j.format.U8;
 import org.ozsoft.secs4j.message.S1F13;
+import org.ozsoft.secs4j.message.S1F14;
 import org.ozsoft.secs4j.message.S2F25;
+import org.ozsoft.secs4j.util.FileByteSource;
+import org.ozsoft.secs4j.util.HeapByteSource;
 
 /**
  * Test suite for the <code>MessageParser<code>.
@@ -50,24 +55,16 @@ public class MessageParserTest {
 	
 	private static final double FLOAT_DELTA = 0.00000001;
     
-    private static Map<Integer, Class<? extends SecsMessage>> messageTypes;
+    private static MessageRegistry messageTypes;
     
     @BeforeClass
     public static void beforeClass() {
-        messageTypes = new HashMap<Integer, Class<? extends SecsMessage>>();
-        addMessageType(S1F13.class);
-        addMessageType(S2F25.class);
-    }
-    
-    private static void addMessageType(Class<? extends SecsMessage> messageType) {
-        try {
-            SecsMessage message = messageType.newInstance();
-            int messageId = message.getStream() * 256 + message.getFunction();
-            messageTypes.put(messageId, messageType);
-        } catch (Exception e) {
-            // Internal error (should never happen).
-            Assert.fail("Could not instantiate message type: " + messageType);
-        }
+        messageTypes = new MessageRegistry();
+        messageTypes.register(S1F13::new);
+        messageTypes.register(S1F14::new);
+        messageTypes.register(S2F25::new);
+        messageTypes.register(LazyMessage::new);
+        messageTypes.register(RawCodecMessage::new);
     }
     
     /**
@@ -695,6 +692,107 @@ public class MessageParserTest {
         Assert.assertEquals("<L [2]\n<L [2]\n<B 0x11 0x12 0x13>\n<B 0x21 0x22 0x23>\n>\n<L [2]\n<B 0x31 0x32 0x33>\n<B 0x41 0x42 0x43>\n>\n>", text.toSml());
     }
 
+    /**
+     * Tests the parsing of data messages with deeply nested L items and signed
+     * and unsigned numeric leaf items. <br />
+     * <br />
+     * 
+     * Message:
+     * <pre>
+     *   L [1]
+     *     L [1]
+     *       ... (1000 levels)
+     *         L [2]
+     *           I2 {-2 32767}
+     *           U4 {4294967295}
+     * </pre>
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageLDeep() throws SecsException {
+        final int depth = 1000;
+        int textLength = depth * 2 + 2 + 6 + 6;
+        ByteBuffer buf = ByteBuffer.allocate(14 + textLength);
+        buf.putInt(10 + textLength);
+        buf.put(new byte[] { 0x00, 0x01, (byte) 0x82, 0x19, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        for (int i = 0; i < depth; i++) {
+            buf.put((byte) 0x01).put((byte) 0x01);
+        }
+        buf.put((byte) 0x01).put((byte) 0x02);
+        buf.put((byte) 0x69).put((byte) 0x04).putShort((short) -2).putShort((short) 32767);
+        buf.put((byte) 0xb1).put((byte) 0x04).putInt(0xffffffff);
+        buf.flip();
+        SecsMessage dataMessage = (SecsMessage) MessageParser.parseMessage(buf, messageTypes);
+        Data<?> text = dataMessage.getData();
+        for (int i = 0; i < depth; i++) {
+            Assert.assertTrue(text instanceof L);
+            Assert.assertEquals(1, text.length());
+            text = ((L) text).getItem(0);
+        }
+        L l = (L) text;
+        Assert.assertEquals(2, l.length());
+        I2 i2 = (I2) l.getItem(0);
+        Assert.assertEquals(-2L, i2.getValue(0));
+        Assert.assertEquals(32767L, i2.getValue(1));
+        U4 u4 = (U4) l.getItem(1);
+        Assert.assertEquals(4294967295L, u4.getValue(0));
+        Assert.assertEquals(textLength, dataMessage.getData().toByteArray().length);
+    }
+
+    /**
+     * Tests lazy decoding of data messages. <br />
+     * <br />
+     * 
+     * Message:
+     * <pre>
+     *   L [3]
+     *     A {'V1'}
+     *     L [2]
+     *       U2 {511}
+     *       A {'V2'}
+     *     A {'V3'}
+     * </pre>
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageLazy() throws SecsException {
+        byte[] text = new byte[] { 0x01, 0x03, 0x41, 0x02, 'V', '1', 0x01, 0x02, (byte) 0xa9, 0x02, 0x01, (byte) 0xff, 0x41, 0x02, 'V', '2', 0x41, 0x02, 'V', '3' };
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x1e, 0x00, 0x01, (byte) 0x82, 0x19, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        S2F25 message = (S2F25) MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes, false);
+        Assert.assertEquals(MessageParser.parseData("<L <A \"V1\"> <L <U2 511> <A \"V2\">> <A \"V3\">>").toSml(), message.getTestData().toSml());
+        
+        message = (S2F25) MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes, true);
+        L l = (L) message.getTestData();
+        Assert.assertEquals(3, l.length());
+        
+        // Items accessed while parsing.
+        header.put(6, (byte) 0x63).put(7, (byte) 0x63);
+        LazyMessage lazyMessage = (LazyMessage) MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes, true);
+        Assert.assertEquals(511L, lazyMessage.value);
+        header.put(6, (byte) 0x82).put(7, (byte) 0x19);
+        
+        // Message data released after parsing; only decoded items available.
+        try {
+            l.getItem(0);
+            Assert.fail("Missed exception");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        
+        // Invalid message data is still detected up front.
+        text[text.length - 3] = 0x03;
+        try {
+            MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes, true);
+            Assert.fail("Missed exception");
+        } catch (SecsParseException e) {
+            Assert.assertEquals("Incomplete message data", e.getMessage());
+        }
+    }
+
     /**
      * Tests the parsing of a an S1F13 primary data message. <br />
      * <br />
@@ -726,4 +824,284 @@ public class MessageParserTest {
         Assert.assertEquals("<L [2]\n<A \"SECS Equipment\">\n<A \"1.0\">\n>", text.toSml());
     }
 
+    /**
+     * Tests the parsing of a large data message with its data stored in a
+     * temporary file. <br />
+     * <br />
+     * 
+     * Message:
+     * <pre>
+     *   A {200000 characters}
+     * </pre>
+     * 
+     * @throws Exception
+     *             In case of an invalid message or an I/O error.
+     */
+    @Test
+    public void dataMessageLarge() throws Exception {
+        final int length = 200000;
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0x00, 0x03, 0x0d, 0x4e, 0x00, 0x01, (byte) 0x82, 0x19, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.put((byte) 0x43).put((byte) 0x40).put((byte) 0x0d).put((byte) 0x03);
+        for (int i = 0; i < length; i++) {
+            buf.put((byte) ('A' + i % 26));
+        }
+        buf.flip();
+        FileByteSource text = new FileByteSource(buf.remaining(), null);
+        try {
+            text.write(buf);
+            SecsMessage dataMessage = (SecsMessage) MessageParser.parseMessage(header, text, messageTypes);
+            Assert.assertEquals("S2F25", dataMessage.getType());
+            A a = (A) dataMessage.getData();
+            Assert.assertEquals(length, a.length());
+            Assert.assertEquals('A', a.getValue().charAt(0));
+            Assert.assertEquals('A' + (length - 1) % 26, a.getValue().charAt(length - 1));
+        } finally {
+            text.close();
+        }
+    }
+
+    /**
+     * Tests the encoding and decoding of a message type with a generated codec.
+     * <br />
+     * <br />
+     * 
+     * Message:
+     * <pre>
+     * L {
+     *   B {0x00}
+     *   L {
+     *     A {MDLN}
+     *     A {1.0}
+     *   }
+     * }
+     * </pre>
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageCodec() throws SecsException {
+        S1F14 s1f14 = new S1F14();
+        s1f14.setCommAck(S1F14.COMMACK_ACCEPTED);
+        s1f14.setModelName("MDLN");
+        s1f14.setSoftRev("1.0");
+        SecsMessage message = s1f14;
+        message.setTransactionId(0x11121314L);
+        byte[] frame = message.toByteArray();
+        
+        // Same encoding as with data items.
+        Data<?> data = MessageParser.parseData("<L <B 0x00> <L <A \"MDLN\"> <A \"1.0\">>>");
+        Assert.assertArrayEquals(data.toByteArray(), Arrays.copyOfRange(frame, 14, frame.length));
+        Assert.assertEquals(data.toSml(), message.getData().toSml());
+        
+        s1f14 = (S1F14) MessageParser.parseMessage(frame, frame.length, messageTypes);
+        Assert.assertEquals(S1F14.COMMACK_ACCEPTED, s1f14.getCommAck());
+        Assert.assertEquals("MDLN", s1f14.getModelName());
+        Assert.assertEquals("1.0", s1f14.getSoftRev());
+        Assert.assertEquals(0x11121314L, s1f14.getTransactionId());
+        
+        // Empty nested L.
+        byte[] text = new byte[] { 0x01, 0x02, 0x21, 0x01, 0x01, 0x01, 0x00 };
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x11, 0x00, 0x01, 0x01, 0x0e, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        s1f14 = (S1F14) MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes);
+        Assert.assertEquals(S1F14.COMMACK_DENIED_TRY_AGAIN, s1f14.getCommAck());
+        Assert.assertEquals("", s1f14.getModelName());
+        
+        // Invalid structure.
+        text[2] = 0x41;
+        try {
+            MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes);
+            Assert.fail("Missed exception");
+        } catch (SecsParseException e) {
+            Assert.assertEquals("commAck must be of type B", e.getMessage());
+        }
+        
+        // Invalid value.
+        text[2] = 0x21;
+        text[4] = 0x02;
+        try {
+            MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes);
+            Assert.fail("Missed exception");
+        } catch (SecsParseException e) {
+            Assert.assertEquals("Invalid COMMACK value: 2", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests that a runtime exception thrown by a codec (here reading beyond
+     * the message data) is reported as an invalid message.
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageCodecFailure() throws SecsException {
+        byte[] text = new byte[] { 0x01, 0x02 };
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x0c, 0x00, 0x01, 0x63, 0x61, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        try {
+            MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes);
+            Assert.fail("Missed exception");
+        } catch (SecsParseException e) {
+            Assert.assertEquals("Invalid message data for S99F97", e.getMessage());
+            Assert.assertTrue(e.getCause() instanceof BufferUnderflowException);
+        }
+    }
+
+    /**
+     * Tests that an unsupported message type is rejected based on its header,
+     * without decoding its (here invalid) message data.
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageUnsupported() throws SecsException {
+        byte[] text = new byte[] { (byte) 0xff, 0x03, 0x01 };
+        ByteBuffer header = ByteBuffer.wrap(new byte[] { 0x00, 0x00, 0x00, 0x0d, 0x00, 0x01, (byte) 0x85, (byte) 0xc9, 0x00, 0x00, 0x11, 0x12, 0x13, 0x14 });
+        try {
+            MessageParser.parseMessage(header, new HeapByteSource(ByteBuffer.wrap(text)), messageTypes);
+            Assert.fail("Missed exception");
+        } catch (UnsupportedMessageException e) {
+            Assert.assertEquals(5, e.getStream());
+            Assert.assertEquals(201, e.getFunction());
+            Assert.assertEquals(0x11121314L, e.getTransactionId());
+        }
+    }
+
+    /**
+     * Tests the encoding of a data message with a large B data item, which is
+     * written from its own array rather than copied. <br />
+     * <br />
+     * 
+     * Message:
+     * <pre>
+     *   L [3]
+     *     U2 {511}
+     *     B {4000 bytes}
+     *     A {'V3'}
+     * </pre>
+     * 
+     * @throws SecsException
+     *             In case of an invalid message.
+     */
+    @Test
+    public void dataMessageGathered() throws SecsException {
+        byte[] bytes = new byte[4000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        L l = new L();
+        l.addItem(new U2(511));
+        l.addItem(B.wrap(bytes));
+        l.addItem(new A("V3"));
+        S2F25 message = new S2F25();
+        message.setTestData(l);
+        
+        OutboundFrame frame = ((SecsMessage) message).encode(null);
+        ByteBuffer[] buffers = frame.getBuffers();
+        Assert.assertEquals(3, buffers.length);
+        Assert.assertEquals(4 + 10 + 2 + 4 + 3, buffers[0].remaining());
+        Assert.assertEquals(bytes.length, buffers[1].remaining());
+        Assert.assertEquals(4, buffers[2].remaining());
+        
+        byte[] frameBytes = frame.toByteArray();
+        Assert.assertEquals(frame.remaining(), frameBytes.length);
+        Assert.assertArrayEquals(l.toByteArray(), Arrays.copyOfRange(frameBytes, 14, frameBytes.length));
+        S2F25 parsed = (S2F25) MessageParser.parseMessage(frameBytes, frameBytes.length, messageTypes);
+        Assert.assertEquals(l.toSml(), parsed.getTestData().toSml());
+    }
+
+    /**
+     * Message type only reading a single value from its data.
+     */
+    public static class LazyMessage extends SecsMessage {
+        
+        private long value;
+        
+        @Override
+        public int getStream() {
+            return 99;
+        }
+        
+        @Override
+        public int getFunction() {
+            return 99;
+        }
+        
+        @Override
+        public boolean withReply() {
+            return false;
+        }
+        
+        @Override
+        public String getDescripton() {
+            return "Lazy Message";
+        }
+        
+        @Override
+        protected void parseData(Data<?> data) throws SecsParseException {
+            value = ((U2) ((L) ((L) data).getItem(1)).getItem(0)).getValue(0);
+        }
+        
+        @Override
+        protected Data<?> getData() throws SecsParseException {
+            return null;
+        }
+        
+    }
+    
+    /**
+     * Message type with a hand-written codec reading a raw 4-byte value.
+     */
+    public static class RawCodecMessage extends SecsMessage {
+        
+        private static final MessageCodec<RawCodecMessage> CODEC = new MessageCodec<RawCodecMessage>() {
+            
+            @Override
+            public int encodedLength(RawCodecMessage message) {
+                return 4;
+            }
+            
+            @Override
+            public void encode(RawCodecMessage message, ByteBuffer buffer) {
+                buffer.putInt(message.value);
+            }
+            
+            @Override
+            public void decode(RawCodecMessage message, ByteBuffer data) {
+                message.value = data.getInt();
+            }
+            
+        };
+        
+        private int value;
+        
+        @Override
+        public int getStream() {
+            return 99;
+        }
+        
+        @Override
+        public int getFunction() {
+            return 97;
+        }
+        
+        @Override
+        public boolean withReply() {
+            return false;
+        }
+        
+        @Override
+        public String getDescripton() {
+            return "Raw Codec Message";
+        }
+        
+        @Override
+        protected MessageCodec<RawCodecMessage> getCodec() {
+            return CODEC;
+        }
+        
+    }
+    
 }
@@ -0,0 +1,73 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ozsoft.secs4j.message.S1F13;
+import org.ozsoft.secs4j.message.S2F25;
+
+/**
+ * Test suite for the <code>MessageRegistry</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class MessageRegistryTest {
+
+    @Test
+    public void registerAndUnregister() {
+        MessageRegistry registry = new MessageRegistry();
+        Assert.assertFalse(registry.isSupported(1, 13));
+        Assert.assertNull(registry.newMessage(1, 13));
+        
+        Assert.assertTrue(registry.register(S1F13::new) instanceof S1F13);
+        registry.register(S2F25.class);
+        Assert.assertTrue(registry.isSupported(1, 13));
+        Assert.assertTrue(registry.isSupported(2, 25));
+        Assert.assertFalse(registry.isSupported(1, 14));
+        SecsMessage message = registry.newMessage(1, 13);
+        Assert.assertTrue(message instanceof S1F13);
+        Assert.assertNotSame(message, registry.newMessage(1, 13));
+        Assert.assertTrue(registry.newMessage(2, 25) instanceof S2F25);
+        
+        Assert.assertTrue(registry.unregister(1, 13));
+        Assert.assertFalse(registry.unregister(1, 13));
+        Assert.assertFalse(registry.isSupported(1, 13));
+        Assert.assertTrue(registry.isSupported(2, 25));
+    }
+
+    @Test
+    public void outOfRange() {
+        MessageRegistry registry = new MessageRegistry();
+        Assert.assertFalse(registry.isSupported(128, 1));
+        Assert.assertFalse(registry.isSupported(1, 256));
+        Assert.assertFalse(registry.isSupported(-1, 1));
+        try {
+            registry.register(128, 1, S1F13::new);
+            Assert.fail("Missed exception");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Invalid stream: 128", e.getMessage());
+        }
+        try {
+            registry.register(1, 256, S1F13::new);
+            Assert.fail("Missed exception");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Invalid function: 256", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j;
+
+import java.net.InetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.ozsoft.secs4j.message.S99F1;
+import org.ozsoft.secs4j.message.S99F2;
+
+/**
+ * Test suite for the <code>SecsServer</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class SecsServerTest {
+
+    /** Server port. */
+    private static final int PORT = 5601;
+
+    /** Server port for the connection manager test. */
+    private static final int MANAGER_PORT = 5604;
+
+    /** First port of the remote equipment for the connection manager test. */
+    private static final int REMOTE_PORT = 5611;
+
+    /** Server port for the test with the server not running. */
+    private static final int IDLE_PORT = 5616;
+
+    /** Timeout before communication is considered to have failed. */
+    private static final long CONNECTION_TIMEOUT = 500L;
+
+    /**
+     * Tests hosting and routing two equipment connected to each other through
+     * the server port.
+     * 
+     * @throws Exception
+     *             If the test fails.
+     */
+    @Test
+    public void test() throws Exception {
+        SecsServer server = new SecsServer(2);
+        server.setPort(PORT);
+        server.start();
+        Assert.assertTrue(server.isRunning());
+
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setDeviceId(1);
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setHost("localhost");
+        passiveEntity.addMessageType(S99F1.class);
+        server.addEquipment(passiveEntity);
+
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setDeviceId(2);
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setHost("localhost");
+        activeEntity.setPort(PORT);
+        activeEntity.addMessageType(S99F2.class);
+        server.addEquipment(activeEntity);
+
+        // Indexes and event loop assignment.
+        Assert.assertEquals(2, server.getEquipmentCount());
+        Assert.assertSame(passiveEntity, server.getEquipment(1));
+        Assert.assertSame(activeEntity, server.getEquipment(2));
+        Assert.assertNull(server.getEquipment(3));
+        Assert.assertSame(passiveEntity, server.getEquipment(InetAddress.getByName("localhost")));
+        Assert.assertSame(server, passiveEntity.getServer());
+        Assert.assertNotSame(passiveEntity.getEventLoop(), activeEntity.getEventLoop());
+
+        // Duplicate device ID.
+        SecsEquipment equipment = new SecsEquipment();
+        equipment.setDeviceId(1);
+        try {
+            server.addEquipment(equipment);
+            Assert.fail("Duplicate device ID accepted");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Duplicate device ID: 1", e.getMessage());
+        }
+
+        // Duplicate remote address.
+        equipment.setDeviceId(3);
+        equipment.setConnectMode(ConnectMode.PASSIVE);
+        equipment.setHost("127.0.0.1");
+        try {
+            server.addEquipment(equipment);
+            Assert.fail("Duplicate remote address accepted");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Duplicate remote address: 127.0.0.1", e.getMessage());
+        }
+
+        // Connect active to passive entity through the server port.
+        passiveEntity.setEnabled(true);
+        activeEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+
+        S99F1 s99f1 = new S99F1();
+        s99f1.setName("Mr. Smith");
+        SecsReplyMessage replyMessage = activeEntity.sendMessageAndWait(s99f1);
+        Assert.assertTrue("Reply message not S99F2", replyMessage instanceof S99F2);
+        Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Smith!", ((S99F2) replyMessage).getGreeting());
+
+        // Stop server, disabling all equipment.
+        server.stop();
+        Assert.assertFalse(server.isRunning());
+        Assert.assertFalse(passiveEntity.isEnabled());
+        Assert.assertFalse(activeEntity.isEnabled());
+        Assert.assertEquals(CommunicationState.NOT_ENABLED, passiveEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.NOT_ENABLED, activeEntity.getCommunicationState());
+
+        server.removeEquipment(activeEntity);
+        Assert.assertEquals(1, server.getEquipmentCount());
+        Assert.assertNull(activeEntity.getServer());
+    }
+
+    /**
+     * Tests enabling hosted equipment before the server is started and after
+     * it is stopped.
+     * 
+     * @throws Exception
+     *             If the test fails.
+     */
+    @Test
+    public void notRunning() throws Exception {
+        SecsServer server = new SecsServer(1);
+        server.setPort(IDLE_PORT);
+        SecsEquipment equipment = new SecsEquipment();
+        equipment.setConnectMode(ConnectMode.PASSIVE);
+        equipment.setHost("localhost");
+        server.addEquipment(equipment);
+        try {
+            equipment.setEnabled(true);
+            Assert.fail("Enabled before server started");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Server not running", e.getMessage());
+        }
+        Assert.assertFalse(equipment.isEnabled());
+
+        server.start();
+        equipment.setEnabled(true);
+        Assert.assertTrue(equipment.isEnabled());
+        server.stop();
+        Assert.assertFalse(equipment.isEnabled());
+        try {
+            equipment.setEnabled(true);
+            Assert.fail("Enabled after server stopped");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Server not running", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests the orchestrated connection attempts of ACTIVE equipment, retrying
+     * with backoff until their remote equipment become available.
+     * 
+     * @throws Exception
+     *             If the test fails.
+     */
+    @Test
+    public void connectionManager() throws Exception {
+        final int count = 3;
+        SecsServer server = new SecsServer(1);
+        server.setPort(MANAGER_PORT);
+        server.start();
+        ConnectionManager connectionManager = server.getConnectionManager();
+        connectionManager.setMaxConcurrentConnects(1);
+        connectionManager.setMinHealthyTime(200L);
+        Assert.assertEquals(-1L, connectionManager.getStartupTime());
+
+        SecsEquipment[] activeEntities = new SecsEquipment[count];
+        for (int i = 0; i < count; i++) {
+            activeEntities[i] = new SecsEquipment();
+            activeEntities[i].setDeviceId(i + 1);
+            activeEntities[i].setConnectMode(ConnectMode.ACTIVE);
+            activeEntities[i].setHost("localhost");
+            activeEntities[i].setPort(REMOTE_PORT + i);
+            activeEntities[i].setT5Timeout(1);
+            server.addEquipment(activeEntities[i]);
+        }
+        // Restored priority (e.g. persisted before a restart).
+        connectionManager.setLastHealthyTime(activeEntities[count - 1], 1000L);
+        Assert.assertEquals(1000L, connectionManager.getLastHealthyTime(activeEntities[count - 1]));
+        Assert.assertEquals(0L, connectionManager.getLastHealthyTime(activeEntities[0]));
+        try {
+            connectionManager.setLastHealthyTime(new SecsEquipment(), 1000L);
+            Assert.fail("Unmanaged equipment accepted");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Equipment not managed", e.getMessage());
+        }
+        for (SecsEquipment activeEntity : activeEntities) {
+            activeEntity.setEnabled(true);
+        }
+
+        // Equipment never enabled; not part of the fleet startup.
+        SecsEquipment idleEntity = new SecsEquipment();
+        idleEntity.setDeviceId(count + 1);
+        idleEntity.setConnectMode(ConnectMode.ACTIVE);
+        idleEntity.setPort(REMOTE_PORT + count);
+        server.addEquipment(idleEntity);
+
+        // No remote equipment available yet; retry with backoff.
+        sleep(1000L);
+        for (SecsEquipment activeEntity : activeEntities) {
+            Assert.assertEquals(CommunicationState.NOT_COMMUNICATING, activeEntity.getCommunicationState());
+            Assert.assertTrue(connectionManager.getFailures(activeEntity) >= 2);
+        }
+        Assert.assertTrue(connectionManager.getActiveConnects() <= 1);
+        Assert.assertEquals(-1L, connectionManager.getStartupTime());
+
+        // Remote equipment become available.
+        SecsEquipment[] passiveEntities = new SecsEquipment[count];
+        for (int i = 0; i < count; i++) {
+            passiveEntities[i] = new SecsEquipment();
+            passiveEntities[i].setDeviceId(i + 1);
+            passiveEntities[i].setConnectMode(ConnectMode.PASSIVE);
+            passiveEntities[i].setPort(REMOTE_PORT + i);
+            passiveEntities[i].setEnabled(true);
+        }
+        sleep(1500L);
+        for (SecsEquipment activeEntity : activeEntities) {
+            Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+            Assert.assertEquals(0, connectionManager.getFailures(activeEntity));
+        }
+        Assert.assertEquals(0, connectionManager.getActiveConnects());
+        Assert.assertEquals(0, connectionManager.getQueuedConnects());
+        Assert.assertTrue(connectionManager.getStartupTime() >= 0L);
+        Assert.assertTrue(connectionManager.getLastHealthyTime(activeEntities[0]) > 1000L);
+
+        // Connection lost and not yet healthy again; failures not reset.
+        connectionManager.setMinHealthyTime(60000L);
+        passiveEntities[0].setEnabled(false);
+        sleep(100L);
+        passiveEntities[0].setEnabled(true);
+        sleep(1500L);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntities[0].getCommunicationState());
+        Assert.assertTrue(connectionManager.getFailures(activeEntities[0]) >= 1);
+
+        server.stop();
+        for (SecsEquipment passiveEntity : passiveEntities) {
+            passiveEntity.setEnabled(false);
+        }
+    }
+
+    /**
+     * Suspends the current thread for a specific duration.
+     * 
+     * @param duration
+     *            The duration in miliseconds.
+     */
+    private static void sleep(long duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            // Safe to ignore.
+        }
+    }
+
+}
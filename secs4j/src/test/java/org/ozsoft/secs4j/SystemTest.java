@@ -17,6 +17,20 @@
 
 package org.ozsoft.secs4j;
 
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -27,6 +41,7 @@ import org.ozsoft.secs4j.ControlState;
 import org.ozsoft.secs4j.SecsEquipment;
 import org.ozsoft.secs4j.SecsException;
 import org.ozsoft.secs4j.SecsReplyMessage;
+import org.ozsoft.secs4j.message.S1F13;
 import org.ozsoft.secs4j.message.S99F1;
 import org.ozsoft.secs4j.message.S99F2;
 
@@ -78,6 +93,35 @@ public class SystemTest {
         // Register test reply message on active entity.
         activeEntity.addMessageType(S99F2.class);
 
+        // Record messages sent by active entity.
+        final List<Message> sentMessages = new CopyOnWriteArrayList<Message>();
+        activeEntity.addListener(new SecsEquipmentListener() {
+            @Override
+            public void connectionStateChanged(ConnectionState connectionState) {
+                // Ignored.
+            }
+
+            @Override
+            public void communicationStateChanged(CommunicationState communicationState) {
+                // Ignored.
+            }
+
+            @Override
+            public void controlStateChanged(ControlState controlState) {
+                // Ignored.
+            }
+
+            @Override
+            public void messageReceived(Message message) {
+                // Ignored.
+            }
+
+            @Override
+            public void messageSent(Message message) {
+                sentMessages.add(message);
+            }
+        });
+
         // Enable active entity, connecting to passive entity.
         activeEntity.setEnabled(true);
         sleep(CONNECTION_TIMEOUT);
@@ -88,6 +132,11 @@ public class SystemTest {
         Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
         Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
 
+        // Communication established with a single SELECT_REQ and S1F13.
+        Assert.assertEquals(2, sentMessages.size());
+        Assert.assertEquals(SType.SELECT_REQ, ((ControlMessage) sentMessages.get(0)).getSType());
+        Assert.assertTrue(sentMessages.get(1) instanceof S1F13);
+
         // Send S99F1 message from active to passive entity.
         S99F1 s99f1 = new S99F1();
         s99f1.setName("Mr. Smith");
@@ -99,6 +148,57 @@ public class SystemTest {
         Assert.assertEquals("Incorrect GRACK value", S99F2.GRACK_ACCEPT, s99f2.getGrAck());
         Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Smith!", s99f2.getGreeting());
 
+        // Send S99F1 message asynchronously.
+        s99f1 = new S99F1();
+        s99f1.setName("Mr. Jones");
+        CompletableFuture<SecsReplyMessage> future = activeEntity.sendMessageAsync(s99f1);
+        try {
+            replyMessage = future.get(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Assert.fail("No reply message received: " + e);
+        }
+        Assert.assertTrue("Reply message not S99F2", replyMessage instanceof S99F2);
+        Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Jones!", ((S99F2) replyMessage).getGreeting());
+
+        // Send S99F1 messages concurrently from multiple threads.
+        final SecsEquipment sender = activeEntity;
+        final List<CompletableFuture<SecsReplyMessage>> futures = new ArrayList<CompletableFuture<SecsReplyMessage>>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String prefix = "Thread" + i + "-";
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        S99F1 message = new S99F1();
+                        message.setName(prefix + j);
+                        try {
+                            CompletableFuture<SecsReplyMessage> future = sender.sendMessageAsync(message);
+                            synchronized (futures) {
+                                futures.add(future);
+                            }
+                        } catch (SecsException e) {
+                            // Detected below as missing reply.
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(threads.length * 25, futures.size());
+            for (CompletableFuture<SecsReplyMessage> f : futures) {
+                Assert.assertTrue(((S99F2) f.get(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)).getGreeting().startsWith("Hello, Thread"));
+            }
+        } catch (Exception e) {
+            Assert.fail("No reply message received: " + e);
+        }
+        Assert.assertEquals(0, activeEntity.getOutboundQueueDepth());
+        Assert.assertTrue(activeEntity.getAverageBatchSize() >= 1.0);
+
         // Disable active entity.
         activeEntity.setEnabled(false);
         sleep(CONNECTION_TIMEOUT);
@@ -121,6 +221,483 @@ public class SystemTest {
         Assert.assertEquals(ControlState.EQUIPMENT_OFFLINE, activeEntity.getControlState());
     }
 
+    /**
+     * Tests the communication of a second session (HSMS-GS) sharing the
+     * connection between two local SECS equipment.
+     * 
+     * @throws SecsException
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void multipleSessions() throws SecsException {
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5602);
+        SecsEquipment passiveSession = new SecsEquipment();
+        passiveSession.setDeviceId(2);
+        passiveSession.addMessageType(S99F1.class);
+        passiveEntity.addSession(passiveSession);
+        Assert.assertSame(passiveSession, passiveEntity.getSession(2));
+        Assert.assertSame(passiveEntity, passiveSession.getParent());
+        try {
+            passiveEntity.addSession(new SecsEquipment());
+            Assert.fail("Duplicate session ID accepted");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Duplicate session ID: 1", e.getMessage());
+        }
+
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setPort(5602);
+        SecsEquipment activeSession = new SecsEquipment();
+        activeSession.setDeviceId(2);
+        activeSession.addMessageType(S99F2.class);
+        activeEntity.addSession(activeSession);
+
+        // Enable sessions before and after their parents.
+        passiveSession.setEnabled(true);
+        passiveEntity.setEnabled(true);
+        activeEntity.setEnabled(true);
+        activeSession.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        Assert.assertEquals(ConnectionState.SELECTED, passiveSession.getConnectionState());
+        Assert.assertEquals(ConnectionState.SELECTED, activeSession.getConnectionState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveSession.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeSession.getCommunicationState());
+
+        // Send S99F1 message from active to passive session.
+        S99F1 s99f1 = new S99F1();
+        s99f1.setName("Mr. Smith");
+        SecsReplyMessage replyMessage = activeSession.sendMessageAndWait(s99f1);
+        Assert.assertTrue("Reply message not S99F2", replyMessage instanceof S99F2);
+        Assert.assertEquals(2, replyMessage.getSessionId());
+        Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Smith!", ((S99F2) replyMessage).getGreeting());
+
+        // Disable active session (SEPARATE); connection remains for the parents.
+        activeSession.setEnabled(false);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(ConnectionState.NOT_CONNECTED, activeSession.getConnectionState());
+        Assert.assertEquals(ConnectionState.NOT_SELECTED, passiveSession.getConnectionState());
+        Assert.assertEquals(CommunicationState.NOT_COMMUNICATING, passiveSession.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+
+        // Re-enable active session; re-selected on the same connection.
+        activeSession.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(ConnectionState.SELECTED, passiveSession.getConnectionState());
+        Assert.assertEquals(ConnectionState.SELECTED, activeSession.getConnectionState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveSession.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeSession.getCommunicationState());
+        replyMessage = activeSession.sendMessageAndWait(s99f1);
+        Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Smith!", ((S99F2) replyMessage).getGreeting());
+
+        activeEntity.setEnabled(false);
+        passiveEntity.setEnabled(false);
+        passiveEntity.removeSession(passiveSession);
+        Assert.assertFalse(passiveSession.isEnabled());
+        Assert.assertNull(passiveSession.getParent());
+    }
+
+    /**
+     * Tests the communication between two local SECS equipment handling their
+     * received data messages on an executor.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void stagedReceive() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SecsEquipment passiveEntity = new SecsEquipment();
+            passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+            passiveEntity.setPort(5603);
+            passiveEntity.setExecutor(executor);
+            passiveEntity.addMessageType(S99F1.class);
+
+            SecsEquipment activeEntity = new SecsEquipment();
+            activeEntity.setConnectMode(ConnectMode.ACTIVE);
+            activeEntity.setPort(5603);
+            activeEntity.setExecutor(executor);
+            activeEntity.addMessageType(S99F2.class);
+
+            passiveEntity.setEnabled(true);
+            activeEntity.setEnabled(true);
+            sleep(CONNECTION_TIMEOUT);
+            Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+            Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+            try {
+                activeEntity.setExecutor(null);
+                Assert.fail("Executor changed while enabled");
+            } catch (SecsConfigurationException e) {
+                // Expected.
+            }
+
+            List<CompletableFuture<SecsReplyMessage>> futures = new ArrayList<CompletableFuture<SecsReplyMessage>>();
+            for (int i = 0; i < 100; i++) {
+                S99F1 s99f1 = new S99F1();
+                s99f1.setName("Mr. " + i);
+                futures.add(activeEntity.sendMessageAsync(s99f1));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                SecsReplyMessage replyMessage = futures.get(i).get(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+                Assert.assertEquals("Hello, Mr. " + i + "!", ((S99F2) replyMessage).getGreeting());
+            }
+
+            activeEntity.setEnabled(false);
+            passiveEntity.setEnabled(false);
+            Assert.assertEquals(CommunicationState.NOT_ENABLED, passiveEntity.getCommunicationState());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests linktests sent on an idle connection, and the disconnect of a dead
+     * link on an unanswered linktest.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void linktest() throws Exception {
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5605);
+
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setPort(5605);
+        activeEntity.setLinktestInterval(1);
+
+        passiveEntity.setEnabled(true);
+        activeEntity.setEnabled(true);
+        sleep(2500L);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        Assert.assertTrue(activeEntity.getLinktestRoundTripTimes().getCount() >= 1L);
+        Assert.assertEquals(0L, passiveEntity.getLinktestRoundTripTimes().getCount());
+        activeEntity.setEnabled(false);
+        passiveEntity.setEnabled(false);
+
+        // Dead link; the remote host never answers.
+        passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5606);
+        passiveEntity.setLinktestInterval(1);
+        passiveEntity.setT6Timeout(1);
+        passiveEntity.setT7Timeout(60);
+        passiveEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Socket socket = new Socket("localhost", 5606);
+        try {
+            socket.setSoTimeout(5000);
+            long startTime = System.currentTimeMillis();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] frame = new byte[14];
+            in.readFully(frame);
+            Assert.assertEquals(SType.LINKTEST_REQ.getValue(), frame[9]);
+            Assert.assertEquals(-1, in.read());
+            Assert.assertTrue(System.currentTimeMillis() - startTime < 4000L);
+        } finally {
+            socket.close();
+        }
+        passiveEntity.setEnabled(false);
+    }
+
+    /**
+     * Tests a message handler sending a message and waiting for its reply,
+     * with received messages handled on an executor.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void handlerSendAndWait() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SecsEquipment passiveEntity = new SecsEquipment();
+            passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+            passiveEntity.setPort(5608);
+            passiveEntity.setT3Timeout(5);
+            passiveEntity.setExecutor(executor);
+            passiveEntity.addMessageType(S99F2.class);
+            // Greets back the remote equipment before replying.
+            passiveEntity.addMessageType(new Supplier<SecsMessage>() {
+                @Override
+                public SecsMessage get() {
+                    return new S99F1() {
+                        @Override
+                        protected SecsReplyMessage handle() {
+                            S99F1 s99f1 = new S99F1();
+                            s99f1.setName("Mr. Jones");
+                            try {
+                                return getEquipment().sendMessageAndWait(s99f1);
+                            } catch (SecsException e) {
+                                S99F2 s99f2 = new S99F2();
+                                s99f2.setGrAck(S99F2.GRACK_REJECT);
+                                s99f2.setGreeting(e.getMessage());
+                                return s99f2;
+                            }
+                        }
+                    };
+                }
+            });
+
+            SecsEquipment activeEntity = new SecsEquipment();
+            activeEntity.setConnectMode(ConnectMode.ACTIVE);
+            activeEntity.setPort(5608);
+            activeEntity.setT3Timeout(5);
+            activeEntity.setExecutor(executor);
+            activeEntity.addMessageType(S99F1.class);
+            activeEntity.addMessageType(S99F2.class);
+
+            passiveEntity.setEnabled(true);
+            activeEntity.setEnabled(true);
+            sleep(CONNECTION_TIMEOUT);
+            Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+
+            S99F1 s99f1 = new S99F1();
+            s99f1.setName("Mr. Smith");
+            long startTime = System.currentTimeMillis();
+            SecsReplyMessage replyMessage = activeEntity.sendMessageAndWait(s99f1);
+            Assert.assertTrue(System.currentTimeMillis() - startTime < 1000L);
+            Assert.assertEquals("Incorrect GREETING value", "Hello, Mr. Jones!", ((S99F2) replyMessage).getGreeting());
+
+            activeEntity.setEnabled(false);
+            passiveEntity.setEnabled(false);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that an error while handling a message does not affect the next
+     * message received with the same read.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void handlerFailure() throws Exception {
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5607);
+        final AtomicBoolean isFailed = new AtomicBoolean();
+        passiveEntity.addListener(new SecsEquipmentListener() {
+            @Override
+            public void connectionStateChanged(ConnectionState connectionState) {
+                // Ignored.
+            }
+
+            @Override
+            public void communicationStateChanged(CommunicationState communicationState) {
+                // Ignored.
+            }
+
+            @Override
+            public void controlStateChanged(ControlState controlState) {
+                // Ignored.
+            }
+
+            @Override
+            public void messageReceived(Message message) {
+                // Fail on the first message only.
+                if (isFailed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("Listener failure");
+                }
+            }
+
+            @Override
+            public void messageSent(Message message) {
+                // Ignored.
+            }
+        });
+        passiveEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+
+        Socket socket = new Socket("localhost", 5607);
+        try {
+            socket.setSoTimeout(5000);
+            // Two LINKTEST_REQ messages (transactions 1 and 2) in a single write.
+            byte[] frames = new byte[28];
+            for (int i = 0; i < 2; i++) {
+                int offset = i * 14;
+                frames[offset + 3] = 0x0a;
+                frames[offset + 9] = (byte) SType.LINKTEST_REQ.getValue();
+                frames[offset + 13] = (byte) (i + 1);
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(frames);
+            out.flush();
+
+            // Only the second one is answered.
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] frame = new byte[14];
+            in.readFully(frame);
+            Assert.assertEquals(SType.LINKTEST_RSP.getValue(), frame[9]);
+            Assert.assertEquals(2, frame[13]);
+            Assert.assertTrue(isFailed.get());
+        } finally {
+            socket.close();
+        }
+        passiveEntity.setEnabled(false);
+    }
+
+    /**
+     * Tests enabling and disabling equipment with a stopped event loop.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void eventLoopStopped() throws Exception {
+        // Event loop never started.
+        SecsEquipment equipment = new SecsEquipment();
+        equipment.setEventLoop(new EventLoop("test-io"));
+        try {
+            equipment.setEnabled(true);
+            Assert.fail("Enabled without running event loop");
+        } catch (SecsConfigurationException e) {
+            Assert.assertEquals("Event loop not running", e.getMessage());
+        }
+        Assert.assertFalse(equipment.isEnabled());
+
+        // Event loop stopped while connected.
+        EventLoop eventLoop = new EventLoop("test-io");
+        eventLoop.start();
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5609);
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setPort(5609);
+        activeEntity.setEventLoop(eventLoop);
+        passiveEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        activeEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        eventLoop.shutdown();
+        sleep(CONNECTION_TIMEOUT);
+        long startTime = System.currentTimeMillis();
+        activeEntity.setEnabled(false);
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 1000L);
+        Assert.assertEquals(ConnectionState.NOT_CONNECTED, activeEntity.getConnectionState());
+        passiveEntity.setEnabled(false);
+    }
+
+    /**
+     * Tests the ACTIVE entity reconnecting after failed and lost connections.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void reconnect() throws Exception {
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5614);
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setPort(5614);
+        activeEntity.setT5Timeout(1);
+
+        // Nothing to connect to yet; retried after T5.
+        activeEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(ConnectionState.NOT_CONNECTED, activeEntity.getConnectionState());
+        passiveEntity.setEnabled(true);
+        sleep(3 * CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+
+        // Connection lost; reconnected once available again.
+        passiveEntity.setEnabled(false);
+        sleep(CONNECTION_TIMEOUT);
+        Assert.assertEquals(ConnectionState.NOT_CONNECTED, activeEntity.getConnectionState());
+        passiveEntity.setEnabled(true);
+        sleep(3 * CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+
+        activeEntity.setEnabled(false);
+        passiveEntity.setEnabled(false);
+    }
+
+    /**
+     * Tests disabling and enabling the ACTIVE entity within T5, which must not
+     * leave a connection retry of the previous cycle running.
+     * 
+     * @throws Exception
+     *             If the SECS communications fails.
+     */
+    @Test
+    public void disableEnableCycle() throws Exception {
+        SecsEquipment passiveEntity = new SecsEquipment();
+        passiveEntity.setConnectMode(ConnectMode.PASSIVE);
+        passiveEntity.setPort(5615);
+        SecsEquipment activeEntity = new SecsEquipment();
+        activeEntity.setConnectMode(ConnectMode.ACTIVE);
+        activeEntity.setPort(5615);
+        activeEntity.setT5Timeout(1);
+        final AtomicInteger connectCount = new AtomicInteger();
+        activeEntity.addListener(new SecsEquipmentListener() {
+            @Override
+            public void connectionStateChanged(ConnectionState connectionState) {
+                if (connectionState == ConnectionState.NOT_SELECTED) {
+                    connectCount.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void communicationStateChanged(CommunicationState communicationState) {
+                // Ignored.
+            }
+
+            @Override
+            public void controlStateChanged(ControlState controlState) {
+                // Ignored.
+            }
+
+            @Override
+            public void messageReceived(Message message) {
+                // Ignored.
+            }
+
+            @Override
+            public void messageSent(Message message) {
+                // Ignored.
+            }
+        });
+
+        // Failed connection attempts, each scheduling a retry after T5.
+        for (int i = 0; i < 3; i++) {
+            activeEntity.setEnabled(true);
+            activeEntity.setEnabled(false);
+        }
+        activeEntity.setEnabled(true);
+        sleep(CONNECTION_TIMEOUT / 5L);
+        passiveEntity.setEnabled(true);
+        sleep(4 * CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+        Assert.assertEquals(1, connectCount.get());
+
+        // Disabled and enabled while connecting.
+        for (int i = 0; i < 20; i++) {
+            activeEntity.setEnabled(false);
+            activeEntity.setEnabled(true);
+        }
+        sleep(4 * CONNECTION_TIMEOUT);
+        Assert.assertEquals(CommunicationState.COMMUNICATING, activeEntity.getCommunicationState());
+        Assert.assertEquals(CommunicationState.COMMUNICATING, passiveEntity.getCommunicationState());
+
+        activeEntity.setEnabled(false);
+        passiveEntity.setEnabled(false);
+    }
+
     /**
      * Suspends the current thread for a specific duration.
      * 
@@ -0,0 +1,184 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ozsoft.secs4j.util.HashedTimingWheel;
+
+/**
+ * Test suite for the <code>TransactionTable</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class TransactionTableTest {
+
+    /**
+     * Tests starting, looking up and ending transactions.
+     */
+    @Test
+    public void startAndRemove() throws SecsException {
+        TransactionTable table = new TransactionTable(16);
+        Assert.assertEquals(16, table.getCapacity());
+        Transaction transaction = table.start(createMessage());
+        long id = transaction.getTransactionId();
+        Assert.assertEquals(1L, id);
+        Assert.assertSame(transaction, table.get(id));
+        Assert.assertNull(table.get(id + 16));
+        Assert.assertNull(table.remove(id + 16));
+        Assert.assertSame(transaction, table.remove(id));
+        Assert.assertNull(table.get(id));
+        Assert.assertNull(table.remove(id));
+    }
+
+    /**
+     * Tests that transaction IDs wrap around at 2^32, skipping 0, and that IDs
+     * of open transactions are skipped.
+     */
+    @Test
+    public void wrapAround() throws SecsException {
+        TransactionTable table = new TransactionTable(4, 0xfffffffeL);
+        Transaction t1 = table.start(createMessage());
+        Assert.assertEquals(0xfffffffeL, t1.getTransactionId());
+        Assert.assertEquals(0xffffffffL, table.nextTransactionId());
+        Transaction t2 = table.start(createMessage());
+        Assert.assertEquals(1L, t2.getTransactionId());
+        Assert.assertEquals(2L, table.nextTransactionId());
+        Assert.assertEquals(3L, table.nextTransactionId());
+        Assert.assertEquals(4L, table.nextTransactionId());
+        // Slots of transaction IDs 5 and 6 occupied by IDs 1 and 0xfffffffe.
+        Assert.assertEquals(7L, table.start(createMessage()).getTransactionId());
+        Assert.assertEquals(8L, table.nextTransactionId());
+        Assert.assertEquals(9L, table.nextTransactionId());
+        // Slots of transaction IDs 10 and 11 occupied by IDs 0xfffffffe and 7.
+        Assert.assertEquals(12L, table.start(createMessage()).getTransactionId());
+        Assert.assertEquals(13L, table.nextTransactionId());
+    }
+
+    /**
+     * Tests that starting a transaction fails when the table is full.
+     */
+    @Test
+    public void full() throws SecsException {
+        TransactionTable table = new TransactionTable(4);
+        for (int i = 0; i < 4; i++) {
+            table.start(createMessage());
+        }
+        try {
+            table.start(createMessage());
+            Assert.fail("Missed exception");
+        } catch (SecsException e) {
+            Assert.assertEquals("Too many open transactions (maximum: 4)", e.getMessage());
+        }
+        Assert.assertEquals(4, table.clear().size());
+        Assert.assertNotNull(table.start(createMessage()));
+    }
+
+    /**
+     * Tests concurrent senders never sharing a transaction ID.
+     */
+    @Test
+    public void concurrentSenders() throws Exception {
+        final TransactionTable table = new TransactionTable(1024);
+        final int noOfThreads = 8;
+        final int noOfTransactions = 10000;
+        final AtomicInteger errors = new AtomicInteger();
+        final Set<Long> ids = new HashSet<Long>();
+        Thread[] threads = new Thread[noOfThreads];
+        for (int i = 0; i < noOfThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < noOfTransactions; j++) {
+                            Transaction transaction = table.start(createMessage());
+                            long id = transaction.getTransactionId();
+                            if (table.get(id) != transaction || table.remove(id) != transaction) {
+                                errors.incrementAndGet();
+                            }
+                            if (j == 0) {
+                                synchronized (ids) {
+                                    ids.add(id);
+                                }
+                            }
+                        }
+                    } catch (SecsException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(noOfThreads, ids.size());
+        Assert.assertTrue(table.clear().isEmpty());
+    }
+
+    /**
+     * Tests that a reply timer set after the transaction has completed (e.g. a
+     * fast reply message) is cancelled right away.
+     */
+    @Test
+    public void timerAfterCompletion() throws SecsException {
+        HashedTimingWheel timer = new HashedTimingWheel("test-timer", 10L, 16);
+        timer.start();
+        try {
+            TransactionTable table = new TransactionTable(4);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    // Never expires.
+                }
+            };
+
+            // Completed before the timer is set.
+            Transaction transaction = table.start(createMessage());
+            transaction.fail(new SecsException("Disconnected"));
+            HashedTimingWheel.Timeout timeout = timer.newTimeout(task, 60000L);
+            transaction.setTimer(timeout);
+            Assert.assertTrue(timeout.isCancelled());
+
+            // Completed after the timer is set.
+            transaction = table.start(createMessage());
+            timeout = timer.newTimeout(task, 60000L);
+            transaction.setTimer(timeout);
+            Assert.assertFalse(timeout.isCancelled());
+            transaction.fail(new SecsException("Disconnected"));
+            Assert.assertTrue(timeout.isCancelled());
+        } finally {
+            timer.shutdown();
+        }
+    }
+
+    /**
+     * Creates a (control) request message.
+     * 
+     * @return The message.
+     */
+    private static Message createMessage() {
+        return new ControlMessage(1, 0x00, 0x00, SType.LINKTEST_REQ, 0L);
+    }
+
+}
@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.ozsoft.secs4j.format.B;
@@ -47,4 +49,31 @@ public class BTest {
         Assert.assertEquals("<B 0x01 0x02 0x7f 0x80 0xff 0x64 0x65 0x66>", b.toSml());
     }
     
+    @Test
+    public void wrap() {
+        byte[] data = new byte[] {0x00, 0x01, (byte) 0x80, (byte) 0xff, 0x04};
+        B b = B.wrap(data, 1, 3);
+        Assert.assertEquals(3, b.length());
+        Assert.assertEquals(0x80, b.get(1));
+        Assert.assertEquals("<B 0x01 0x80 0xff>", b.toSml());
+        TestUtils.assertEquals(new byte[] {0x21, 0x03, 0x01, (byte) 0x80, (byte) 0xff}, b.toByteArray());
+        TestUtils.assertEquals(new byte[] {0x01, (byte) 0x80, (byte) 0xff}, b.getBytes());
+        
+        // Wrapped without copying.
+        data[1] = 0x7f;
+        Assert.assertEquals(0x7f, b.get(0));
+        
+        // Copied when modified.
+        b.add((byte) 0x10);
+        Assert.assertEquals(0x04, data[4]);
+        Assert.assertEquals("<B 0x7f 0x80 0xff 0x10>", b.toSml());
+        
+        ByteBuffer buf = ByteBuffer.wrap(data, 2, 2);
+        B b2 = B.wrap(buf);
+        Assert.assertFalse(buf.hasRemaining());
+        Assert.assertEquals(new B(new byte[] {(byte) 0x80, (byte) 0xff}), b2);
+        Assert.assertEquals(2, b2.asByteBuffer().remaining());
+        Assert.assertEquals(Integer.valueOf(0xff), b2.getValue().get(1));
+    }
+    
 }
@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.ozsoft.secs4j.format.F4;
@@ -49,4 +51,28 @@ public class F4Test {
                 }, f4.toByteArray());
     }
     
+    @Test
+    public void bulk() {
+        float[] values = new float[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.5f;
+        }
+        F4 f4 = new F4();
+        f4.addAll(values);
+        Assert.assertEquals(10000, f4.length());
+        
+        byte[] data = f4.toByteArray();
+        Assert.assertEquals(3 + 10000 * F4.SIZE, data.length);
+        F4 copy = new F4();
+        copy.addAll(ByteBuffer.wrap(data, 3, data.length - 3));
+        Assert.assertEquals(f4, copy);
+        Assert.assertEquals(f4.hashCode(), copy.hashCode());
+        Assert.assertArrayEquals(values, copy.toFloatArray(), 0.0f);
+        
+        float[] dst = new float[3];
+        copy.getValues(9997, dst, 0, 3);
+        Assert.assertArrayEquals(new float[] {4998.5f, 4999.0f, 4999.5f}, dst, 0.0f);
+        Assert.assertEquals(Float.valueOf(0.5f), copy.getValue().get(1));
+    }
+    
 }
@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.ozsoft.secs4j.format.F8;
@@ -47,4 +49,28 @@ public class F8Test {
                 }, f8.toByteArray());
     }
     
+    @Test
+    public void bulk() {
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.5;
+        }
+        F8 f8 = new F8();
+        f8.addAll(values);
+        Assert.assertEquals(10000, f8.length());
+        
+        byte[] data = f8.toByteArray();
+        Assert.assertEquals(4 + 10000 * F8.SIZE, data.length);
+        F8 copy = new F8();
+        copy.addAll(ByteBuffer.wrap(data, 4, data.length - 4));
+        Assert.assertEquals(f8, copy);
+        Assert.assertEquals(f8.hashCode(), copy.hashCode());
+        Assert.assertArrayEquals(values, copy.toDoubleArray(), 0.0);
+        
+        double[] dst = new double[3];
+        copy.getValues(9997, dst, 0, 3);
+        Assert.assertArrayEquals(new double[] {4998.5, 4999.0, 4999.5}, dst, 0.0);
+        Assert.assertEquals(Double.valueOf(0.5), copy.getValue().get(1));
+    }
+    
 }
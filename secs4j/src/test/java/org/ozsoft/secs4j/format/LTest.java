@@ -17,6 +17,8 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.ozsoft.secs4j.format.A;
@@ -53,4 +55,27 @@ public class LTest {
         TestUtils.assertEquals(new byte[] {0x01, 0x03, 0x21, 0x03, 0x01, 0x02, 0x03, 0x41, 0x04, 'T', 'e', 's', 't', (byte) 0xa9, 0x02, 0x01, (byte) 0xff}, l.toByteArray());
     }
 
+    @Test
+    public void writeTo() {
+        L l = new L();
+        L nested = new L();
+        nested.addItem(new F8(1.5));
+        nested.addItem(new I4(-1));
+        l.addItem(nested);
+        l.addItem(new A("Test"));
+        l.addItem(new BOOLEAN(true));
+        byte[] expected = new byte[] {0x01, 0x03, 0x01, 0x02, (byte) 0x81, 0x08, 0x3f, (byte) 0xf8, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x71, 0x04, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x41, 0x04, 'T', 'e', 's', 't', 0x10, 0x01, 0x01};
+        Assert.assertEquals(expected.length, l.encodedLength());
+        TestUtils.assertEquals(expected, l.toByteArray());
+        
+        ByteBuffer buf = ByteBuffer.allocate(expected.length + 2);
+        buf.put((byte) 0x55);
+        l.writeTo(buf);
+        Assert.assertEquals(expected.length + 1, buf.position());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], buf.get(i + 1));
+        }
+    }
+
 }
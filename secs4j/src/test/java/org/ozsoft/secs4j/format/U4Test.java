@@ -17,6 +17,9 @@
 
 package org.ozsoft.secs4j.format;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.ozsoft.secs4j.format.U4;
@@ -44,4 +47,43 @@ public class U4Test {
                 (byte) 0xff, (byte) 0xff, 0x11, 0x22, 0x33, 0x44, (byte) 0xff,(byte) 0xff, (byte) 0xff, (byte) 0xff}, u4.toByteArray());
     }
     
+    @Test
+    public void bulk() {
+        U4 u4 = new U4();
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 4000000L;
+        }
+        u4.addAll(values);
+        Assert.assertEquals(1000, u4.length());
+        Assert.assertArrayEquals(values, u4.toLongArray());
+        Assert.assertEquals(4000000, u4.getInt(1));
+        try {
+            u4.getInt(999);
+            Assert.fail("Missed exception");
+        } catch (ArithmeticException e) {
+            // OK
+        }
+
+        byte[] data = u4.toByteArray();
+        Assert.assertEquals(3 + 4000, data.length);
+        U4 copy = new U4();
+        ByteBuffer buf = ByteBuffer.wrap(data, 3, 4000);
+        copy.addAll(buf);
+        Assert.assertFalse(buf.hasRemaining());
+        Assert.assertEquals(u4, copy);
+        Assert.assertEquals(u4.hashCode(), copy.hashCode());
+        Assert.assertFalse(u4.equals(new U4(0L)));
+
+        List<Long> list = copy.getValue();
+        Assert.assertEquals(1000, list.size());
+        Assert.assertEquals(Long.valueOf(3996000000L), list.get(999));
+        list.set(0, 0xffffffffL);
+        list.remove(999);
+        list.add(1L);
+        Assert.assertEquals(0xffffffffL, copy.getValue(0));
+        Assert.assertEquals(1L, copy.getValue(999));
+        Assert.assertEquals(1000, copy.length());
+    }
+    
 }
@@ -20,9 +20,8 @@ package org.ozsoft.secs4j.message;
 import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsPrimaryMessage;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.A;
-import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S99F1 Greeting Request test primary message. <br />
@@ -40,6 +39,7 @@ import org.ozsoft.secs4j.format.L;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<L <A name>>")
 public class S99F1 extends SecsPrimaryMessage {
 
     private static final int STREAM = 99;
@@ -52,7 +52,7 @@ public class S99F1 extends SecsPrimaryMessage {
 
     private static final String GREETING = "Hello, %s!";
     
-    private String name;
+    /* package */String name;
     
     public String getName() {
         return name;
@@ -83,40 +83,15 @@ public class S99F1 extends SecsPrimaryMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Data not set");
-        }
-        if (!(data instanceof L)) {
-            throw new SecsParseException("Root data item must be of type L");
-        }
-        L l = (L) data;
-        if (l.length() != 1) {
-            throw new SecsParseException("L must have length of exactly 1 item");
-        }
-        data = l.getItem(0);
-        if (!(data instanceof A)) {
-            throw new SecsParseException("NAME must be of type A");
-        }
-        String name = ((A) data).getValue();
-        if (name.isEmpty()) {
-            throw new SecsParseException("Empty NAME");
-        }
-        setName(name);
+    protected MessageCodec<S99F1> getCodec() {
+        return S99F1Codec.INSTANCE;
     }
 
     @Override
-    protected Data<?> getData() throws SecsParseException {
-        if (name == null) {
-            throw new SecsParseException("NAME not set");
-        }
+    protected void validate() throws SecsParseException {
         if (name.isEmpty()) {
             throw new SecsParseException("Empty NAME");
         }
-        
-        L l = new L();
-        l.addItem(new A(name));
-        return l;
     }
 
     @Override
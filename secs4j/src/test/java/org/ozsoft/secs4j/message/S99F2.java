@@ -20,10 +20,8 @@ package org.ozsoft.secs4j.message;
 import org.ozsoft.secs4j.SecsException;
 import org.ozsoft.secs4j.SecsParseException;
 import org.ozsoft.secs4j.SecsReplyMessage;
-import org.ozsoft.secs4j.format.A;
-import org.ozsoft.secs4j.format.B;
-import org.ozsoft.secs4j.format.Data;
-import org.ozsoft.secs4j.format.L;
+import org.ozsoft.secs4j.codec.MessageCodec;
+import org.ozsoft.secs4j.codec.SecsSchema;
 
 /**
  * S99F2 Greeting Acknowledge (GA) test reply message. <br />
@@ -39,6 +37,7 @@ import org.ozsoft.secs4j.format.L;
  * 
  * @author Oscar Stigter
  */
+@SecsSchema("<L <B:1 grAck> <A greeting>>")
 public class S99F2 extends SecsReplyMessage {
 
     public static final int GRACK_ACCEPT = 0x00;
@@ -53,9 +52,9 @@ public class S99F2 extends SecsReplyMessage {
     
     private static final String DESCRIPTION = "Greeting Acknowledge (GA)";
     
-    private Integer grAck;
+    /* package */Integer grAck;
     
-    private String greeting;
+    /* package */String greeting;
     
     public int getGrAck() {
         return grAck;
@@ -94,58 +93,18 @@ public class S99F2 extends SecsReplyMessage {
     }
 
     @Override
-    protected void parseData(Data<?> data) throws SecsParseException {
-        if (data == null) {
-            throw new SecsParseException("Missing data");
-        }
-        if (!(data instanceof L)) {
-            throw new SecsParseException("Top-level data item must be an L");
-        }
-        L l = (L) data;
-        if (l.length() != 2) {
-            throw new SecsParseException("L must contain exactly 2 items");
-        }
-        data = l.getItem(0);
-        if (!(data instanceof B)) {
-            throw new SecsParseException("GRACK must be of type B");
-        }
-        B b = (B) data;
-        if (b.length() != 1) {
-            throw new SecsParseException("GRACK must have length of exactly 1");
-        }
-        int grAck = ((B) data).get(0);
-        if (grAck != GRACK_ACCEPT && grAck != GRACK_REJECT) {
-            throw new SecsParseException("Invalid value for GRACK: " + grAck);
-        }
-        data = l.getItem(1);
-        if (!(data instanceof A)) {
-            throw new SecsParseException("GREETING must be an A");
-        }
-        String greeting = ((A) data).getValue();
-        if (greeting.isEmpty()) {
-            throw new SecsParseException("Empty GREETING");
-        }
-        setGrAck(grAck);
-        setGreeting(greeting);
+    protected MessageCodec<S99F2> getCodec() {
+        return S99F2Codec.INSTANCE;
     }
 
     @Override
-    protected Data<?> getData() throws SecsParseException {
-        // Validation checks.
-        if (grAck == null) {
-            throw new SecsParseException("GRACK not set");
-        }
-        if (greeting == null) {
-            throw new SecsParseException("GREETING not set");
+    protected void validate() throws SecsParseException {
+        if (grAck != GRACK_ACCEPT && grAck != GRACK_REJECT) {
+            throw new SecsParseException("Invalid value for GRACK: " + grAck);
         }
         if (greeting.isEmpty()) {
             throw new SecsParseException("Empty GREETING");
         }
-        
-        L l = new L();
-        l.addItem(new B(grAck));
-        l.addItem(new A(greeting));
-        return l;
     }
 
     @Override
@@ -0,0 +1,79 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the {@link BufferPool} class.
+ * 
+ * @author Oscar Stigter
+ */
+public class BufferPoolTest {
+
+    /**
+     * Tests that released buffers are reused for leases of the same size class.
+     */
+    @Test
+    public void reuse() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buf = pool.acquire(1000);
+        Assert.assertEquals(0, buf.position());
+        Assert.assertEquals(1000, buf.limit());
+        Assert.assertEquals(1024, buf.capacity());
+        Assert.assertEquals(0L, pool.getHits());
+        Assert.assertEquals(1L, pool.getMisses());
+
+        buf.put((byte) 0x01);
+        pool.release(buf);
+        Assert.assertEquals(1, pool.getIdleCount());
+        ByteBuffer buf2 = pool.acquire(600);
+        Assert.assertSame(buf, buf2);
+        Assert.assertEquals(0, buf2.position());
+        Assert.assertEquals(600, buf2.limit());
+        Assert.assertEquals(1L, pool.getHits());
+        Assert.assertEquals(0, pool.getIdleCount());
+
+        // Different size class.
+        pool.release(buf2);
+        Assert.assertNotSame(buf, pool.acquire(100));
+        Assert.assertEquals(2L, pool.getMisses());
+    }
+
+    /**
+     * Tests buffers outside the size classes and the idle limit.
+     */
+    @Test
+    public void limits() {
+        BufferPool pool = new BufferPool(true, 2);
+        ByteBuffer large = pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1);
+        Assert.assertTrue(large.isDirect());
+        Assert.assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, large.capacity());
+        pool.release(large);
+        pool.release(ByteBuffer.allocate(1024));
+        Assert.assertEquals(0, pool.getIdleCount());
+
+        for (int i = 0; i < 3; i++) {
+            pool.release(ByteBuffer.allocateDirect(BufferPool.MAX_BUFFER_SIZE));
+        }
+        Assert.assertEquals(2, pool.getIdleCount());
+    }
+
+}
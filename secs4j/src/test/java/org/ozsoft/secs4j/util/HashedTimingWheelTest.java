@@ -0,0 +1,104 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.ozsoft.secs4j.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test suite for the {@link HashedTimingWheel} class.
+ * 
+ * @author Oscar Stigter
+ */
+public class HashedTimingWheelTest {
+
+    private HashedTimingWheel timer;
+
+    @Before
+    public void before() {
+        // Small wheel, so timeouts span multiple rounds.
+        timer = new HashedTimingWheel("test-timer", 5L, 8);
+        timer.start();
+    }
+
+    @After
+    public void after() {
+        timer.shutdown();
+    }
+
+    /**
+     * Tests that timeouts expire, not before their deadline.
+     */
+    @Test
+    public void expire() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long startTime = System.nanoTime();
+        HashedTimingWheel.Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100L);
+        Assert.assertEquals(1, timer.getPendingTimeouts());
+        Assert.assertTrue(latch.await(1L, TimeUnit.SECONDS));
+        long duration = (System.nanoTime() - startTime) / 1000000L;
+        Assert.assertTrue("Expired too early: " + duration, duration >= 100L);
+        Assert.assertTrue(timeout.isExpired());
+        Assert.assertFalse(timeout.cancel());
+        Assert.assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    /**
+     * Tests that cancelled timeouts do not expire.
+     */
+    @Test
+    public void cancel() throws InterruptedException {
+        final AtomicInteger expired = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                expired.incrementAndGet();
+            }
+        };
+        HashedTimingWheel.Timeout[] timeouts = new HashedTimingWheel.Timeout[1000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = timer.newTimeout(task, 200L + i % 100);
+        }
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 400L);
+        for (int i = 0; i < timeouts.length; i += 2) {
+            Assert.assertTrue(timeouts[i].cancel());
+            Assert.assertTrue(timeouts[i].isCancelled());
+        }
+        Assert.assertTrue(latch.await(1L, TimeUnit.SECONDS));
+        Assert.assertEquals(timeouts.length / 2, expired.get());
+        Assert.assertEquals(0, timer.getPendingTimeouts());
+    }
+
+}
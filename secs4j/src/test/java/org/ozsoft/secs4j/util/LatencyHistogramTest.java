@@ -0,0 +1,66 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the <code>LatencyHistogram</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Tests recording values and the resulting statistics.
+     */
+    @Test
+    public void record() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.getMean());
+        Assert.assertEquals(0L, histogram.getPercentile(99.0));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100L, histogram.getCount());
+        Assert.assertEquals(50L, histogram.getMean());
+        Assert.assertEquals(100L, histogram.getMax());
+        // Upper bounds of the power-of-2 buckets, capped by the maximum.
+        Assert.assertEquals(1L, histogram.getPercentile(1.0));
+        Assert.assertEquals(63L, histogram.getPercentile(50.0));
+        Assert.assertEquals(100L, histogram.getPercentile(100.0));
+
+        histogram.record(-1L);
+        Assert.assertEquals(101L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.getPercentile(0.0));
+
+        try {
+            histogram.getPercentile(101.0);
+            Assert.fail("Invalid percentile accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        histogram.reset();
+        Assert.assertEquals(0L, histogram.getCount());
+        Assert.assertEquals(0L, histogram.getMax());
+    }
+
+}
@@ -0,0 +1,101 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the <code>RingBuffer</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class RingBufferTest {
+
+    /**
+     * Tests adding and removing elements, including a full buffer and wrapping
+     * around.
+     */
+    @Test
+    public void offerAndPoll() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+        Assert.assertEquals(4, buffer.capacity());
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertNull(buffer.poll());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(buffer.offer(i));
+            }
+            Assert.assertFalse(buffer.offer(4));
+            Assert.assertEquals(4, buffer.size());
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(i, buffer.poll().intValue());
+            }
+            Assert.assertNull(buffer.poll());
+        }
+    }
+
+    /**
+     * Tests concurrent producers and consumers.
+     * 
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    @Test
+    public void concurrency() throws InterruptedException {
+        final RingBuffer<Long> buffer = new RingBuffer<Long>(64);
+        final int count = 100000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean isProducer = (i % 2 == 0);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    if (isProducer) {
+                        for (long value = 1L; value <= count; value++) {
+                            while (!buffer.offer(value)) {
+                                Thread.yield();
+                            }
+                        }
+                    } else {
+                        while (received.get() < 2L * count) {
+                            Long value = buffer.poll();
+                            if (value != null) {
+                                sum.addAndGet(value);
+                                received.incrementAndGet();
+                            } else {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000L);
+        }
+        Assert.assertEquals(2L * count, received.get());
+        Assert.assertEquals(2L * count * (count + 1) / 2, sum.get());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+}
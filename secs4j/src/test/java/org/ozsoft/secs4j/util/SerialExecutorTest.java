@@ -0,0 +1,180 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the <code>SerialExecutor</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class SerialExecutorTest {
+
+    /** Number of tasks per serial executor. */
+    private static final int TASKS = 1000;
+
+    /**
+     * Tests that the tasks of each serial executor run in order and never
+     * overlap, while sharing a multi-threaded executor.
+     * 
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    @Test
+    public void ordering() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int count = 8;
+            final CountDownLatch done = new CountDownLatch(count * TASKS);
+            final AtomicInteger overlaps = new AtomicInteger();
+            List<List<Integer>> results = new ArrayList<List<Integer>>();
+            for (int i = 0; i < count; i++) {
+                final SerialExecutor executor = new SerialExecutor(pool);
+                final List<Integer> result = new ArrayList<Integer>();
+                final AtomicInteger running = new AtomicInteger();
+                results.add(result);
+                for (int j = 0; j < TASKS; j++) {
+                    final int value = j;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (running.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            result.add(value);
+                            running.decrementAndGet();
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            Assert.assertTrue(done.await(10L, TimeUnit.SECONDS));
+            Assert.assertEquals(0, overlaps.get());
+            for (List<Integer> result : results) {
+                synchronized (result) {
+                    Assert.assertEquals(TASKS, result.size());
+                    for (int j = 0; j < TASKS; j++) {
+                        Assert.assertEquals(j, result.get(j).intValue());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a failing task does not stop the following tasks.
+     * 
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    @Test
+    public void failingTask() throws InterruptedException {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            SerialExecutor executor = new SerialExecutor(pool);
+            final CountDownLatch done = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("Test");
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(1L, TimeUnit.SECONDS));
+            Assert.assertEquals(0, executor.getPendingTasks());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a task rejected by the underlying executor is not left
+     * queued.
+     */
+    @Test
+    public void rejectedTask() {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.shutdown();
+        SerialExecutor executor = new SerialExecutor(pool);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Assert.fail("Rejected task executed");
+                }
+            });
+            Assert.fail("Missed exception");
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        Assert.assertEquals(0, executor.getPendingTasks());
+    }
+
+    /**
+     * Tests that the pending tasks still run when the underlying executor
+     * rejects re-scheduling the drain task.
+     */
+    @Test
+    public void rejectedReschedule() {
+        final AtomicInteger submitted = new AtomicInteger();
+        final SerialExecutor executor = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                // Run the first drain task only.
+                if (submitted.incrementAndGet() > 1) {
+                    throw new RejectedExecutionException("Test");
+                }
+                task.run();
+            }
+        });
+        final AtomicInteger count = new AtomicInteger();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        count.incrementAndGet();
+                    }
+                });
+            }
+        });
+        Assert.assertEquals(2, count.get());
+        Assert.assertEquals(0, executor.getPendingTasks());
+    }
+
+}
@@ -0,0 +1,66 @@
+// This file is part of the secs4j project, an open source SECS/GEM
+// library written in Java.
+//
+// Copyright 2013 Oscar Stigter
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.ozsoft.secs4j.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test suite for the <code>VirtualThreads</code>.
+ * 
+ * @author Oscar Stigter
+ */
+public class VirtualThreadsTest {
+
+    /**
+     * Tests running a task on a virtual thread, if available.
+     * 
+     * @throws Exception
+     *             If the task fails.
+     */
+    @Test
+    public void executor() throws Exception {
+        Assert.assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+        if (VirtualThreads.isAvailable()) {
+            ExecutorService executor = VirtualThreads.newExecutor("test-");
+            try {
+                Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return VirtualThreads.isVirtual(Thread.currentThread()) && Thread.currentThread().getName().startsWith("test-");
+                    }
+                });
+                Assert.assertTrue(future.get(1L, TimeUnit.SECONDS));
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            try {
+                VirtualThreads.newExecutor("test-");
+                Assert.fail("Virtual threads not available");
+            } catch (UnsupportedOperationException e) {
+                Assert.assertEquals("Virtual threads not available (Java 21 or later required)", e.getMessage());
+            }
+        }
+    }
+
+}